@@ -19,7 +19,10 @@ package com.kjarvel.cmsisdebug;
 
 import com.kjarvel.cmsisdebug.R;
 
+import java.io.File;
+
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
@@ -30,20 +33,42 @@ import android.util.Log;
  * Methods in here provide status messages via text strings and return values.
  * 
  */
-public class ARMInfo {
+public class ARMInfo implements DebugTarget {
 
     private static final int VENDOR_KEIL  = 0xc251;
     private static final int VENDOR_MBED  = 0x0d28;
     private static final int VENDOR_ATMEL = 0x03eb;
 
     private Resources res;
+    private SharedPreferences prefs;
+    private int swdClock = 0;          // Fixed SWD clock (Hz), 0 = default
+    private boolean autoTuneClock = true;
 
     private Dap dap = null;
     private Usb usb = null;
     private UsbDevice device = null;
+    private boolean swoStreaming = false;
+    private SessionProfile profile = null;
+    private BreakpointManager breakpoints = null;
     
-    public ARMInfo(Resources res) {
+    public ARMInfo(Resources res, SharedPreferences prefs) {
         this.res = res;
+        this.prefs = prefs;
+    }
+
+    /**
+     * Sets a fixed SWD clock (Hz) for the next connect.
+     * 0 uses the remembered or auto-tuned clock.
+     */
+    public void setSwdClock(int hz) {
+        swdClock = hz;
+    }
+
+    /**
+     * Enables auto-tuning of the SWD clock for unknown probe/target pairs.
+     */
+    public void setAutoTuneClock(boolean enable) {
+        autoTuneClock = enable;
     }
     
     /**
@@ -104,13 +129,69 @@ public class ARMInfo {
             if (packetSize > 0 && isCMSISDap(device)) 
             {
                 dap = new Dap(packetSize, usb);
-                getARMinfo(dap, cmsisDescription);
+
+                // Probe information: from the session profile if the
+                // firmware is the same (one DAP_Info query), or queried
+                String serial = dap.serialNumber();
+                // ',' separates the stored profile fields
+                String fw = dap.fwVersion().replace(',', '.');
+                profile = SessionProfile.load(prefs, serial);
+                boolean cached = profile != null
+                        && profile.fwVersion.equals(fw);
+                if (!cached) {
+                    profile = queryProfile(serial, fw);
+                }
+                setupProbe(packetSize);
+                breakpoints = null;
+
+                StringBuffer t = new StringBuffer("");
+                getARMinfo(dap, t);
+                if (cached && dap.getConnectIdCode() == 0) {
+                    // Nothing worked with the cached packet size and count:
+                    // query them again, starting from the endpoint size
+                    if (usb.isBulk()) {
+                        usb.setPacketSize(packetSize);
+                    }
+                    usb.setPipelineDepth(1);
+                    dap = new Dap(packetSize, usb);
+                    profile = queryProfile(serial, fw);
+                    setupProbe(packetSize);
+                    t.setLength(0);
+                    getARMinfo(dap, t);
+                }
+                cmsisDescription.append(t);
                 return true;
             }
         }
         return false;
     }
     
+    /**
+     * Queries the probe information for a new session profile.
+     */
+    private SessionProfile queryProfile(String serial, String fw) {
+        SessionProfile p = new SessionProfile(serial);
+        p.fwVersion = fw;
+        p.caps = dap.capabilities();
+        p.packetSize = usb.isBulk() ? dap.packetSize() : 0;
+        p.packetCount = dap.packetCount();
+        return p;
+    }
+
+    /**
+     * Sets up Usb and Dap for the profile's packet size and count.
+     * 'endpointSize' is the packet size of the endpoint.
+     */
+    private void setupProbe(int endpointSize) {
+        // v2 probes may use packets larger than the endpoint
+        if (usb.isBulk() && profile.packetSize > endpointSize
+                && usb.setPacketSize(profile.packetSize)) {
+            dap = new Dap(profile.packetSize, usb);
+        }
+        dap.setFwVersion(profile.fwVersion);
+        usb.setPipelineDepth(profile.packetCount);
+    }
+
     public boolean isCMSISDap(UsbDevice device)
     {
     	if (device != null) {
@@ -129,10 +210,15 @@ public class ARMInfo {
      * Disconnects a connected device.
      */
     public boolean disconnect() {
+        if (usb != null) {
+            Log.i(res.getString(R.string.app_name),
+                    usb.getMetrics().snapshot().toString());
+        }
         if (dap != null) {
             dap.ledOff();
             dap.disconnect();
             dap = null;
+            breakpoints = null;
         }
 
         if (usb != null) {
@@ -149,6 +235,9 @@ public class ARMInfo {
      */
     public boolean cpuReset() {
         if (dap != null) {
+            if (breakpoints != null) {
+                breakpoints.invalidate();
+            }
             return dap.resetPins();
         }
         return false;
@@ -174,23 +263,129 @@ public class ARMInfo {
         return false;
     }
     
+    /**
+     * Returns a snapshot of the probe protocol metrics, or null.
+     */
+    public DapMetrics.Snapshot getMetrics() {
+        Usb u = usb;
+        if (u != null) {
+            return u.getMetrics().snapshot();
+        }
+        return null;
+    }
+
+    /**
+     * Single steps a halted CPU one instruction.
+     */
+    public boolean cpuStep() {
+        if (dap != null) {
+            return dap.step();
+        }
+        return false;
+    }
+
+    /**
+     * Single steps a halted CPU 'n' instructions, recording the PC after
+     * each step in 'trace' (see Dap.step(int, int[])).
+     *
+     * @return The number of steps done, or -1.
+     */
+    public int cpuStep(int n, int[] trace) {
+        if (dap != null) {
+            return dap.step(n, trace);
+        }
+        return -1;
+    }
+
+    /**
+     * Single steps a halted CPU while the PC is in [start, end), at most
+     * 'max' steps. 'start' == 'end' steps until the PC is 'start'.
+     *
+     * @return The number of steps done, or -1.
+     */
+    public int cpuStepUntil(long start, long end, int max, int[] trace) {
+        if (dap != null) {
+            if (start == end) {
+                return dap.stepTo(start, max, trace);
+            }
+            return dap.stepWhileIn(start, end, max, trace);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the hardware breakpoint and watchpoint manager of the
+     * connected target, or null.
+     */
+    public BreakpointManager getBreakpoints() {
+        if (dap != null && breakpoints == null) {
+            breakpoints = new BreakpointManager(dap);
+        }
+        return breakpoints;
+    }
+
+    /**
+     * Returns true if the CPU is halted.
+     */
+    public boolean isHalted() {
+        if (dap != null) {
+            return dap.isHalted();
+        }
+        return false;
+    }
+
+    /**
+     * Reads the debug status (DHCSR), or returns -1.
+     */
+    public long readDebugStatus() {
+        if (dap != null) {
+            return dap.readDhcsr();
+        }
+        return -1;
+    }
+
+    /**
+     * Reads and clears the halt reason (DFSR), or returns -1.
+     */
+    public long takeHaltReason() {
+        if (dap != null) {
+            return dap.takeDfsr();
+        }
+        return -1;
+    }
+
     /**
      * Returns a string with the current ARM Core Registers (PC, LR, SP)
      */
     public String getCoreRegs() {
-        int pc = 0;
-        int lr = 0;
-        int sp = 0;
-        
-        if (dap == null) {
+        int[] regs = readAllCoreRegs();
+
+        if (regs == null) {
             return null;
         }
 
-        pc = (int)dap.readCoreReg(15); // R15 (PC)
-        lr = (int)dap.readCoreReg(14); // R14 (LR)
-        sp = (int)dap.readCoreReg(13); // R13 (SP)
-        
-        return String.format("PC:%08x LR:%08x SP:%08x", pc, lr, sp);
+        return String.format("PC:%08x LR:%08x SP:%08x",
+                regs[15], regs[14], regs[13]);
+    }
+
+    /**
+     * Reads all core registers of the halted CPU (see Dap.readAllCoreRegs)
+     */
+    public int[] readAllCoreRegs() {
+        if (dap != null) {
+            return dap.readAllCoreRegs();
+        }
+        return null;
+    }
+
+    /**
+     * Writes core registers of the halted CPU (see Dap.writeCoreRegs)
+     */
+    public boolean writeCoreRegs(int[] sel, int[] values, int count) {
+        if (dap != null) {
+            return dap.writeCoreRegs(sel, values, count);
+        }
+        return false;
     }
     
     
@@ -204,6 +399,16 @@ public class ARMInfo {
         return 0;
     }
 
+    /**
+     * Reads a memory region (any alignment) into 'dst'
+     */
+    public boolean readMemory(long addr, byte[] dst, int off, int len) {
+        if (dap != null) {
+            return dap.readMemory(addr, dst, off, len);
+        }
+        return false;
+    }
+
     /**
      * Writes a 32-bit value to a memory address
      */
@@ -214,30 +419,222 @@ public class ARMInfo {
         return false;
     }
 
+    /**
+     * Writes a memory region (any alignment) from 'src'
+     */
+    public boolean writeMemory(long addr, byte[] src, int off, int len) {
+        if (dap != null) {
+            return dap.writeMemory(addr, src, off, len);
+        }
+        return false;
+    }
+
     
     /**
-     * Gets the CMSIS-DAP device info (in string 't')
+     * Programs 'image' to flash at 'addr' with a flash algorithm (.FLM
+     * file contents), loaded to the target RAM at 'ramStart'.
+     * Messages are appended to 'log'.
+     */
+    public boolean programFlash(byte[] flm, long ramStart, int ramSize,
+                                long addr, byte[] image, StringBuffer log) {
+        FlashAlgo algo = new FlashAlgo();
+
+        if (dap == null) {
+            return false;
+        }
+        if (!algo.parse(flm)) {
+            log.append("Invalid flash algorithm\n");
+            return false;
+        }
+
+        FlashLoader loader = new FlashLoader(dap, algo, ramStart, ramSize);
+        boolean res = loader.program(addr, image, 0, image.length);
+        log.append(loader.getMsgLog());
+        return res;
+    }
+
+    /**
+     * Starts SWO trace capture in UART (NRZ) mode. If 'cpuHz' is given,
+     * the target's TPIU and ITM are set up for 'baud' too, with all
+     * stimulus ports enabled. The v2 trace endpoint is used when present,
+     * see isSwoStreaming().
+     *
+     * @return The actual baudrate, or 0 if SWO could not be started.
+     */
+    public int swoStart(int cpuHz, int baud) {
+        if (dap == null || baud <= 0) {
+            return 0;
+        }
+        int caps = profile.caps;
+        if ((caps & Dap.CAP_SWO_UART) == 0) {
+            return 0;
+        }
+
+        if (cpuHz > 0) {
+            // DEMCR: set TRCENA, keep the vector catch and monitor bits
+            long demcr = dap.readAddr(0xe000edfc);
+            dap.writeAddr(0xe000edfc, demcr | 0x01000000);
+            dap.writeAddr(0xe00400f0, 0x00000002); // TPIU_SPPR: NRZ
+            dap.writeAddr(0xe0040010, cpuHz / baud - 1); // TPIU_ACPR
+            dap.writeAddr(0xe0040304, 0x00000100); // TPIU_FFCR: no formatter
+            dap.writeAddr(0xe0000fb0, 0xc5acce55); // ITM_LAR: unlock
+            dap.writeAddr(0xe0000e80, 0x0001000d); // ITM_TCR: ID 1, ITMENA
+            dap.writeAddr(0xe0000e00, 0xffffffffL); // ITM_TER: all ports
+        }
+
+        swoStreaming = usb.hasSwoEndpoint() && (caps & Dap.CAP_SWO_STREAM) != 0;
+        dap.swoControl(false);
+        int actual = 0;
+        if (dap.swoTransport(swoStreaming ? Dap.SWO_TRANSPORT_STREAM
+                                          : Dap.SWO_TRANSPORT_DATA)
+                && dap.swoMode(Dap.SWO_MODE_UART)) {
+            actual = dap.swoBaudrate(baud);
+        }
+        if (actual == 0 || !dap.swoControl(true)) {
+            return 0;
+        }
+        return actual;
+    }
+
+    public void swoStop() {
+        if (dap != null) {
+            dap.swoControl(false);
+            dap.swoMode(Dap.SWO_MODE_OFF);
+            dap.swoTransport(Dap.SWO_TRANSPORT_NONE);
+        }
+    }
+
+    /**
+     * Returns true if started SWO trace comes on the trace endpoint
+     * (swoRead()), instead of from DAP_SWO_Data commands (swoData()).
+     */
+    public boolean isSwoStreaming() {
+        return swoStreaming;
+    }
+
+    /**
+     * Reads buffered SWO trace with a command, on the probe thread.
+     */
+    public int swoData(byte[] buf) {
+        if (dap != null) {
+            return dap.swoData(buf, 0, buf.length);
+        }
+        return -1;
+    }
+
+    /**
+     * Reads SWO trace from the trace endpoint. May be called from any
+     * one thread besides the probe thread.
+     */
+    public int swoRead(byte[] buf, int timeoutMs) {
+        Usb u = usb;
+        if (u != null) {
+            return u.swoRead(buf, timeoutMs);
+        }
+        return -1;
+    }
+
+    /**
+     * Verifies target memory against 'image' using a CRC routine run from
+     * target RAM at 'ramStart'. Halts the core and changes its registers.
+     */
+    public boolean verifyMemory(long addr, byte[] image, long ramStart,
+                                StringBuffer log) {
+        if (dap == null) {
+            return false;
+        }
+        TargetCrc crc = new TargetCrc(dap, ramStart);
+        boolean res = crc.verify(addr, image, 0, image.length);
+        log.append(crc.getMsgLog());
+        return res;
+    }
+
+    /**
+     * Dumps a memory range to a file, see MemoryDump.dump().
+     */
+    public boolean dumpMemory(MemoryDump dump, long addr, long len, File file,
+                              boolean resume, MemoryDump.Progress progress) {
+        if (dap != null) {
+            return dump.dump(dap, addr, len, file, resume, progress);
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the target with IDCODE 'idcode' is in the session profile,
+     * and if so makes it the profile's target.
+     */
+    private boolean isKnown(long idcode) {
+        if (idcode == 0) {
+            return false;
+        }
+        return idcode == profile.dpidr || profile.loadTarget(prefs, idcode);
+    }
+
+    /**
+     * Connects to the target and describes it. For a target known to the
+     * session profile (by probe serial number and IDCODE), only its IDCODE
+     * is read (by the connect), and the rest is taken from the profile.
+     * Otherwise the SWD clock is set up (fixed or auto-tuned), the target
+     * is identified and the profile is saved.
      */
     private boolean getARMinfo(Dap dap, StringBuffer t) {
     	String fwVerText = res.getString(R.string.fw_version);
     	String unknownText = res.getString(R.string.unknown_msg);
     	
-        t.append(fwVerText + " " + dap.fwVersion() + "\n");
+        t.append(fwVerText + " " + profile.fwVersion + "\n");
 
         dap.ledOn();
+
+        // Connect at the fixed clock, or the one that worked last time
+        long last = profile.dpidr;
+        int clock = swdClock > 0 ? swdClock : profile.clock;
+        if (clock > 0) {
+            dap.setConnectClock(clock);
+        }
         dap.connect();
 
-        // Read IDCODE (DPIDR)
-        int reg;
-        reg = (int) dap.idCode();
-        t.append("IdCode: 0x" + Integer.toHexString(reg) + "\n");
+        // IDCODE (DPIDR), read by the connect
+        long idcode = dap.getConnectIdCode();
+        boolean known = isKnown(idcode);
+        if (!known && swdClock == 0 && clock > 0) {
+            // Another target, or the clock does not work any more
+            dap.setConnectClock(Dap.DEFAULT_CLOCK);
+            dap.connect();
+            idcode = dap.getConnectIdCode();
+            known = isKnown(idcode);
+        }
+        if (known && swdClock == 0 && profile.clock > 0
+                && profile.clock != dap.getClock()) {
+            // Another known target, use its clock
+            dap.setConnectClock(profile.clock);
+            dap.connect();
+        }
+        t.append("IdCode: 0x" + Long.toHexString(idcode) + "\n");
+
+        if (!known) {
+            profile.clearTarget();
+            profile.dpidr = idcode;
+            profile.clock = dap.getClock();
+            if (swdClock == 0 && autoTuneClock && idcode != 0) {
+                // Not saved (0) unless a clock was verified
+                profile.clock = dap.autoTuneClock();
+            }
+            profile.apIdr = (int) dap.coreId();
+            profile.cpuId = (int) dap.cpuId();
+        }
+        if (idcode != 0 && (!known || idcode != last)) {
+            profile.save(prefs);
+        }
+        t.append(res.getString(R.string.swd_clock) + " "
+                + (dap.getClock() / 1000) + " kHz\n");
 
-        // Read COREID
-        reg = (int) dap.coreId();
+        // COREID (AP 0 IDR)
+        int reg = profile.apIdr;
         t.append("CoreId: 0x" + Integer.toHexString(reg) + "\n");
 
-        // -- Trying to read CPUID..
-        reg = (int) dap.cpuId();
+        // CPUID
+        reg = profile.cpuId;
 
         int rev    = ((reg >> 20) & 0x0f);
         int patch  = (reg & 0x0f);
@@ -0,0 +1,345 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * Hardware breakpoints (FPB code comparators) and watchpoints (DWT
+ * comparators, ARMv7-M layout).
+ * Breakpoints and watchpoints are first staged, and apply() then writes
+ * only the comparator registers that differ from what the target already
+ * has, in one batch. Removing and re-adding the same breakpoint, as a
+ * debugger does around every step, costs no writes at all.
+ *
+ */
+public class BreakpointManager {
+
+    public static final int WATCH_READ   = 5;   // DWT_FUNCTION values
+    public static final int WATCH_WRITE  = 6;
+    public static final int WATCH_ACCESS = 7;
+
+    private final long FP_CTRL   = 0xe0002000L; // Flash Patch Control
+    private final long FP_COMP0  = 0xe0002008L; // Flash Patch Comparator 0
+    private final long DWT_CTRL  = 0xe0001000L; // DWT Control
+    private final long DWT_COMP0 = 0xe0001020L; // COMP, MASK, FUNCTION at +0, 4, 8
+    private final long DEMCR     = 0xe000edfcL; // Debug Exception and Monitor Control
+    private final long TRCENA    = 0x01000000L; // DEMCR: enable DWT
+    private final long UNKNOWN   = -1;          // Shadow not known
+
+    private Dap dap;
+    private boolean probed = false;
+    private int fpbRev = 0;
+
+    /* Wanted state: address per comparator, -1 = free */
+    private long[] bpAddr = new long[0];
+    private long[] wpAddr = new long[0];
+    private int[] wpSize = new int[0];
+    private int[] wpFunc = new int[0];
+
+    /* Shadows of what was last written to the target */
+    private long fpCtrl = UNKNOWN;
+    private long demcr = UNKNOWN;
+    private long[] fpComp = new long[0];
+    private long[] dwtComp = new long[0];
+    private long[] dwtMask = new long[0];
+    private long[] dwtFunc = new long[0];
+
+    public BreakpointManager(Dap dap) {
+        this.dap = dap;
+    }
+
+    /**
+     * Reads the number of comparators from FP_CTRL and DWT_CTRL, and
+     * DEMCR, whose other bits (vector catch, monitor) are kept by apply().
+     */
+    private boolean probe() {
+        if (probed) {
+            return true;
+        }
+        int fpSlot = dap.queueReadAddr(FP_CTRL);
+        int dwtSlot = dap.queueReadAddr(DWT_CTRL);
+        int demcrSlot = dap.queueReadAddr(DEMCR);
+        if (!dap.flushTransfers()) {
+            return false;
+        }
+        long fp = dap.getTransferData(fpSlot);
+        long dwt = dap.getTransferData(dwtSlot);
+        demcr = dap.getTransferData(demcrSlot);
+        int numCode = (int) (((fp >> 4) & 0xF) | ((fp >> 8) & 0x70));
+        int numComp = (int) ((dwt >> 28) & 0xF);
+
+        fpbRev = (int) ((fp >> 28) & 0xF);
+        bpAddr = newArray(numCode, -1);
+        fpComp = newArray(numCode, UNKNOWN);
+        wpAddr = newArray(numComp, -1);
+        wpSize = new int[numComp];
+        wpFunc = new int[numComp];
+        dwtComp = newArray(numComp, UNKNOWN);
+        dwtMask = newArray(numComp, UNKNOWN);
+        dwtFunc = newArray(numComp, UNKNOWN);
+        probed = true;
+        return true;
+    }
+
+    private static long[] newArray(int n, long value) {
+        long[] a = new long[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = value;
+        }
+        return a;
+    }
+
+    public int getNumBreakpoints() {
+        probe();
+        return bpAddr.length;
+    }
+
+    public int getNumWatchpoints() {
+        probe();
+        return wpAddr.length;
+    }
+
+    /**
+     * Returns the FP_COMP value for a breakpoint, or -1 if the FPB cannot
+     * break at 'addr'.
+     */
+    private long fpbValue(long addr) {
+        if (addr < 0) {
+            return 0;
+        }
+        if (fpbRev == 0) {
+            // FPB v1: code region only, REPLACE selects the halfword
+            if (addr >= 0x20000000L) {
+                return -1;
+            }
+            return (addr & 0x1FFFFFFCL) | 1
+                    | ((addr & 2) != 0 ? 0x80000000L : 0x40000000L);
+        }
+        return (addr & 0xFFFFFFFEL) | 1;
+    }
+
+    /**
+     * Stages a breakpoint. A comparator that already holds it is preferred.
+     *
+     * @return False if no comparator is free, or the address is not
+     *         supported.
+     */
+    public boolean addBreakpoint(long addr) {
+        if (!probe() || fpbValue(addr) < 0) {
+            return false;
+        }
+        int free = -1;
+        for (int i = 0; i < bpAddr.length; i++) {
+            if (bpAddr[i] == addr) {
+                return true;
+            }
+            if (bpAddr[i] < 0 && (free < 0 || fpComp[i] == fpbValue(addr))) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            return false;
+        }
+        bpAddr[free] = addr;
+        return true;
+    }
+
+    public void removeBreakpoint(long addr) {
+        for (int i = 0; i < bpAddr.length; i++) {
+            if (bpAddr[i] == addr) {
+                bpAddr[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * Stages a watchpoint on 'size' bytes (a power of two) at 'addr', which
+     * must be aligned to the size. 'function' is a WATCH_ value.
+     *
+     * @return False if no comparator is free, or the range is not supported.
+     */
+    public boolean addWatchpoint(long addr, int size, int function) {
+        if (!probe() || size <= 0 || (size & (size - 1)) != 0
+                || (addr & (size - 1)) != 0) {
+            return false;
+        }
+        int free = -1;
+        for (int i = 0; i < wpAddr.length; i++) {
+            if (wpAddr[i] == addr && wpSize[i] == size
+                    && wpFunc[i] == function) {
+                return true;
+            }
+            if (wpAddr[i] < 0 && (free < 0 || (dwtComp[i] == addr
+                    && dwtFunc[i] == function))) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            return false;
+        }
+        wpAddr[free] = addr;
+        wpSize[free] = size;
+        wpFunc[free] = function;
+        return true;
+    }
+
+    public void removeWatchpoint(long addr, int size, int function) {
+        for (int i = 0; i < wpAddr.length; i++) {
+            if (wpAddr[i] == addr && wpSize[i] == size
+                    && wpFunc[i] == function) {
+                wpAddr[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of a watchpoint that has matched since the last
+     * call, or -1. Reading DWT_FUNCTION clears its MATCHED bit.
+     */
+    public int getWatchHit() {
+        int[] slots = new int[wpAddr.length];
+        boolean any = false;
+        for (int i = 0; i < wpAddr.length; i++) {
+            slots[i] = -1;
+            if (wpAddr[i] >= 0) {
+                slots[i] = dap.queueReadAddr(DWT_COMP0 + i * 16 + 8);
+                any = true;
+            }
+        }
+        if (!any || !dap.flushTransfers()) {
+            return -1;
+        }
+        for (int i = 0; i < wpAddr.length; i++) {
+            if (slots[i] >= 0
+                    && (dap.getTransferData(slots[i]) & 0x01000000L) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long getWatchAddr(int i) {
+        return wpAddr[i];
+    }
+
+    public int getWatchFunction(int i) {
+        return wpFunc[i];
+    }
+
+    /**
+     * Stages removal of all breakpoints and watchpoints.
+     */
+    public void clear() {
+        for (int i = 0; i < bpAddr.length; i++) {
+            bpAddr[i] = -1;
+        }
+        for (int i = 0; i < wpAddr.length; i++) {
+            wpAddr[i] = -1;
+        }
+    }
+
+    /**
+     * Queues a write if the shadow differs, and updates the shadow.
+     */
+    private long update(long addr, long shadow, long value) {
+        if (shadow != value) {
+            dap.queueWriteAddr(addr, value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads DEMCR again if its shadow was forgotten (see invalidate()) and
+     * a watchpoint is staged.
+     */
+    private boolean readDemcr() {
+        if (demcr != UNKNOWN) {
+            return true;
+        }
+        for (int i = 0; i < wpAddr.length; i++) {
+            if (wpAddr[i] >= 0) {
+                int slot = dap.queueReadAddr(DEMCR);
+                if (!dap.flushTransfers()) {
+                    return false;
+                }
+                demcr = dap.getTransferData(slot);
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the staged state to the target: only the registers that
+     * changed, in one batch.
+     */
+    public boolean apply() {
+        boolean anyBp = false;
+        boolean anyWp = false;
+
+        if (!probe() || !readDemcr()) {
+            return false;
+        }
+
+        for (int i = 0; i < bpAddr.length; i++) {
+            fpComp[i] = update(FP_COMP0 + i * 4, fpComp[i], fpbValue(bpAddr[i]));
+            anyBp |= bpAddr[i] >= 0;
+        }
+        if (anyBp) {
+            fpCtrl = update(FP_CTRL, fpCtrl, 0x00000003L); // KEY | ENABLE
+        }
+
+        for (int i = 0; i < wpAddr.length; i++) {
+            long base = DWT_COMP0 + i * 16;
+            if (wpAddr[i] >= 0) {
+                anyWp = true;
+                dwtComp[i] = update(base, dwtComp[i], wpAddr[i]);
+                dwtMask[i] = update(base + 4, dwtMask[i],
+                        Integer.numberOfTrailingZeros(wpSize[i]));
+                dwtFunc[i] = update(base + 8, dwtFunc[i], wpFunc[i]);
+            } else {
+                dwtFunc[i] = update(base + 8, dwtFunc[i], 0);
+            }
+        }
+        if (anyWp) {
+            demcr = update(DEMCR, demcr, demcr | TRCENA);
+        }
+
+        if (!dap.flushTransfers()) {
+            invalidate();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the shadows, so that the next apply() writes everything.
+     * Used after a failed write or a target reset.
+     */
+    public void invalidate() {
+        fpCtrl = UNKNOWN;
+        demcr = UNKNOWN;
+        for (int i = 0; i < fpComp.length; i++) {
+            fpComp[i] = UNKNOWN;
+        }
+        for (int i = 0; i < dwtComp.length; i++) {
+            dwtComp[i] = UNKNOWN;
+            dwtMask[i] = UNKNOWN;
+            dwtFunc[i] = UNKNOWN;
+        }
+    }
+}
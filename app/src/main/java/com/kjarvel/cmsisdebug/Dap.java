@@ -32,8 +32,7 @@
 
 package com.kjarvel.cmsisdebug;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Handles CMSIS-DAP low-level communication.
@@ -44,7 +43,8 @@ import java.nio.ByteOrder;
  */
 public class Dap {
     private byte[] bytes;
-    private Usb usb;
+    private DapTransport usb;
+    private DapMetrics metrics;
     private StringBuffer msg;
 
     private final int T_DP_MASK    = 0x00;
@@ -60,6 +60,11 @@ public class Dap {
     private final byte AP_CSW = 0x00;     // Control/Status Word register
     private final byte AP_TAR = 0x04;     // Transfer Address register
     private final byte AP_DRW = 0x0C;     // Data Read/Write register
+    // Banked Data registers (0x10-0x1C, bank 1) map the 16-byte block at TAR
+    private final byte AP_BD0 = 0x00;     // BD0: DHCSR when TAR = DHCSR
+    private final byte AP_BD1 = 0x04;     // BD1: DCRSR
+    private final byte AP_BD2 = 0x08;     // BD2: DCRDR
+    private final long SELECT_BANK1 = 0x00000010;
 
     private final byte CMD_DAP_Info          = 0x00;
     private final byte CMD_DAP_LED           = 0x01;
@@ -73,11 +78,142 @@ public class Dap {
     private final byte CMD_DAP_SWJ_Clock     = 0x11;
     private final byte CMD_DAP_SWJ_Seq       = 0x12;
     private final byte CMD_DAP_SWD_Config    = 0x13;
-    
+    private final byte CMD_DAP_SWO_Transport = 0x17;
+    private final byte CMD_DAP_SWO_Mode      = 0x18;
+    private final byte CMD_DAP_SWO_Baudrate  = 0x19;
+    private final byte CMD_DAP_SWO_Control   = 0x1A;
+    private final byte CMD_DAP_SWO_Status    = 0x1B;
+    private final byte CMD_DAP_SWO_Data      = 0x1C;
+    private final byte CMD_DAP_ExecuteCommands = 0x7F;
+
+    // DAP_Info capabilities (0xF0)
+    public static final int CAP_SWO_UART       = 0x04;
+    public static final int CAP_SWO_MANCHESTER = 0x08;
+    public static final int CAP_SWO_STREAM     = 0x40;
+
+    public static final int SWO_TRANSPORT_NONE = 0;
+    public static final int SWO_TRANSPORT_DATA = 1; // DAP_SWO_Data commands
+    public static final int SWO_TRANSPORT_STREAM = 2; // v2 trace endpoint
+    public static final int SWO_MODE_OFF  = 0;
+    public static final int SWO_MODE_UART = 1;
+    private final int SWO_STATUS_ERROR   = 0x40;
+    private final int SWO_STATUS_OVERRUN = 0x80;
+
+    private final int ACK_OK       = 0x01;
+    private final int ACK_MASK     = 0x0F; // ACK bits and protocol error bit
+
+    // Transfer status, see getTransferStatus()
+    public static final int XFER_OK    = 0x01;
+    public static final int XFER_WAIT  = 0x02;
+    public static final int XFER_FAULT = 0x04;
+    public static final int XFER_ERROR = 0x08; // Protocol error, no ACK or USB
+
+    private final long CSW_32BIT   = 0x23000002; // 32-bit access, no increment
+    private final long CSW_SIZE    = 0x00000007; // Access size field
+    private final long CSW_ADDRINC = 0x00000030; // Address increment field
+    private final long CSW_INC_SINGLE = 0x00000010;
+    private final long TAR_WRAP    = 0x000003FF; // TAR auto-increment range (1 KB)
+
+    // CTRL/STAT sticky error flags: WDATAERR | STICKYERR | STICKYCMP | STICKYORUN
+    private final long CTRL_STICKY = 0x000000B2;
+    private final long PWRUP_ACK   = 0xA0000000L; // CSYSPWRUPACK | CDBGPWRUPACK
+    private final int POWERUP_POLLS = 10;
+    private final long DHCSR_ADDR  = 0xe000edf0; // Debug Halting Control/Status
+    private final long DCRSR_ADDR  = 0xe000edf4; // Debug Core Register Selector
+    private final long DCRDR_ADDR  = 0xe000edf8; // Debug Core Register Data
+    private final long DFSR_ADDR   = 0xe000ed30; // Debug Fault Status
+    private final long MVFR0_ADDR  = 0xe000ef40; // Media and FP Feature 0
+    private final long S_REGRDY    = 0x00010000; // DHCSR register ready
+    private final long S_HALT      = 0x00020000; // DHCSR core halted
+    private final int HALT_POLL_MAX_MS = 16;     // waitHalted() back-off limit
+    private final long REGWNR      = 0x00010000; // DCRSR register write
+
+    /* DCRSR register selectors in readAllCoreRegs() order: R0-R15, xPSR,
+     * MSP, PSP, CONTROL/FAULTMASK/BASEPRI/PRIMASK, then with an FPU:
+     * FPSCR and S0-S31 */
+    private final int CORE_REGS = 20;
+    private final int FPU_REGS  = 33;
+    private int[] coreRegSel = null;
+    private int fpuPresent = -1; // -1 = unknown
+
+    /* Multi-step: 5 transfers per step, so a batch fits the queue */
+    private final int STEP_BATCH = 48;
+    private final int PC_REG     = 15;
+    private int[] stepHaltSlot = new int[STEP_BATCH];
+    private int[] stepPcSlot = new int[STEP_BATCH];
+
+    /* Transfer queue. Queued DP/AP transfers are packed into as few
+     * DAP_Transfer packets as the packet size allows by flushTransfers(). */
+    private final int XFER_QUEUE_SIZE = 256;
+    private byte[] xferReq = new byte[XFER_QUEUE_SIZE];
+    private long[] xferData = new long[XFER_QUEUE_SIZE];
+    private int xferCount = 0;
+    private int xferDone = 0;
+    private int xferStatus = XFER_OK;
+
+    /* WAIT handling: the probe retries a transfer 'probeWaitRetry' times
+     * (DAP_TransferConfigure), then flushTransfers() resumes the batch
+     * from the failed transfer up to 'hostWaitRetry' times. */
+    private int probeWaitRetry = 64;
+    private int hostWaitRetry = 2;
+
+    /* Commands batched into DAP_ExecuteCommands packets by batchRun() */
+    private final int MAX_BATCH = 16;
+    private byte[][] batchCmd = new byte[MAX_BATCH][];
+    private byte[][] batchResp = new byte[MAX_BATCH][];
+    private int batchCount = 0;
+    private int execSupported = -1; // -1 = unknown
+
+    /* Shadow copies of DP SELECT and the AP CSW and TAR registers (AP 0,
+     * bank 0). Writes of a value the target already has are dropped. */
+    private long selectCache = 0;
+    private long cswCache = 0;
+    private long tarCache = 0;
+    private boolean selectValid = false;
+    private boolean cswValid = false;
+    private boolean tarValid = false;
+    private int savedWrites = 0;
+
+    /* writeMemory() checks CTRL/STAT for sticky errors this often (bytes) */
+    private int writeCheckInterval = 4096;
+
+    /* Pipelined packets in flight, oldest first. The kind tells how the
+     * response is checked, and where read data goes in pipeData. */
+    private final int PIPE_TRANSFER = 0;
+    private final int PIPE_READ     = 1;
+    private final int PIPE_WRITE    = 2;
+    private final int MAX_PIPE      = 16;
+    private int[] pipeKind = new int[MAX_PIPE];
+    private int[] pipeOff = new int[MAX_PIPE];
+    private int[] pipeCount = new int[MAX_PIPE];
+    private int pipeHead = 0;
+    private int pipePending = 0;
+    private boolean pipeOk = true;
+    private byte[] pipeData = null;
+    private int packLen = 0;
+
+    /* SWD clock (Hz), and the clocks tried by autoTuneClock() */
+    public static final int DEFAULT_CLOCK = 100 * 1000;
+    private int clock = DEFAULT_CLOCK;
+    private long connectIdCode = 0;  // IDCODE read by connect()
+    private final int[] TUNE_CLOCKS = { 10000000, 8000000, 4000000, 2000000,
+            1000000, 500000, 200000, 100000 };
+    private final int TUNE_PASSES = 3;
+    private final long ROM_TABLE = 0xe00ff000L; // Cortex-M PPB ROM table
+
+
+    /**
+     * Decodes a little-endian 32-bit word without allocating.
+     */
+    private static long getWord(byte[] b, int off) {
+        return (b[off] & 0xFF)
+                | ((b[off + 1] & 0xFF) << 8)
+                | ((b[off + 2] & 0xFF) << 16)
+                | ((long) (b[off + 3] & 0xFF) << 24);
+    }
 
     private long dpReadReg(byte addr) {
         long reg = 0;
-        ByteBuffer bf;
 
         bytes[0] = CMD_DAP_Transfer;
         bytes[1] = 0x00; // DAP Index - ignored for SWD
@@ -85,11 +221,11 @@ public class Dap {
         bytes[3] = (byte) (T_DP_MASK | T_READ_MASK | addr); // Transfer request
 
         if (usb.usbXfer(bytes, 4)) {
+            setStatus(bytes[2]);
+            metrics.ack(bytes[2]);
             if (bytes[0] == CMD_DAP_Transfer && bytes[1] == 1
                     && ((int) bytes[2] & 0x01) == 0x01) {
-                bf = ByteBuffer.wrap(bytes, 3, 4);
-                bf.order(ByteOrder.LITTLE_ENDIAN);
-                reg = bf.getInt() & 0xFFFFFFFF;
+                reg = getWord(bytes, 3);
             }
 
         }
@@ -98,7 +234,6 @@ public class Dap {
 
     private long apBlockReadReg(byte addr) {
         long reg = 0;
-        ByteBuffer bf;
 
         bytes[0] = CMD_DAP_TransferBlock;
         bytes[1] = 0x00; // DAP Index - ignored for SWD
@@ -107,11 +242,11 @@ public class Dap {
         bytes[4] = (byte) (T_AP_MASK | T_READ_MASK | addr); // Transfer request
 
         if (usb.usbXfer(bytes, 5)) {
+            setStatus(bytes[3]);
+            metrics.ack(bytes[3]);
             if (bytes[0] == CMD_DAP_TransferBlock && bytes[1] == 1 && bytes[2] == 0
                     && ((int) bytes[3] & 0x01) == 0x01) {
-                bf = ByteBuffer.wrap(bytes, 4, 4);
-                bf.order(ByteOrder.LITTLE_ENDIAN);
-                reg = bf.getInt() & 0xFFFFFFFF;
+                reg = getWord(bytes, 4);
             }
 
         }
@@ -128,9 +263,19 @@ public class Dap {
         bytes[6] = (byte) ((reg >> 16) & 0xFF);
         bytes[7] = (byte) ((reg >> 24) & 0xFF);
 
+        if (addr == DP_SELECT) {
+            selectValid = false;
+        }
+
         if (usb.usbXfer(bytes, 8)) {
+            setStatus(bytes[2]);
+            metrics.ack(bytes[2]);
             if (bytes[0] == CMD_DAP_Transfer && bytes[1] == 1
                     && ((int) bytes[2] & 0x01) == 0x01) {
+                if (addr == DP_SELECT) {
+                    selectCache = reg & 0xFFFFFFFFL;
+                    selectValid = true;
+                }
                 return true;
             }
 
@@ -138,218 +283,1505 @@ public class Dap {
         return false;
     }
 
-    private boolean apWriteReg(byte addr, long reg) {
+    private int queueXfer(int req, long data) {
+        if (xferCount >= XFER_QUEUE_SIZE) {
+            return -1;
+        }
+        xferReq[xferCount] = (byte) req;
+        xferData[xferCount] = data;
+        return xferCount++;
+    }
+
+    private int queueDpRead(byte addr) {
+        return queueXfer(T_DP_MASK | T_READ_MASK | addr, 0);
+    }
+
+    private int queueApRead(byte addr) {
+        int slot = queueXfer(T_AP_MASK | T_READ_MASK | addr, 0);
+        if (slot >= 0 && addr == AP_DRW) {
+            drwAccessed();
+        }
+        return slot;
+    }
+
+    /*
+     * The shadow copies are only updated once the write is queued. A write
+     * that does not fit the queue is never sent, so the target keeps the
+     * old value.
+     */
+    private boolean queueDpWrite(byte addr, long reg) {
+        reg &= 0xFFFFFFFFL;
+        if (addr == DP_SELECT && selectValid && selectCache == reg) {
+            savedWrites++;
+            return true;
+        }
+        if (queueXfer(T_DP_MASK | T_WRITE_MASK | addr, reg) < 0) {
+            return false;
+        }
+        if (addr == DP_SELECT) {
+            selectCache = reg;
+            selectValid = true;
+        }
+        return true;
+    }
+
+    private boolean queueApWrite(byte addr, long reg) {
+        reg &= 0xFFFFFFFFL;
+        boolean bank0 = selectValid && selectCache == 0;
+        if (bank0 && ((addr == AP_CSW && cswValid && cswCache == reg)
+                || (addr == AP_TAR && tarValid && tarCache == reg))) {
+            savedWrites++;
+            return true;
+        }
+        if (queueXfer(T_AP_MASK | T_WRITE_MASK | addr, reg) < 0) {
+            return false;
+        }
+        if (!selectValid) {
+            // Unknown AP bank, the write may hit CSW or TAR
+            cswValid = false;
+            tarValid = false;
+        } else if (selectCache != 0) {
+            // Not AP 0, bank 0: CSW and TAR are not affected
+        } else if (addr == AP_CSW) {
+            cswCache = reg;
+            cswValid = true;
+        } else if (addr == AP_TAR) {
+            tarCache = reg;
+            tarValid = true;
+        } else if (addr == AP_DRW) {
+            drwAccessed();
+        }
+        return true;
+    }
+
+    /**
+     * Tracks the TAR auto-increment after a DRW access. The increment is
+     * only guaranteed within a 1 KB block, so a wrap invalidates the TAR.
+     */
+    private void drwAccessed() {
+        if (!selectValid || selectCache != 0) {
+            return;
+        }
+        if (!cswValid) {
+            tarValid = false;
+        } else if ((cswCache & CSW_ADDRINC) == CSW_INC_SINGLE) {
+            long next = (tarCache + (1 << (cswCache & CSW_SIZE))) & 0xFFFFFFFFL;
+            if ((next & ~TAR_WRAP) != (tarCache & ~TAR_WRAP)) {
+                tarValid = false;
+            }
+            tarCache = next;
+        } else if ((cswCache & CSW_ADDRINC) != 0) {
+            tarValid = false; // Packed increment, not tracked
+        }
+    }
+
+    /**
+     * Forgets the SELECT, CSW and TAR shadow copies. Called when the target
+     * state is unknown: on connect, reset, disconnect and transfer errors.
+     */
+    private void invalidateCache() {
+        selectValid = false;
+        cswValid = false;
+        tarValid = false;
+    }
+
+    /**
+     * Checks a CTRL/STAT value for sticky errors.
+     * If there are any, they are cleared (see recover()).
+     */
+    private boolean checkSticky(long ctrl) {
+        if ((ctrl & CTRL_STICKY) != 0) {
+            xferStatus = XFER_FAULT;
+            recover();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of SELECT/CSW/TAR writes that were skipped since
+     * the target already had the value.
+     */
+    public int getSavedWrites() {
+        return savedWrites;
+    }
+
+    /**
+     * Queues a 32-bit memory read. The returned slot is used with
+     * getTransferData() after a successful flushTransfers(), or -1 if the
+     * queue is full.
+     */
+    public int queueReadAddr(long addr) {
+        queueDpWrite(DP_SELECT, 0x00000000);
+        queueApWrite(AP_CSW, CSW_32BIT);    // Configure 32-bit access
+        queueApWrite(AP_TAR, addr);         // Place address in TAR
+        return queueApRead(AP_DRW);         // Read from address
+    }
+
+    /**
+     * Queues a 32-bit memory write.
+     */
+    public boolean queueWriteAddr(long addr, long value) {
+        queueDpWrite(DP_SELECT, 0x00000000);
+        queueApWrite(AP_CSW, CSW_32BIT);    // Configure 32-bit access
+        queueApWrite(AP_TAR, addr);         // Place address in TAR
+        return queueApWrite(AP_DRW, value); // Write to address
+    }
+
+    /**
+     * Queues an 8- or 16-bit memory read (size 1 or 2 bytes).
+     */
+    private int queueReadSmall(long addr, int size) {
+        queueDpWrite(DP_SELECT, 0x00000000);
+        queueApWrite(AP_CSW, (CSW_32BIT & ~CSW_SIZE) | (size >> 1));
+        queueApWrite(AP_TAR, addr);
+        return queueApRead(AP_DRW);
+    }
+
+    /**
+     * Picks the access size for an unaligned piece of memory: 16-bit when
+     * the address is halfword aligned and at least two bytes remain.
+     */
+    private int smallSize(long addr, int len) {
+        return ((addr & 1) == 0 && len >= 2) ? 2 : 1;
+    }
+
+    /**
+     * Reads 1-3 bytes within one word with 8/16-bit accesses.
+     * The data is taken from the byte lanes given by the address.
+     */
+    private boolean readSmall(long addr, byte[] dst, int off, int len) {
+        int size1 = smallSize(addr, len);
+        int size2 = len > size1 ? smallSize(addr + size1, len - size1) : 0;
+        int slot1 = queueReadSmall(addr, size1);
+        int slot2 = size2 > 0 ? queueReadSmall(addr + size1, size2) : -1;
+
+        if (!flushTransfers()) {
+            return false;
+        }
+
+        long word = getTransferData(slot1);
+        for (int i = 0; i < size1; i++) {
+            dst[off++] = (byte) (word >> (((addr + i) & 3) * 8));
+        }
+        if (size2 > 0) {
+            word = getTransferData(slot2);
+            for (int i = 0; i < size2; i++) {
+                dst[off++] = (byte) (word >> (((addr + size1 + i) & 3) * 8));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a memory region into dst.
+     * Word aligned data is read with DAP_TransferBlock and TAR
+     * auto-increment, as many words per packet as the packet size allows.
+     * Requests are split at the 1 KB TAR wrap boundary, and up to the
+     * probe's packet count of packets are kept in flight. Unaligned head and
+     * tail bytes are read with 8/16-bit accesses.
+     *
+     * @return True if the whole region was read.
+     */
+    public boolean readMemory(long addr, byte[] dst, int off, int len) {
+        int maxWords = (bytes.length - 4) / 4;
+        int n;
+
+        addr &= 0xFFFFFFFFL;
+
+        // Unaligned head
+        if ((addr & 3) != 0 && len > 0) {
+            n = Math.min(len, 4 - (int) (addr & 3));
+            if (!readSmall(addr, dst, off, n)) {
+                return false;
+            }
+            addr += n;
+            off += n;
+            len -= n;
+        }
+
+        // Word aligned body, split at the TAR wrap boundary
+        pipeStart(dst);
+        while (len >= 4 && pipeOk) {
+            n = (int) ((TAR_WRAP + 1 - (addr & TAR_WRAP)) / 4);
+            n = Math.min(Math.min(n, maxWords), len / 4);
+
+            queueDpWrite(DP_SELECT, 0x00000000);
+            queueApWrite(AP_CSW, CSW_32BIT | CSW_INC_SINGLE);
+            queueApWrite(AP_TAR, addr);
+            pipeTransfers();
+            pipeBlock(true, off, n);
+            addr += n * 4;
+            off += n * 4;
+            len -= n * 4;
+        }
+        if (!pipeDrain()) {
+            return false;
+        }
+
+        // Unaligned tail
+        if (len > 0) {
+            return readSmall(addr, dst, off, len);
+        }
+        return true;
+    }
+
+    /**
+     * Queues 8/16-bit writes of 'len' bytes within one word.
+     * The data is placed on the byte lanes given by the address.
+     */
+    private void queueWriteSmall(long addr, byte[] src, int off, int len) {
+        while (len > 0) {
+            int size = smallSize(addr, len);
+            long value = src[off] & 0xFF;
+            if (size == 2) {
+                value |= (src[off + 1] & 0xFF) << 8;
+            }
+            queueDpWrite(DP_SELECT, 0x00000000);
+            queueApWrite(AP_CSW, (CSW_32BIT & ~CSW_SIZE) | (size >> 1));
+            queueApWrite(AP_TAR, addr);
+            queueApWrite(AP_DRW, value << ((addr & 3) * 8));
+            addr += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    /**
+     * Reads CTRL/STAT after a series of writes. On a sticky error the
+     * failing address range is logged and the sticky flags are cleared.
+     */
+    private boolean checkWrite(long start, long end) {
+        int slot = queueDpRead(DP_CTRL);
+        if (flushTransfers() && checkSticky(getTransferData(slot))) {
+            return true;
+        }
+        return writeError(start, end);
+    }
+
+    /**
+     * Logs a failed write of an address range and clears the sticky flags.
+     */
+    private boolean writeError(long start, long end) {
+        msg.append(String.format("Write error at 0x%08x-0x%08x\n",
+                start, end - 1));
+        invalidateCache();
+        queueDpWrite(DP_ABORT, 0x0000001e); // Clear sticky error bits
+        flushTransfers();
+        return false;
+    }
+
+    /**
+     * Sets how often (in bytes) writeMemory() checks for sticky errors.
+     */
+    public void setWriteCheckInterval(int interval) {
+        writeCheckInterval = interval;
+    }
+
+    /**
+     * Writes a memory region from src.
+     * Word aligned data is streamed with DAP_TransferBlock and TAR
+     * auto-increment, split at the 1 KB TAR wrap boundary, with up to the
+     * probe's packet count of packets in flight. Unaligned head
+     * and tail bytes are written with 8/16-bit accesses. CTRL/STAT is only
+     * checked for sticky errors every writeCheckInterval bytes and at the
+     * end, and a failure is logged with the address range it occurred in.
+     *
+     * @return True if the whole region was written without errors.
+     */
+    public boolean writeMemory(long addr, byte[] src, int off, int len) {
+        int maxWords = (bytes.length - 5) / 4;
+        int unchecked = 0;
+        int n;
+
+        addr &= 0xFFFFFFFFL;
+        long start = addr;
+
+        // Unaligned head
+        if ((addr & 3) != 0 && len > 0) {
+            n = Math.min(len, 4 - (int) (addr & 3));
+            queueWriteSmall(addr, src, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+
+        // Word aligned body, split at the TAR wrap boundary
+        pipeStart(src);
+        while (len >= 4 && pipeOk) {
+            n = (int) ((TAR_WRAP + 1 - (addr & TAR_WRAP)) / 4);
+            n = Math.min(Math.min(n, maxWords), len / 4);
+
+            queueDpWrite(DP_SELECT, 0x00000000);
+            queueApWrite(AP_CSW, CSW_32BIT | CSW_INC_SINGLE);
+            queueApWrite(AP_TAR, addr);
+            pipeTransfers();
+            pipeBlock(false, off, n);
+            addr += n * 4;
+            off += n * 4;
+            len -= n * 4;
+            unchecked += n * 4;
+
+            if (unchecked >= writeCheckInterval) {
+                if (!pipeDrain()) {
+                    return writeError(start, addr);
+                }
+                if (!checkWrite(start, addr)) {
+                    return false;
+                }
+                start = addr;
+                unchecked = 0;
+            }
+        }
+        if (!pipeDrain()) {
+            return writeError(start, addr);
+        }
+
+        // Unaligned tail
+        if (len > 0) {
+            queueWriteSmall(addr, src, off, len);
+            addr += len;
+        }
+        return checkWrite(start, addr);
+    }
+
+    /**
+     * Returns the value read by a queued read, after flushTransfers().
+     */
+    public long getTransferData(int slot) {
+        if (slot >= 0 && slot < XFER_QUEUE_SIZE) {
+            return xferData[slot];
+        }
+        return 0;
+    }
+
+    /**
+     * Packs queued transfers, starting at 'start', into one DAP_Transfer
+     * packet in bytes[]. Returns the index after the last packed transfer,
+     * the packet length is left in packLen.
+     */
+    private int packTransfers(int start) {
+        int i = start;
+        int pos = 3;
+        int reads = 0;
+
+        while (i < xferCount && (i - start) < 255) {
+            boolean read = (xferReq[i] & T_READ_MASK) != 0;
+            if (pos + (read ? 1 : 5) > bytes.length
+                    || (read && 3 + (reads + 1) * 4 > bytes.length)) {
+                break;
+            }
+            bytes[pos++] = xferReq[i];
+            if (read) {
+                reads++;
+            } else {
+                long reg = xferData[i];
+                bytes[pos++] = (byte) ((reg >> 0) & 0xFF);
+                bytes[pos++] = (byte) ((reg >> 8) & 0xFF);
+                bytes[pos++] = (byte) ((reg >> 16) & 0xFF);
+                bytes[pos++] = (byte) ((reg >> 24) & 0xFF);
+            }
+            i++;
+        }
+
         bytes[0] = CMD_DAP_Transfer;
         bytes[1] = 0x00; // DAP Index - ignored for SWD
-        bytes[2] = 0x01; // Transfer count = 1
-        bytes[3] = (byte) (T_AP_MASK | T_WRITE_MASK | addr); // Transfer request
-        bytes[4] = (byte) ((reg >> 0) & 0xFF);
-        bytes[5] = (byte) ((reg >> 8) & 0xFF);
-        bytes[6] = (byte) ((reg >> 16) & 0xFF);
-        bytes[7] = (byte) ((reg >> 24) & 0xFF);
+        bytes[2] = (byte) (i - start); // Transfer count
+        packLen = pos;
+        return i;
+    }
 
-        if (usb.usbXfer(bytes, 8)) {
-            if (bytes[0] == CMD_DAP_Transfer && bytes[1] == 1
-                    && ((int) bytes[2] & 0x01) == 0x01) {
-                return true;
+    /**
+     * Starts a pipelined operation. Read data goes to, and write data is
+     * taken from, 'data'.
+     */
+    private void pipeStart(byte[] data) {
+        pipeData = data;
+        pipeOk = true;
+        xferStatus = XFER_OK;
+    }
+
+    /**
+     * Receives the response of the oldest packet in flight and checks it.
+     */
+    private void pipeReceive() {
+        int slot = pipeHead;
+        int done;
+
+        if (!usb.usbReceive(bytes)) {
+            pipeFailed(XFER_ERROR);
+        } else if (pipeKind[slot] == PIPE_TRANSFER) {
+            done = bytes[1] & 0xFF;
+            metrics.ack(bytes[2]);
+            if (bytes[0] != CMD_DAP_Transfer || done != pipeCount[slot]
+                    || (bytes[2] & ACK_MASK) != ACK_OK) {
+                pipeFailed(bytes[2]);
+            }
+        } else {
+            done = (bytes[1] & 0xFF) | ((bytes[2] & 0xFF) << 8);
+            metrics.ack(bytes[3]);
+            if (bytes[0] != CMD_DAP_TransferBlock || done != pipeCount[slot]
+                    || (bytes[3] & ACK_MASK) != ACK_OK) {
+                pipeFailed(bytes[3]);
+            } else if (pipeKind[slot] == PIPE_READ) {
+                System.arraycopy(bytes, 4, pipeData, pipeOff[slot],
+                        done * 4);
             }
+        }
+
+        pipeHead = (pipeHead + 1) % MAX_PIPE;
+        pipePending--;
+    }
 
+    /**
+     * Records the first failure of a pipelined operation.
+     */
+    private void pipeFailed(int ack) {
+        if (pipeOk) {
+            setStatus(ack);
+            pipeOk = false;
         }
-        return false;
+    }
+
+    /**
+     * Makes room for one more packet in flight. Must be called before the
+     * packet is built, since receiving reuses bytes[].
+     */
+    private void pipeReserve() {
+        while (pipePending > 0 && (pipePending >= usb.getPipelineDepth()
+                || pipePending >= MAX_PIPE)) {
+            pipeReceive();
+        }
+    }
+
+    private void pipeSubmit(int kind, int off, int count, int length) {
+        if (!usb.usbSubmit(bytes, length)) {
+            pipeFailed(XFER_ERROR);
+            return;
+        }
+        int slot = (pipeHead + pipePending) % MAX_PIPE;
+        pipeKind[slot] = kind;
+        pipeOff[slot] = off;
+        pipeCount[slot] = count;
+        pipePending++;
+    }
+
+    /**
+     * Submits the queued transfers without waiting for the responses.
+     * Read data of queued reads is not returned.
+     */
+    private void pipeTransfers() {
+        int i = 0;
+        while (i < xferCount && pipeOk) {
+            int start = i;
+            pipeReserve();
+            i = packTransfers(start);
+            pipeSubmit(PIPE_TRANSFER, 0, i - start, packLen);
+        }
+        xferCount = 0;
+    }
+
+    /**
+     * Submits a DAP_TransferBlock of 'words' words on AP DRW, to or from
+     * pipeData at 'off'. The words must fit in one packet.
+     */
+    private void pipeBlock(boolean read, int off, int words) {
+        pipeReserve();
+
+        bytes[0] = CMD_DAP_TransferBlock;
+        bytes[1] = 0x00; // DAP Index - ignored for SWD
+        bytes[2] = (byte) (words & 0xFF); // Transfer count
+        bytes[3] = (byte) ((words >> 8) & 0xFF);
+        bytes[4] = (byte) (T_AP_MASK | (read ? T_READ_MASK : T_WRITE_MASK)
+                | AP_DRW);
+        if (!read) {
+            System.arraycopy(pipeData, off, bytes, 5, words * 4);
+        }
+
+        for (int i = 0; i < words; i++) {
+            drwAccessed();
+        }
+
+        pipeSubmit(read ? PIPE_READ : PIPE_WRITE, off, words,
+                read ? 5 : 5 + words * 4);
+    }
+
+    /**
+     * Waits for all packets in flight.
+     *
+     * @return True if all responses since pipeStart() were OK.
+     */
+    private boolean pipeDrain() {
+        while (pipePending > 0) {
+            pipeReceive();
+        }
+        if (!pipeOk) {
+            recover();
+        }
+        return pipeOk;
+    }
+
+    /**
+     * Sends all queued transfers, packed into as few DAP_Transfer packets as
+     * possible. Each packet is limited by the packet size, both for the
+     * request (1 byte per read, 5 bytes per write) and for the response
+     * (4 bytes per read). The response is split back out per transfer, and
+     * the ACK is checked for each packet. The probe stops at the first
+     * transfer that does not get an OK ACK, so the completed count tells
+     * exactly which transfer failed. After a WAIT, the batch is resumed
+     * from that transfer. After a FAULT or protocol error, the sticky
+     * errors are cleared and the batch is given up.
+     *
+     * @return True if all queued transfers were acknowledged with OK.
+     *         Details are in getTransferStatus() and getTransferCount().
+     */
+    public boolean flushTransfers() {
+        int i = 0;
+        int retries = 0;
+        boolean res = true;
+
+        xferDone = 0;
+        xferStatus = XFER_OK;
+
+        while (i < xferCount && res) {
+            int start = i;
+            i = packTransfers(start);
+
+            if (!usb.usbXfer(bytes, packLen) || bytes[0] != CMD_DAP_Transfer) {
+                xferStatus = XFER_ERROR;
+                res = false;
+                break;
+            }
+
+            int done = bytes[1] & 0xFF;
+            metrics.ack(bytes[2]);
+            if (done != i - start || (bytes[2] & ACK_MASK) != ACK_OK) {
+                /* The transfer at index 'done' failed */
+                if (done > i - start) {
+                    done = 0;
+                }
+                setStatus(bytes[2]);
+                if (xferStatus == XFER_WAIT && retries < hostWaitRetry) {
+                    retries++;
+                    metrics.retry();
+                    i = start + done; // Resume from the failed transfer
+                } else {
+                    res = false;
+                }
+            } else {
+                xferStatus = XFER_OK; // Also after a resumed WAIT
+            }
+
+            /* Split out the read data of the completed transfers */
+            int data = 3;
+            for (int k = start; k < start + done; k++) {
+                if ((xferReq[k] & T_READ_MASK) != 0) {
+                    xferData[k] = getWord(bytes, data);
+                    data += 4;
+                }
+            }
+            xferDone += done;
+        }
+
+        xferCount = 0;
+        if (!res) {
+            recover();
+        }
+        return res;
+    }
+
+    /**
+     * Sets the transfer status from a response ACK.
+     */
+    private void setStatus(int ack) {
+        ack &= ACK_MASK;
+        if (ack == XFER_OK || ack == XFER_WAIT || ack == XFER_FAULT) {
+            xferStatus = ack;
+        } else {
+            xferStatus = XFER_ERROR;
+        }
+    }
+
+    /**
+     * Recovers after a failed transfer. The shadow registers are dropped.
+     * With a direct ABORT write, a transaction still stalled after the
+     * WAIT retries is cancelled, and after a FAULT or protocol error the
+     * sticky error flags are cleared.
+     */
+    private void recover() {
+        invalidateCache();
+        if (xferStatus == XFER_WAIT) {
+            dpWriteReg(DP_ABORT, 0x00000001); // DAPABORT
+            xferStatus = XFER_WAIT;
+        } else if (xferStatus != XFER_OK) {
+            int status = xferStatus;
+            dpWriteReg(DP_ABORT, 0x0000001e); // Clear sticky error bits
+            xferStatus = status;
+        }
+    }
+
+    /**
+     * Returns the status of the last transfer operation: XFER_OK, or the
+     * XFER_WAIT, XFER_FAULT or XFER_ERROR that stopped it.
+     */
+    public int getTransferStatus() {
+        return xferStatus;
+    }
+
+    /**
+     * Returns how many queued transfers completed in the last
+     * flushTransfers().
+     */
+    public int getTransferCount() {
+        return xferDone;
+    }
+
+    /**
+     * Sets the WAIT retry policy: how many times the probe retries a
+     * transfer that gets WAIT, and then how many times a batch is resumed
+     * from the failed transfer. Sent to the probe at once if connected.
+     */
+    public boolean setWaitRetry(int probeRetries, int hostRetries) {
+        probeWaitRetry = Math.max(0, Math.min(probeRetries, 0xFFFF));
+        hostWaitRetry = Math.max(0, hostRetries);
+        return transferConfigure();
+    }
+
+    /**
+     * Sends DAP_TransferConfigure: idle cycles, WAIT retry, match retry.
+     */
+    private boolean transferConfigure() {
+        byte idle = 0;
+        int wait = probeWaitRetry;
+        short retry = 0;
+        bytes[0] = CMD_DAP_TFER_Config;
+        bytes[1] = idle;
+        bytes[2] = (byte) (wait & 0xff);
+        bytes[3] = (byte) ((wait >> 8) & 0xff);
+        bytes[4] = (byte) (retry & 0xff);
+        bytes[5] = (byte) ((retry >> 8) & 0xff);
+        return usb.usbXfer(bytes, 6) && bytes[1] == 0;
     }
 
     public String getMsgLog() {
         return msg.toString();
     }
 
-    public Dap(int buflen, Usb usb) {
+    public DapMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Dap(int buflen, DapTransport usb) {
         bytes = new byte[buflen];
         msg = new StringBuffer("");
         this.usb = usb;
+        this.metrics = usb.getMetrics();
     }
 
+    /**
+     * Returns the probe's firmware version (DAP_Info 0x04)
+     */
     public String fwVersion() {
         bytes[0] = CMD_DAP_Info;
         bytes[1] = 0x04;
-        if (usb.usbXfer(bytes, 2)) {
-            return new String(bytes, 2, bytes[1]);
+        if (usb.usbXfer(bytes, 2) && bytes[0] == CMD_DAP_Info) {
+            return new String(bytes, 2, bytes[1] & 0xFF).trim();
         }
         return new String("");
     }
 
+    /**
+     * Returns the probe's serial number (DAP_Info 0x03)
+     */
+    public String serialNumber() {
+        bytes[0] = CMD_DAP_Info;
+        bytes[1] = 0x03;
+        if (usb.usbXfer(bytes, 2) && bytes[0] == CMD_DAP_Info) {
+            return new String(bytes, 2, bytes[1] & 0xFF).trim();
+        }
+        return new String("");
+    }
+
+    /**
+     * Returns how many packets the probe can buffer (DAP_Info 0xFE),
+     * which is how many commands can be kept in flight.
+     */
+    public int packetCount() {
+        bytes[0] = CMD_DAP_Info;
+        bytes[1] = (byte) 0xFE; // Packet count
+        if (usb.usbXfer(bytes, 2)) {
+            if (bytes[0] == CMD_DAP_Info && bytes[1] == 1 && bytes[2] != 0) {
+                return bytes[2] & 0xFF;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the probe's max packet size (DAP_Info 0xFF), or 0.
+     */
+    public int packetSize() {
+        bytes[0] = CMD_DAP_Info;
+        bytes[1] = (byte) 0xFF; // Packet size
+        if (usb.usbXfer(bytes, 2)) {
+            if (bytes[0] == CMD_DAP_Info && bytes[1] == 2) {
+                return (bytes[2] & 0xFF) | ((bytes[3] & 0xFF) << 8);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the probe's capabilities (DAP_Info 0xF0), CAP_ bits.
+     */
+    public int capabilities() {
+        bytes[0] = CMD_DAP_Info;
+        bytes[1] = (byte) 0xF0; // Capabilities
+        if (usb.usbXfer(bytes, 2)) {
+            if (bytes[0] == CMD_DAP_Info && bytes[1] >= 1) {
+                return bytes[2] & 0xFF;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sends a SWO command with a one byte parameter and checks the status.
+     */
+    private boolean swoCommand(byte cmd, int param) {
+        bytes[0] = cmd;
+        bytes[1] = (byte) param;
+        return usb.usbXfer(bytes, 2) && bytes[0] == cmd && bytes[1] == 0;
+    }
+
+    public boolean swoTransport(int transport) {
+        return swoCommand(CMD_DAP_SWO_Transport, transport);
+    }
+
+    public boolean swoMode(int mode) {
+        return swoCommand(CMD_DAP_SWO_Mode, mode);
+    }
+
+    public boolean swoControl(boolean start) {
+        return swoCommand(CMD_DAP_SWO_Control, start ? 1 : 0);
+    }
+
+    /**
+     * Sets the SWO baudrate.
+     *
+     * @return The actual baudrate, or 0 if not supported.
+     */
+    public int swoBaudrate(int baud) {
+        bytes[0] = CMD_DAP_SWO_Baudrate;
+        bytes[1] = (byte) (baud & 0xff);
+        bytes[2] = (byte) ((baud >> 8) & 0xff);
+        bytes[3] = (byte) ((baud >> 16) & 0xff);
+        bytes[4] = (byte) ((baud >> 24) & 0xff);
+        if (usb.usbXfer(bytes, 5) && bytes[0] == CMD_DAP_SWO_Baudrate) {
+            return (int) getWord(bytes, 1);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the SWO trace status byte (bit 0 = active), or -1.
+     */
+    public int swoStatus() {
+        bytes[0] = CMD_DAP_SWO_Status;
+        if (usb.usbXfer(bytes, 1) && bytes[0] == CMD_DAP_SWO_Status) {
+            return bytes[1] & 0xFF;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads buffered SWO trace data with DAP_SWO_Data into 'dst'.
+     * Trace errors and overruns are logged.
+     *
+     * @return Number of bytes read, or -1.
+     */
+    public int swoData(byte[] dst, int off, int max) {
+        int count = Math.min(max, bytes.length - 4);
+
+        bytes[0] = CMD_DAP_SWO_Data;
+        bytes[1] = (byte) (count & 0xff);
+        bytes[2] = (byte) ((count >> 8) & 0xff);
+        if (!usb.usbXfer(bytes, 3) || bytes[0] != CMD_DAP_SWO_Data) {
+            return -1;
+        }
+
+        int status = bytes[1] & 0xFF;
+        if ((status & (SWO_STATUS_ERROR | SWO_STATUS_OVERRUN)) != 0) {
+            msg.append(String.format("SWO status 0x%02x\n", status));
+        }
+        count = Math.min((bytes[2] & 0xFF) | ((bytes[3] & 0xFF) << 8), count);
+        System.arraycopy(bytes, 4, dst, off, count);
+        return count;
+    }
+
     public long idCode() {
         // Read IDCODE (DPIDR)
         return dpReadReg(DP_IDR);
     }
 
+    /**
+     * Returns the IDR of AP 0. The debug domain is powered up by connect().
+     */
     public long coreId() {
-        dpWriteReg(DP_CTRL, 0x50000000);
-        dpWriteReg(DP_ABORT, 0x0000001e); // Clear sticky error bits
-        dpReadReg(DP_CTRL);
-        dpWriteReg(DP_SELECT, 0x000000f0); // AP = 1111 ?
-        return apBlockReadReg(AP_DRW);
+        dpWriteReg(DP_SELECT, 0x000000f0); // AP 0, bank 0xF
+        return apBlockReadReg(AP_DRW);     // IDR at 0xFC
     }
 
     public long cpuId() {
-        dpWriteReg(DP_SELECT, 0x00000000);
-        apWriteReg(AP_CSW, 0x23000002); // Configure 32-bit access
-        apWriteReg(AP_TAR, 0xe000ed00); // 0xe000ed00 = CPUID address 
-        return apBlockReadReg(AP_DRW);
+        return readAddr(0xe000ed00); // 0xe000ed00 = CPUID address
     }
     
     public long readAddr(long addr) {
-        dpWriteReg(DP_SELECT, 0x00000000);
-        apWriteReg(AP_CSW, 0x23000002); // Configure 32-bit access
-        apWriteReg(AP_TAR, addr);       // Place address in TAR
-        return apBlockReadReg(AP_DRW);  // Read from address
+        int slot = queueReadAddr(addr);
+        if (flushTransfers()) {
+            return getTransferData(slot);
+        }
+        return 0;
     }
     
     public boolean writeAddr(long addr, long value)
     {
-        dpWriteReg(DP_SELECT, 0x00000000);
-        apWriteReg(AP_CSW, 0x23000002); // Configure 32-bit access
-        apWriteReg(AP_TAR, addr);       // Place address in TAR
-        apWriteReg(AP_DRW, value);      // Write to address
-        dpReadReg(DP_CTRL);
-        return true;
+        queueWriteAddr(addr, value);
+        int slot = queueDpRead(DP_CTRL);
+        return flushTransfers() && checkSticky(getTransferData(slot));
+    }
+
+    /**
+     * Points TAR at DHCSR and selects AP bank 1, so that DHCSR, DCRSR and
+     * DCRDR can be accessed through BD0-BD2 without further TAR writes.
+     */
+    private void queueCoreRegSetup() {
+        queueDpWrite(DP_SELECT, 0x00000000);
+        queueApWrite(AP_CSW, CSW_32BIT);
+        queueApWrite(AP_TAR, DHCSR_ADDR);
+        queueDpWrite(DP_SELECT, SELECT_BANK1);
+    }
+
+    /**
+     * Queues one core register read: DCRSR write, DHCSR read (for S_REGRDY)
+     * and DCRDR read. Returns the DCRDR slot, the DHCSR slot is the one
+     * before it.
+     */
+    private int queueCoreRegRead(int sel) {
+        queueApWrite(AP_BD1, sel);   // DCRSR
+        queueApRead(AP_BD0);         // DHCSR
+        return queueApRead(AP_BD2);  // DCRDR
+    }
+
+    /**
+     * Checks the DHCSR value read before a DCRDR read.
+     */
+    private boolean coreRegReady(int slot) {
+        return (getTransferData(slot - 1) & S_REGRDY) != 0;
     }
 
     public long readCoreReg(int reg)
     {
-        // Write to Debug Core Register Selector Register (DCRSR)
-        writeAddr(0xE000EDF4, (byte)reg);
-        return readAddr(0xE000EDF8); // Read DCRDR
+        for (int retry = 0; retry < 3; retry++) {
+            if (retry > 0) {
+                metrics.retry();
+            }
+            queueCoreRegSetup();
+            int slot = queueCoreRegRead(reg);
+            if (!flushTransfers()) {
+                break;
+            }
+            if (coreRegReady(slot)) {
+                return getTransferData(slot);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes core registers of a halted core in one batch: for each, a
+     * DCRDR write through BD2, a DCRSR write through BD1 and a DHCSR read
+     * through BD0 to check S_REGRDY. The batch is repeated if a register
+     * was not ready.
+     */
+    public boolean writeCoreRegs(int[] sel, int[] values, int count) {
+        for (int retry = 0; retry < 3; retry++) {
+            int first = -1;
+            boolean ready = true;
+
+            if (retry > 0) {
+                metrics.retry();
+            }
+            queueCoreRegSetup();
+            for (int i = 0; i < count; i++) {
+                queueApWrite(AP_BD2, values[i] & 0xFFFFFFFFL); // DCRDR
+                queueApWrite(AP_BD1, sel[i] | REGWNR);         // DCRSR
+                int slot = queueApRead(AP_BD0);                // DHCSR
+                if (i == 0) {
+                    first = slot;
+                }
+            }
+            if (!flushTransfers()) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if ((getTransferData(first + i * 3) & S_REGRDY) == 0) {
+                    ready = false;
+                }
+            }
+            if (ready) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean writeCoreReg(int reg, long value) {
+        return writeCoreRegs(new int[] { reg }, new int[] { (int) value }, 1);
+    }
+
+    /**
+     * Returns true if the core is halted (DHCSR.S_HALT).
+     */
+    public boolean isHalted() {
+        return (readAddr(DHCSR_ADDR) & S_HALT) != 0;
+    }
+
+    /**
+     * Waits for a running core to halt. DHCSR is polled with exponential
+     * back-off, from 1 ms up to HALT_POLL_MAX_MS between reads, so a long
+     * wait does not flood the probe. The core is halted on timeout.
+     *
+     * @return True if it halted within 'timeoutMs'.
+     */
+    public boolean waitHalted(int timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int period = 1;
+
+        while (!isHalted()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left < 0) {
+                halt();
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(period, left + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                halt();
+                return false;
+            }
+            period = Math.min(period * 2, HALT_POLL_MAX_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Reads DHCSR.
+     *
+     * @return The register value, or -1 on failure.
+     */
+    public long readDhcsr() {
+        int slot = queueReadAddr(DHCSR_ADDR);
+        if (flushTransfers()) {
+            return getTransferData(slot);
+        }
+        return -1;
+    }
+
+    /**
+     * Reads and clears DFSR (why the core halted), in one round trip.
+     *
+     * @return The register value, or -1 on failure.
+     */
+    public long takeDfsr() {
+        int slot = queueReadAddr(DFSR_ADDR);
+        queueWriteAddr(DFSR_ADDR, 0x1F);    // Write 1 to clear
+        if (flushTransfers()) {
+            return getTransferData(slot);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the core has an FPU (MVFR0 is non-zero).
+     */
+    public boolean hasFpu() {
+        if (fpuPresent < 0) {
+            fpuPresent = (readAddr(MVFR0_ADDR) != 0) ? 1 : 0;
+            coreRegSel = null;
+        }
+        return fpuPresent == 1;
+    }
+
+    /**
+     * Reads all core registers of a halted core, in one batch of
+     * transfers (a few packets). The order is R0-R15, xPSR, MSP, PSP,
+     * CONTROL/FAULTMASK/BASEPRI/PRIMASK and, with an FPU, FPSCR and
+     * S0-S31. Registers that were not ready (S_REGRDY) are re-read.
+     *
+     * @return The register values, or null if the core is not halted
+     *         or the transfers failed.
+     */
+    public int[] readAllCoreRegs() {
+        boolean fpu = hasFpu();
+
+        if (coreRegSel == null) {
+            coreRegSel = new int[CORE_REGS + (fpu ? FPU_REGS : 0)];
+            for (int i = 0; i < 16; i++) {
+                coreRegSel[i] = i;         // R0-R15
+            }
+            coreRegSel[16] = 16;           // xPSR
+            coreRegSel[17] = 17;           // MSP
+            coreRegSel[18] = 18;           // PSP
+            coreRegSel[19] = 20;           // CONTROL/FAULTMASK/BASEPRI/PRIMASK
+            if (fpu) {
+                coreRegSel[CORE_REGS] = 33; // FPSCR
+                for (int i = 0; i < 32; i++) {
+                    coreRegSel[CORE_REGS + 1 + i] = 64 + i; // S0-S31
+                }
+            }
+        }
+
+        int[] regs = new int[coreRegSel.length];
+        int first;
+
+        queueCoreRegSetup();
+        first = queueCoreRegRead(coreRegSel[0]);
+        for (int i = 1; i < coreRegSel.length; i++) {
+            queueCoreRegRead(coreRegSel[i]);
+        }
+        if (!flushTransfers() || (getTransferData(first - 1) & S_HALT) == 0) {
+            return null;
+        }
+
+        for (int i = 0; i < coreRegSel.length; i++) {
+            int slot = first + i * 3;
+            if (coreRegReady(slot)) {
+                regs[i] = (int) getTransferData(slot);
+            } else {
+                regs[i] = (int) readCoreReg(coreRegSel[i]);
+            }
+        }
+        return regs;
     }
     
     public boolean halt() {
-        dpWriteReg(DP_SELECT, 0x00000000);
-        apWriteReg(AP_CSW, 0x23000002);
-        // 0xe000edf0 = Debug Halting Control and Status Register
-        apWriteReg(AP_TAR, 0xe000edf0);
         // Debug Key. 0xA05F must be written whenever this register is written.
-        apWriteReg(AP_DRW, 0xa05f0003); // C_HALT | C_DEBUGEN
-        dpReadReg(DP_CTRL);
-        return true;
+        queueWriteAddr(DHCSR_ADDR, 0xa05f0003); // C_HALT | C_DEBUGEN
+        int slot = queueDpRead(DP_CTRL);
+        return flushTransfers() && checkSticky(getTransferData(slot));
     }
 
     public boolean run() {
-        dpWriteReg(DP_SELECT, 0x00000000);
-        apWriteReg(AP_CSW, 0x23000002);
-
-        apWriteReg(AP_TAR, 0xe000edf0);
         // Debug Key. 0xA05F must be written whenever this register is written.
-        apWriteReg(AP_DRW, 0xa05f0001); // C_DEBUGEN
-        dpReadReg(DP_CTRL);
+        queueWriteAddr(DHCSR_ADDR, 0xa05f0001); // C_DEBUGEN
+        int slot = queueDpRead(DP_CTRL);
+        return flushTransfers() && checkSticky(getTransferData(slot));
+    }
+
+    /**
+     * Single steps a halted core one instruction.
+     * DHCSR is read back in the same packet to see that it halted again.
+     */
+    public boolean step() {
+        queueWriteAddr(DHCSR_ADDR, 0xa05f0005); // C_STEP | C_DEBUGEN
+        int slot = queueReadAddr(DHCSR_ADDR);
+        return flushTransfers() && (getTransferData(slot) & S_HALT) != 0;
+    }
+
+    /**
+     * Single steps a halted core 'n' instructions, and records the PC after
+     * each step in 'trace'. Up to STEP_BATCH steps are sent per flush: for
+     * each, a C_STEP write and an S_HALT check through BD0, and a PC read
+     * (DCRSR, DHCSR, DCRDR), without TAR writes in between.
+     *
+     * @return The number of steps done, or -1 on a transfer error.
+     */
+    public int step(int n, int[] trace) {
+        return stepTrace(trace, n, STEP_BATCH, 0, 0, false);
+    }
+
+    /**
+     * Single steps until the PC leaves [start, end), or 'max' steps.
+     * One step per round trip, so that no step is taken past the exit.
+     *
+     * @return The number of steps done, or -1 on a transfer error.
+     */
+    public int stepWhileIn(long start, long end, int max, int[] trace) {
+        return stepTrace(trace, max, 1, start, end, false);
+    }
+
+    /**
+     * Single steps until the PC is 'addr', or 'max' steps.
+     * One step per round trip, so that no step is taken past the address.
+     *
+     * @return The number of steps done, or -1 on a transfer error.
+     */
+    public int stepTo(long addr, int max, int[] trace) {
+        return stepTrace(trace, max, 1, addr, addr + 1, true);
+    }
+
+    /**
+     * Steps up to 'max' times, 'batch' steps per flush. With a range, stops
+     * after the step where the PC is inside it ('stopInside') or outside.
+     * Also stops if a step did not halt (or the PC was not readable).
+     */
+    private int stepTrace(int[] trace, int max, int batch, long start,
+                          long end, boolean stopInside) {
+        int done = 0;
+        boolean range = end > start;
+
+        max = Math.min(max, trace.length);
+        while (done < max) {
+            int count = Math.min(batch, max - done);
+
+            queueCoreRegSetup();
+            for (int i = 0; i < count; i++) {
+                queueApWrite(AP_BD0, 0xa05f0005);   // C_STEP | C_DEBUGEN
+                stepHaltSlot[i] = queueApRead(AP_BD0);
+                stepPcSlot[i] = queueCoreRegRead(PC_REG);
+            }
+            if (!flushTransfers()) {
+                return -1;
+            }
+
+            for (int i = 0; i < count; i++) {
+                if ((getTransferData(stepHaltSlot[i]) & S_HALT) == 0
+                        || !coreRegReady(stepPcSlot[i])) {
+                    msg.append("Step did not halt\n");
+                    halt();
+                    return done;
+                }
+                long pc = getTransferData(stepPcSlot[i]);
+                trace[done++] = (int) pc;
+                if (range && (pc >= start && pc < end) == stopInside) {
+                    return done;
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Sets the SWD clock (in Hz, full 32-bit value).
+     */
+    public boolean setClock(int hz) {
+        bytes[0] = CMD_DAP_SWJ_Clock;
+        bytes[1] = (byte) (hz & 0xff);
+        bytes[2] = (byte) ((hz >> 8) & 0xff);
+        bytes[3] = (byte) ((hz >> 16) & 0xff);
+        bytes[4] = (byte) ((hz >> 24) & 0xff);
+        if (usb.usbXfer(bytes, 5)) {
+            if (bytes[0] == CMD_DAP_SWJ_Clock && bytes[1] == 0) {
+                clock = hz;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets the SWD clock used by the next connect(), without sending it.
+     */
+    public void setConnectClock(int hz) {
+        clock = hz;
+    }
+
+    /**
+     * Finds the fastest working SWD clock. Starts high and steps down,
+     * re-connecting at each clock, until repeated IDCODE reads and ROM
+     * table reads match the values read at the current (working) clock.
+     * If no faster clock works, the current clock is checked the same way.
+     *
+     * @return The chosen clock in Hz, or 0 if no clock could be verified
+     *         (the current clock is then kept).
+     */
+    public int autoTuneClock() {
+        int safe = clock;
+        byte[] ref = new byte[64];
+        byte[] buf = new byte[64];
+        long id = idCode();
+
+        if (id == 0 || !readMemory(ROM_TABLE, ref, 0, ref.length)) {
+            return 0;
+        }
+
+        for (int hz : TUNE_CLOCKS) {
+            if (hz <= safe) {
+                break;
+            }
+            clock = hz;
+            connect();
+            if (verifyClock(id, ref, buf)) {
+                msg.append("SWD clock " + (hz / 1000) + " kHz\n");
+                return clock;
+            }
+        }
+
+        clock = safe;
+        connect();
+        if (verifyClock(id, ref, buf)) {
+            return clock;
+        }
+        msg.append("SWD clock not verified\n");
+        return 0;
+    }
+
+    /**
+     * Checks the link at the current clock: IDCODE and the ROM table are
+     * read TUNE_PASSES times and must match the reference values.
+     */
+    private boolean verifyClock(long id, byte[] ref, byte[] buf) {
+        for (int pass = 0; pass < TUNE_PASSES; pass++) {
+            int first = queueDpRead(DP_IDR);
+            for (int i = 1; i < 4; i++) {
+                queueDpRead(DP_IDR);
+            }
+            if (!flushTransfers()) {
+                return false;
+            }
+            for (int i = 0; i < 4; i++) {
+                if (getTransferData(first + i) != id) {
+                    return false;
+                }
+            }
+            Arrays.fill(buf, (byte) 0);
+            if (!readMemory(ROM_TABLE, buf, 0, buf.length)
+                    || !Arrays.equals(ref, buf)) {
+                return false;
+            }
+        }
         return true;
     }
 
     public boolean disconnect() {
+        invalidateCache();
         bytes[0] = CMD_DAP_Disconnect; 
         return usb.usbXfer(bytes, 1);
     }
 
-    public boolean connect() {
-        bytes[0] = CMD_DAP_Connect;
-        bytes[1] = 1; // 0=JTAG, SWD=1
+    /**
+     * Returns true if the probe supports DAP_ExecuteCommands, which came
+     * with CMSIS-DAP 1.1 (firmware version "1.10" or later).
+     */
+    private boolean supportsExecute() {
+        if (execSupported < 0) {
+            setFwVersion(fwVersion());
+        }
+        return execSupported == 1;
+    }
 
-        if (usb.usbXfer(bytes, 2)) {
-            if (bytes[0] == CMD_DAP_Connect && bytes[1] == 1) {
-                msg.append("SWD connected\n");
+    /**
+     * Tells a known firmware version (see fwVersion()), so that it does not
+     * have to be queried.
+     */
+    public void setFwVersion(String version) {
+        String[] v = version.trim().split("\\.");
+        execSupported = 0;
+        try {
+            int major = Integer.parseInt(v[0]);
+            int minor = v.length > 1 && v[1].length() > 0
+                    ? v[1].charAt(0) - '0' : 0;
+            if (major > 1 || (major == 1 && minor >= 1)) {
+                execSupported = 1;
+            }
+        } catch (NumberFormatException e) {
+            // Unknown version format, use single commands
+        }
+    }
+
+    /**
+     * Adds a command to the batch, with the length of its response.
+     */
+    private void batchAdd(int respLen, int... cmd) {
+        byte[] c = new byte[cmd.length];
+        for (int i = 0; i < cmd.length; i++) {
+            c[i] = (byte) cmd[i];
+        }
+        batchCmd[batchCount] = c;
+        batchResp[batchCount] = new byte[respLen];
+        batchCount++;
+    }
+
+    /**
+     * Sends the batched commands, as few DAP_ExecuteCommands packets as the
+     * packet size allows, or one by one if the probe does not support it.
+     * Each response is split back out into batchResp[].
+     *
+     * @return True if all packets were transferred.
+     */
+    private boolean batchRun() {
+        int i = 0;
+        boolean res = true;
+
+        while (i < batchCount && res && supportsExecute()) {
+            int start = i;
+            int pos = 2;
+            int respLen = 2;
+
+            while (i < batchCount && i - start < 255
+                    && pos + batchCmd[i].length <= bytes.length
+                    && respLen + batchResp[i].length <= bytes.length) {
+                System.arraycopy(batchCmd[i], 0, bytes, pos,
+                        batchCmd[i].length);
+                pos += batchCmd[i].length;
+                respLen += batchResp[i].length;
+                i++;
+            }
+            bytes[0] = CMD_DAP_ExecuteCommands;
+            bytes[1] = (byte) (i - start);
+
+            if (!usb.usbXfer(bytes, pos)) {
+                res = false;
+            } else if (bytes[0] != CMD_DAP_ExecuteCommands) {
+                execSupported = 0; // Not supported after all
+                i = start;
             } else {
-                msg.append("SWD not connected\n");
+                pos = 2;
+                for (int k = start; k < i; k++) {
+                    System.arraycopy(bytes, pos, batchResp[k], 0,
+                            batchResp[k].length);
+                    pos += batchResp[k].length;
+                }
             }
         }
 
-        short clock = 100; // khz
-        clock *= 1000; // hz
-        bytes[0] = CMD_DAP_SWJ_Clock;
-        bytes[1] = (byte) (clock & 0xff);
-        bytes[2] = (byte) ((clock >> 8) & 0xff);
-        usb.usbXfer(bytes, 3);
+        // One by one
+        while (i < batchCount && res) {
+            System.arraycopy(batchCmd[i], 0, bytes, 0, batchCmd[i].length);
+            res = usb.usbXfer(bytes, batchCmd[i].length);
+            System.arraycopy(bytes, 0, batchResp[i], 0, batchResp[i].length);
+            i++;
+        }
 
-        byte idle = 0;
-        short wait = 64;
-        short retry = 0;
-        bytes[0] = CMD_DAP_TFER_Config;
-        bytes[1] = idle;
-        bytes[2] = (byte) (wait & 0xff);
-        bytes[3] = (byte) ((wait >> 8) & 0xff);
-        bytes[4] = (byte) (retry & 0xff);
-        bytes[5] = (byte) ((retry >> 8) & 0xff);
-        usb.usbXfer(bytes, 6);
+        batchCount = 0;
+        return res;
+    }
 
-        bytes[0] = CMD_DAP_SWD_Config; 
-        bytes[1] = 0; // ?
-        usb.usbXfer(bytes, 2);
+    /**
+     * Adds the connect sequence to the batch, ending with an IDCODE read.
+     *
+     * @return The batch index of the DAP_Connect command.
+     */
+    private int batchConnect() {
+        int first = batchCount;
 
+        batchAdd(2, CMD_DAP_Connect, 1); // 0=JTAG, SWD=1
+        batchAdd(2, CMD_DAP_SWJ_Clock, clock, clock >> 8, clock >> 16,
+                clock >> 24);
+        batchAdd(2, CMD_DAP_TFER_Config, 0, probeWaitRetry,
+                probeWaitRetry >> 8, 0, 0); // Idle, WAIT retry, match retry
+        batchAdd(2, CMD_DAP_SWD_Config, 0);
         // Reset sequence 50 '1'
-        bytes[0] = CMD_DAP_SWJ_Seq;
-        bytes[1] = 7 * 8;
-        bytes[2] = (byte) 0xFF;
-        bytes[3] = (byte) 0xFF;
-        bytes[4] = (byte) 0xFF;
-        bytes[5] = (byte) 0xFF;
-        bytes[6] = (byte) 0xFF;
-        bytes[7] = (byte) 0xFF;
-        bytes[8] = (byte) 0xFF;
-        usb.usbXfer(bytes, 9);
-
+        batchAdd(2, CMD_DAP_SWJ_Seq, 7 * 8, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF,
+                0xFF, 0xFF);
         // 16bit JTAG-SWD sequence
-        bytes[0] = CMD_DAP_SWJ_Seq;
-        bytes[1] = 2 * 8;
-        bytes[2] = (byte) 0x9E;
-        bytes[3] = (byte) 0xE7;
-        usb.usbXfer(bytes, 4);
-
+        batchAdd(2, CMD_DAP_SWJ_Seq, 2 * 8, 0x9E, 0xE7);
         // Reset sequence 50 '1' (again)
-        bytes[0] = CMD_DAP_SWJ_Seq;
-        bytes[1] = 7 * 8;
-        bytes[2] = (byte) 0xFF;
-        bytes[3] = (byte) 0xFF;
-        bytes[4] = (byte) 0xFF;
-        bytes[5] = (byte) 0xFF;
-        bytes[6] = (byte) 0xFF;
-        bytes[7] = (byte) 0xFF;
-        bytes[8] = (byte) 0xFF;
-        usb.usbXfer(bytes, 9);
-
+        batchAdd(2, CMD_DAP_SWJ_Seq, 7 * 8, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF,
+                0xFF, 0xFF);
         // 16 cycle idle period
-        bytes[0] = CMD_DAP_SWJ_Seq;
-        bytes[1] = 2 * 8;
-        bytes[2] = 0x00;
-        bytes[3] = 0x00;
-        usb.usbXfer(bytes, 4);
+        batchAdd(2, CMD_DAP_SWJ_Seq, 2 * 8, 0x00, 0x00);
+        // Read IDCODE (required first after a line reset), clear sticky
+        // errors, request debug and system power-up and read CTRL/STAT
+        // for the ACKs. Last, since its response is shorter if it fails.
+        batchAdd(11, CMD_DAP_Transfer, 0, 4,
+                T_DP_MASK | T_READ_MASK | DP_IDR,
+                T_DP_MASK | T_WRITE_MASK | DP_ABORT, 0x1e, 0, 0, 0,
+                T_DP_MASK | T_WRITE_MASK | DP_CTRL, 0, 0, 0, 0x50,
+                T_DP_MASK | T_READ_MASK | DP_CTRL);
+        return first;
+    }
+
+    /**
+     * Checks the responses of a batched connect sequence.
+     */
+    private boolean connectDone(int first) {
+        byte[] r = batchResp[first];
+        if (r[0] == CMD_DAP_Connect && r[1] == 1) {
+            msg.append("SWD connected\n");
+        } else {
+            msg.append("SWD not connected\n");
+        }
+
+        r = batchResp[first + 8];
+        setStatus(r[2]);
+        metrics.ack(r[2]);
+        connectIdCode = 0;
+        if (r[0] != CMD_DAP_Transfer || r[1] != 4
+                || (r[2] & ACK_MASK) != ACK_OK) {
+            return false;
+        }
+        connectIdCode = getWord(r, 3);
+        return powerUp(getWord(r, 7));
+    }
+
+    /**
+     * Waits for the debug and system power-up ACKs in CTRL/STAT, which was
+     * read as 'ctrl' after the request.
+     */
+    private boolean powerUp(long ctrl) {
+        for (int i = 0; i < POWERUP_POLLS; i++) {
+            if ((ctrl & PWRUP_ACK) == PWRUP_ACK) {
+                return true;
+            }
+            ctrl = dpReadReg(DP_CTRL);
+        }
+        if ((ctrl & PWRUP_ACK) == PWRUP_ACK) {
+            return true;
+        }
+        msg.append("Debug power-up failed\n");
+        return false;
+    }
+
+    /**
+     * Returns the IDCODE read by the last connect(), or 0 if it failed.
+     */
+    public long getConnectIdCode() {
+        return connectIdCode;
+    }
 
-        // Read IDCODE (seems to be important to get halt/go working)
-        idCode();
+    /**
+     * Connects with SWD: connect, clock, transfer and SWD configuration,
+     * line reset and JTAG-to-SWD sequences, and an IDCODE read. Sent as one
+     * DAP_ExecuteCommands packet when the probe supports it.
+     */
+    public boolean connect() {
+        invalidateCache();
+        fpuPresent = -1;
 
+        connectIdCode = 0;
+        int first = batchConnect();
+        if (batchRun()) {
+            connectDone(first);
+        }
         return true;
     }
 
+    /**
+     * Resets the target with the nRESET pin, and connects again. Sent as
+     * one DAP_ExecuteCommands packet when the probe supports it.
+     */
     public boolean resetPins() {
-        // 16bit JTAG-SWD sequence
-        bytes[0] = CMD_DAP_Write_Abort;
-        bytes[1] = 2 * 8;
-        bytes[2] = 0x00;
-        bytes[3] = 0x1e;
-        usb.usbXfer(bytes, 4);
-
-        // Reset with pin
-        bytes[0] = CMD_SWJ_Pins;
-        bytes[1] = (byte) (0 << 7); // Output: nRESET
-        bytes[2] = (byte) (1 << 7); // Pin select
-        bytes[3] = 0;
-        bytes[4] = 0;
-        bytes[5] = 0;
-        bytes[6] = 0;
-        // Time in us (max 3s)
-        // 3-6 = word
-        usb.usbXfer(bytes, 7);
+        invalidateCache();
+        fpuPresent = -1;
 
+        // Clear sticky error bits: DAP index, ABORT value
+        batchAdd(2, CMD_DAP_Write_Abort, 0, 0x1e, 0, 0, 0);
+        // Reset with pin: output nRESET low, pin select nRESET, no wait.
+        // The pin is released by the disconnect.
+        batchAdd(2, CMD_SWJ_Pins, 0 << 7, 1 << 7, 0, 0, 0, 0);
         // Re-connect after reset
-        disconnect();
-        connect();
-
+        batchAdd(2, CMD_DAP_Disconnect);
+        int first = batchConnect();
+        if (batchRun()) {
+            connectDone(first);
+        }
         return true;
     }
 
@@ -0,0 +1,212 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * Low-overhead counters for the probe protocol: packets and bytes per
+ * DAP command, round-trip latency histogram, time blocked in requestWait,
+ * transfer ACKs and retries.
+ * Recording only updates primitive fields, and is done on the probe
+ * thread. A snapshot may be taken from any thread; values recorded
+ * meanwhile may or may not be included.
+ *
+ */
+public class DapMetrics {
+
+    /*
+     * Latency buckets (us), log-linear as in HdrHistogram: below
+     * 2 * SUB_BUCKETS us each value has its own bucket, above that each
+     * power of two is split into SUB_BUCKETS linear sub-buckets. A bucket
+     * is then at most 1/32 (about 3 %) wide relative to its values. The
+     * last bucket also holds everything slower than about 35 minutes.
+     */
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    public static final int BUCKETS = (32 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] commands = new long[256];
+    private final long[] latency = new long[BUCKETS];
+    private long latencyTotal = 0;  // ns
+    private long latencyMax = 0;    // ns
+    private long waitTotal = 0;     // ns blocked in requestWait
+    private long bytesOut = 0;
+    private long bytesIn = 0;
+    private long ackOk = 0;
+    private long ackWait = 0;
+    private long ackFault = 0;
+    private long ackError = 0;      // No ACK or protocol error
+    private long retries = 0;
+
+    /**
+     * Returns the latency bucket of 'us'.
+     */
+    public static int bucket(long us) {
+        if (us < 2 * SUB_BUCKETS) {
+            return (int) Math.max(us, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(us) - SUB_BITS;
+        int index = (shift + 1) * SUB_BUCKETS + (int) (us >> shift)
+                - SUB_BUCKETS;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * Returns the upper bound (exclusive, us) of latency bucket 'i'.
+     */
+    public static long bucketLimit(int i) {
+        if (i < 2 * SUB_BUCKETS) {
+            return i + 1;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        return (long) (i % SUB_BUCKETS + SUB_BUCKETS + 1) << shift;
+    }
+
+    /**
+     * Records a command packet being sent.
+     */
+    public void command(int cmd, int length) {
+        commands[cmd & 0xFF]++;
+        bytesOut += length;
+    }
+
+    /**
+     * Records a response, 'ns' after its command was sent.
+     */
+    public void response(int length, long ns) {
+        latency[bucket(ns / 1000)]++;
+        latencyTotal += ns;
+        if (ns > latencyMax) {
+            latencyMax = ns;
+        }
+        bytesIn += length;
+    }
+
+    public void requestWait(long ns) {
+        waitTotal += ns;
+    }
+
+    /**
+     * Records the ACK of a transfer response (last transfer of a packet).
+     */
+    public void ack(int ack) {
+        switch (ack & 0x0F) {
+        case 0x01:
+            ackOk++;
+            break;
+        case 0x02:
+            ackWait++;
+            break;
+        case 0x04:
+            ackFault++;
+            break;
+        default:
+            ackError++;
+            break;
+        }
+    }
+
+    public void retry() {
+        retries++;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * A copy of the metrics at one point in time.
+     */
+    public static class Snapshot {
+        public final long[] commands;
+        public final long[] latency;
+        public final long packets;
+        public final long latencyTotal;
+        public final long latencyMax;
+        public final long waitTotal;
+        public final long bytesOut;
+        public final long bytesIn;
+        public final long ackOk;
+        public final long ackWait;
+        public final long ackFault;
+        public final long ackError;
+        public final long retries;
+
+        private Snapshot(DapMetrics m) {
+            long n = 0;
+
+            commands = m.commands.clone();
+            latency = m.latency.clone();
+            for (int i = 0; i < BUCKETS; i++) {
+                n += latency[i];
+            }
+            packets = n;
+            latencyTotal = m.latencyTotal;
+            latencyMax = m.latencyMax;
+            waitTotal = m.waitTotal;
+            bytesOut = m.bytesOut;
+            bytesIn = m.bytesIn;
+            ackOk = m.ackOk;
+            ackWait = m.ackWait;
+            ackFault = m.ackFault;
+            ackError = m.ackError;
+            retries = m.retries;
+        }
+
+        /**
+         * Returns the latency (us) that 'percent' of the responses are
+         * below, as the upper bound of its bucket.
+         */
+        public long percentile(int percent) {
+            long limit = (packets * percent + 99) / 100;
+            long n = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                n += latency[i];
+                if (n >= limit && n > 0) {
+                    return bucketLimit(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append(String.format("Packets: %d, out %d B, in %d B\n",
+                    packets, bytesOut, bytesIn));
+            for (int i = 0; i < commands.length; i++) {
+                if (commands[i] != 0) {
+                    sb.append(String.format("  Cmd 0x%02x: %d\n", i,
+                            commands[i]));
+                }
+            }
+            if (packets > 0) {
+                sb.append(String.format("Latency us: avg %d, p50 <%d, "
+                        + "p99 <%d, max %d\n", latencyTotal / packets / 1000,
+                        percentile(50), percentile(99), latencyMax / 1000));
+            }
+            sb.append(String.format("requestWait: %d ms\n",
+                    waitTotal / 1000000));
+            sb.append(String.format("ACK: OK %d, WAIT %d, FAULT %d, "
+                    + "error %d, retries %d\n", ackOk, ackWait, ackFault,
+                    ackError, retries));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * Moves CMSIS-DAP command and response packets. Implemented by Usb, and
+ * by a simulated probe for benchmarks. Plain Java, so Dap can be used
+ * without Android.
+ *
+ */
+public interface DapTransport {
+
+    /**
+     * Sends 'length' bytes and waits for the response, which is placed in
+     * 'bytes'. No commands may be in flight.
+     */
+    boolean usbXfer(byte[] bytes, int length);
+
+    /**
+     * Queues a command without waiting for the response.
+     */
+    boolean usbSubmit(byte[] bytes, int length);
+
+    /**
+     * Waits for the response to the oldest command in flight.
+     */
+    boolean usbReceive(byte[] bytes);
+
+    /**
+     * Returns how many commands may be in flight.
+     */
+    int getPipelineDepth();
+
+    DapMetrics getMetrics();
+}
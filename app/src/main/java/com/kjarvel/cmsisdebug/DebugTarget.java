@@ -0,0 +1,62 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * The run control, register and memory access a debugger front end
+ * (GdbServer) or a poller (WatchList, Rtt, HaltMonitor) needs from a
+ * connected target.
+ * Implemented by ARMInfo. Called on the probe thread.
+ *
+ */
+public interface DebugTarget {
+
+    boolean cpuHalt();
+
+    boolean cpuRun();
+
+    boolean cpuStep();
+
+    boolean isHalted();
+
+    /**
+     * Reads the debug status (DHCSR), or returns -1.
+     */
+    long readDebugStatus();
+
+    /**
+     * Reads and clears the halt reason (DFSR), or returns -1.
+     */
+    long takeHaltReason();
+
+    /**
+     * Reads all core registers, see Dap.readAllCoreRegs().
+     */
+    int[] readAllCoreRegs();
+
+    boolean writeCoreRegs(int[] sel, int[] values, int count);
+
+    boolean readMemory(long addr, byte[] dst, int off, int len);
+
+    boolean writeMemory(long addr, byte[] src, int off, int len);
+
+    /**
+     * Returns the breakpoint and watchpoint manager, or null.
+     */
+    BreakpointManager getBreakpoints();
+}
@@ -0,0 +1,278 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * A CMSIS-Pack flash algorithm, parsed from an .FLM file (ELF).
+ * The PrgCode and PrgData sections are combined into one position
+ * independent blob that is loaded to target RAM. The FlashDevice
+ * description (DevDscr) gives the flash layout.
+ * See http://www.keil.com/pack/doc/CMSIS/Pack/html/algorithmFunc.html
+ *
+ */
+public class FlashAlgo {
+
+    private static final int SHT_SYMTAB = 2;
+    private static final int SHT_NOBITS = 8;
+
+    private byte[] elf;
+    private byte[] code = null;
+    private int dataOffset = 0;
+
+    /* Function offsets in the blob, -1 if not present */
+    private int init = -1;
+    private int unInit = -1;
+    private int eraseSector = -1;
+    private int programPage = -1;
+
+    /* FlashDevice description */
+    private String devName = "";
+    private long devAddr = 0;
+    private int devSize = 0;
+    private int pageSize = 0;
+    private int valEmpty = 0xFF;
+    private int timeoutProg = 100;
+    private int timeoutErase = 3000;
+    private int[] sectorSize = new int[0];
+    private long[] sectorAddr = new long[0];
+
+    private int u8(int off) {
+        return elf[off] & 0xFF;
+    }
+
+    private int u16(int off) {
+        return u8(off) | (u8(off + 1) << 8);
+    }
+
+    private int u32(int off) {
+        return u16(off) | (u16(off + 2) << 16);
+    }
+
+    private String cString(int off, int max) {
+        int len = 0;
+        while (len < max && off + len < elf.length && elf[off + len] != 0) {
+            len++;
+        }
+        return new String(elf, off, len);
+    }
+
+    /**
+     * Parses an .FLM file.
+     *
+     * @return True if it is a 32-bit little-endian ELF with PrgCode,
+     *         DevDscr and the ProgramPage and EraseSector functions.
+     */
+    public boolean parse(byte[] flm) {
+        elf = flm;
+        if (elf.length < 52 || u8(0) != 0x7F || u8(1) != 'E' || u8(2) != 'L'
+                || u8(3) != 'F' || u8(4) != 1 || u8(5) != 1) {
+            return false;
+        }
+
+        int shoff = u32(0x20);
+        int shentsize = u16(0x2E);
+        int shnum = u16(0x30);
+        int strOff = u32(shoff + u16(0x32) * shentsize + 16);
+        int symtab = -1;
+        int devDscr = -1;
+        int size = 0;
+
+        dataOffset = Integer.MAX_VALUE;
+
+        // Find the blob size, PrgData (static base) and the tables
+        for (int i = 0; i < shnum; i++) {
+            int sh = shoff + i * shentsize;
+            String name = cString(strOff + u32(sh), 32);
+            int type = u32(sh + 4);
+
+            if (name.equals("PrgCode") || name.equals("PrgData")) {
+                size = Math.max(size, u32(sh + 12) + u32(sh + 20));
+                if (name.equals("PrgData")) {
+                    dataOffset = Math.min(dataOffset, u32(sh + 12));
+                }
+            } else if (name.equals("DevDscr")) {
+                devDscr = u32(sh + 16);
+            } else if (type == SHT_SYMTAB) {
+                symtab = sh;
+            }
+        }
+
+        if (size == 0 || devDscr < 0 || symtab < 0) {
+            return false;
+        }
+        if (dataOffset == Integer.MAX_VALUE) {
+            dataOffset = size;
+        }
+
+        // Copy PrgCode and PrgData into the blob, NOBITS stays zero
+        code = new byte[(size + 3) & ~3];
+        for (int i = 0; i < shnum; i++) {
+            int sh = shoff + i * shentsize;
+            String name = cString(strOff + u32(sh), 32);
+            if ((name.equals("PrgCode") || name.equals("PrgData"))
+                    && u32(sh + 4) != SHT_NOBITS) {
+                System.arraycopy(elf, u32(sh + 16), code, u32(sh + 12),
+                        u32(sh + 20));
+            }
+        }
+
+        parseSymbols(symtab, shoff, shentsize);
+        parseDevice(devDscr);
+
+        return programPage >= 0 && eraseSector >= 0 && pageSize > 0;
+    }
+
+    private void parseSymbols(int symtab, int shoff, int shentsize) {
+        int off = u32(symtab + 16);
+        int size = u32(symtab + 20);
+        int strtab = u32(shoff + u32(symtab + 24) * shentsize + 16);
+
+        for (int sym = off; sym + 16 <= off + size; sym += 16) {
+            String name = cString(strtab + u32(sym), 32);
+            int value = u32(sym + 4);
+
+            if (name.equals("Init")) {
+                init = value;
+            } else if (name.equals("UnInit")) {
+                unInit = value;
+            } else if (name.equals("EraseSector")) {
+                eraseSector = value;
+            } else if (name.equals("ProgramPage")) {
+                programPage = value;
+            }
+        }
+    }
+
+    /**
+     * Parses the FlashDevice structure (FlashOS.h).
+     */
+    private void parseDevice(int off) {
+        int n = 0;
+
+        devName = cString(off + 2, 128);
+        devAddr = u32(off + 132) & 0xFFFFFFFFL;
+        devSize = u32(off + 136);
+        pageSize = u32(off + 140);
+        valEmpty = u8(off + 148);
+        timeoutProg = u32(off + 152);
+        timeoutErase = u32(off + 156);
+
+        while (off + 160 + n * 8 + 8 <= elf.length
+                && u32(off + 160 + n * 8) != 0xFFFFFFFF) {
+            n++;
+        }
+        sectorSize = new int[n];
+        sectorAddr = new long[n];
+        for (int i = 0; i < n; i++) {
+            sectorSize[i] = u32(off + 160 + i * 8);
+            sectorAddr[i] = u32(off + 164 + i * 8) & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * Returns the size of the sector at 'addr' (0 if outside the device).
+     * The sector table lists the first sector of each size, relative to
+     * the device address.
+     */
+    public int getSectorSize(long addr) {
+        long rel = addr - devAddr;
+        int size = 0;
+
+        if (rel < 0 || rel >= (devSize & 0xFFFFFFFFL)) {
+            return 0;
+        }
+        for (int i = 0; i < sectorAddr.length; i++) {
+            if (sectorAddr[i] <= rel) {
+                size = sectorSize[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the start of the sector containing 'addr'.
+     */
+    public long getSectorStart(long addr) {
+        long rel = addr - devAddr;
+        long base = 0;
+        int size = 0;
+
+        for (int i = 0; i < sectorAddr.length; i++) {
+            if (sectorAddr[i] <= rel) {
+                base = sectorAddr[i];
+                size = sectorSize[i];
+            }
+        }
+        if (size == 0) {
+            return addr;
+        }
+        return devAddr + base + ((rel - base) / size) * size;
+    }
+
+    public byte[] getCode() {
+        return code;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getInit() {
+        return init;
+    }
+
+    public int getUnInit() {
+        return unInit;
+    }
+
+    public int getEraseSector() {
+        return eraseSector;
+    }
+
+    public int getProgramPage() {
+        return programPage;
+    }
+
+    public String getDevName() {
+        return devName;
+    }
+
+    public long getDevAddr() {
+        return devAddr;
+    }
+
+    public int getDevSize() {
+        return devSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getValEmpty() {
+        return valEmpty;
+    }
+
+    public int getTimeoutProg() {
+        return timeoutProg;
+    }
+
+    public int getTimeoutErase() {
+        return timeoutErase;
+    }
+}
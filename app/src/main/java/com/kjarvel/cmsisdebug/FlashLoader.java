@@ -0,0 +1,283 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * Programs flash by running a RAM-resident flash algorithm (FlashAlgo).
+ * Algorithm functions are called by setting core registers and running
+ * the core until it returns to a breakpoint.
+ * Pages are double buffered: the next page is transferred to RAM while
+ * the target programs the current one. Sectors that already have the
+ * wanted contents (same CRC) are neither erased nor programmed.
+ * CRCs are computed on the target (TargetCrc), and programmed sectors are
+ * verified the same way.
+ *
+ * RAM layout: breakpoint | algorithm | stack | page buffer 0 | 1 | CRC
+ *
+ */
+public class FlashLoader {
+
+    private static final int FNC_PROGRAM = 2;    // Init/UnInit function code
+    private static final int HEADER_SIZE = 0x20;
+    private static final int STACK_SIZE  = 0x400;
+    private static final int XPSR_THUMB  = 0x01000000;
+
+    // BKPT #0 ; B . - functions return here (LR = ramStart | 1)
+    private static final byte[] HEADER = { 0x00, (byte) 0xBE,
+                                           (byte) 0xFE, (byte) 0xE7 };
+
+    /* Registers set for a call: R0-R3, R9 (static base), SP, LR, PC, xPSR */
+    private final int[] callRegs = { 0, 1, 2, 3, 9, 13, 14, 15, 16 };
+    private final int[] callValues = new int[callRegs.length];
+
+    private Dap dap;
+    private FlashAlgo algo;
+    private long ramStart;
+    private int ramSize;
+    private long algoBase;
+    private long stackTop;
+    private long[] pageBuf = new long[2];
+    private TargetCrc targetCrc;
+    private StringBuffer msg = new StringBuffer("");
+
+    public FlashLoader(Dap dap, FlashAlgo algo, long ramStart, int ramSize) {
+        this.dap = dap;
+        this.algo = algo;
+        this.ramStart = ramStart;
+        this.ramSize = ramSize;
+    }
+
+    public String getMsgLog() {
+        return msg.toString();
+    }
+
+    /**
+     * Halts the core and loads the breakpoint header and the algorithm.
+     */
+    private boolean load() {
+        int pageSize = algo.getPageSize();
+
+        algoBase = ramStart + HEADER_SIZE;
+        stackTop = (algoBase + algo.getCode().length + STACK_SIZE + 7) & ~7L;
+        pageBuf[0] = stackTop;
+        pageBuf[1] = stackTop + pageSize;
+        long crcBase = (pageBuf[1] + pageSize + 3) & ~3L;
+        targetCrc = new TargetCrc(dap, crcBase);
+
+        if (crcBase + TargetCrc.CODE_SIZE > ramStart + ramSize) {
+            msg.append("Flash algorithm does not fit in RAM\n");
+            return false;
+        }
+
+        if (!dap.halt() || !dap.writeMemory(ramStart, HEADER, 0, HEADER.length)
+                || !dap.writeMemory(algoBase, algo.getCode(), 0,
+                        algo.getCode().length)) {
+            msg.append("Could not load flash algorithm\n");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts an algorithm function, without waiting for it to return.
+     */
+    private boolean start(int entry, long r0, long r1, long r2) {
+        callValues[0] = (int) r0;
+        callValues[1] = (int) r1;
+        callValues[2] = (int) r2;
+        callValues[3] = 0;
+        callValues[4] = (int) (algoBase + algo.getDataOffset());
+        callValues[5] = (int) stackTop;
+        callValues[6] = (int) (ramStart | 1);
+        callValues[7] = (int) (algoBase + entry);
+        callValues[8] = XPSR_THUMB;
+
+        return dap.writeCoreRegs(callRegs, callValues, callRegs.length)
+                && dap.run();
+    }
+
+    /**
+     * Waits for a started function to return.
+     *
+     * @return The return value (R0), or -1 on timeout.
+     */
+    private long finish(int timeoutMs) {
+        if (!dap.waitHalted(timeoutMs)) {
+            return -1;
+        }
+        return dap.readCoreReg(0);
+    }
+
+    private long call(int entry, long r0, long r1, long r2, int timeoutMs) {
+        if (entry < 0) {
+            return 0; // Optional function not present
+        }
+        if (!start(entry, r0, r1, r2)) {
+            return -1;
+        }
+        return finish(timeoutMs);
+    }
+
+    /**
+     * Returns true if all bytes of a page are the erased value.
+     */
+    private boolean isEmpty(byte[] data, int off, int len) {
+        byte empty = (byte) algo.getValEmpty();
+        for (int i = off; i < off + len; i++) {
+            if (data[i] != empty) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Programs the pages of an erased sector, double buffered: while the
+     * target programs one page buffer, the next page is written to the
+     * other one.
+     */
+    private boolean programSector(long sector, byte[] data, int size) {
+        int pageSize = Math.min(algo.getPageSize(), size);
+        int timeout = algo.getTimeoutProg() * 2 + 100;
+        int next = 0;
+        int buf = 0;
+
+        // Find the first page that is not empty
+        while (next < size && isEmpty(data, next, pageSize)) {
+            next += pageSize;
+        }
+        if (next >= size) {
+            return true;
+        }
+        if (!dap.writeMemory(pageBuf[buf], data, next, pageSize)) {
+            return false;
+        }
+
+        while (next < size) {
+            int page = next;
+
+            if (!start(algo.getProgramPage(), sector + page, pageSize,
+                    pageBuf[buf])) {
+                return false;
+            }
+
+            // Transfer the next page while this one is programmed
+            next += pageSize;
+            while (next < size && isEmpty(data, next, pageSize)) {
+                next += pageSize;
+            }
+            if (next < size
+                    && !dap.writeMemory(pageBuf[buf ^ 1], data, next, pageSize)) {
+                finish(timeout);
+                return false;
+            }
+
+            if (finish(timeout) != 0) {
+                msg.append(String.format("ProgramPage failed at 0x%08x\n",
+                        sector + page));
+                return false;
+            }
+            buf ^= 1;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the parts of a sector outside [from, to) (the head and the
+     * tail that the image does not cover) into 'data'.
+     */
+    private boolean readBack(long sector, byte[] data, long from, long to) {
+        int head = (int) (from - sector);
+        int tail = (int) (to - sector);
+
+        return (head == 0 || dap.readMemory(sector, data, 0, head))
+                && (tail == data.length || dap.readMemory(to, data, tail,
+                        data.length - tail));
+    }
+
+    /**
+     * Programs 'len' bytes of 'image' to flash at 'addr'. Parts of the
+     * touched sectors outside the image keep their contents: they are read
+     * back before the erase, and programmed again.
+     *
+     * @return True if successful. Messages are in getMsgLog().
+     */
+    public boolean program(long addr, byte[] image, int off, int len) {
+        long end = addr + len;
+        long sector = algo.getSectorStart(addr);
+        int skipped = 0;
+        int programmed = 0;
+        boolean res = true;
+
+        if (!load()) {
+            return false;
+        }
+        if (call(algo.getInit(), algo.getDevAddr(), 0, FNC_PROGRAM,
+                algo.getTimeoutErase()) != 0) {
+            msg.append("Flash Init failed\n");
+            return false;
+        }
+
+        while (res && sector < end) {
+            int size = algo.getSectorSize(sector);
+            if (size == 0) {
+                msg.append(String.format("No flash sector at 0x%08x\n", sector));
+                res = false;
+                break;
+            }
+
+            // Wanted sector contents: image data, the rest as it is now
+            byte[] data = new byte[size];
+            long from = Math.max(sector, addr);
+            long to = Math.min(sector + size, end);
+            if (!readBack(sector, data, from, to)) {
+                msg.append(String.format("Could not read sector at 0x%08x\n",
+                        sector));
+                res = false;
+                break;
+            }
+            System.arraycopy(image, (int) (off + from - addr), data,
+                    (int) (from - sector), (int) (to - from));
+
+            long crc = TargetCrc.hostCrc(data, 0, size);
+            if (targetCrc.crc(sector, size) == crc) {
+                skipped++;
+            } else if (call(algo.getEraseSector(), sector, 0, 0,
+                    algo.getTimeoutErase() * 2 + 100) != 0) {
+                msg.append(String.format("EraseSector failed at 0x%08x\n",
+                        sector));
+                res = false;
+            } else {
+                res = programSector(sector, data, size);
+                programmed++;
+                if (res && targetCrc.crc(sector, size) != crc) {
+                    msg.append(String.format("Verify failed at 0x%08x\n",
+                            sector));
+                    res = false;
+                }
+            }
+            sector += size;
+        }
+
+        call(algo.getUnInit(), FNC_PROGRAM, 0, 0, algo.getTimeoutProg() + 100);
+        msg.append(targetCrc.getMsgLog());
+        msg.append(String.format("Flash: %d sectors programmed, %d unchanged\n",
+                programmed, skipped));
+        return res;
+    }
+}
@@ -0,0 +1,704 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+
+/**
+ * GDB remote serial protocol server on a loopback TCP port.
+ * One client at a time is served on a dedicated thread. All target access
+ * goes through the probe queue (ProbeExecutor), so it is ordered with the
+ * UI's commands.
+ * Small memory reads are served from a read-ahead block, since GDB reads
+ * a few bytes at a time when it unwinds the stack.
+ *
+ */
+public class GdbServer {
+
+    private final int PACKET_SIZE = 0x4000;   // Max packet data (chars)
+    private final int MAX_READ = PACKET_SIZE / 2;
+    private final int READ_AHEAD = 1024;      // Read-ahead block (bytes)
+    private final long READ_AHEAD_END = 0x40000000L; // Not in peripherals
+    private final int NUM_REGS = 17;          // R0-R15, xPSR
+    private final int POLL_MS = 20;           // Halt poll while running
+
+    private static final String TARGET_XML =
+        "<?xml version=\"1.0\"?>"
+        + "<!DOCTYPE target SYSTEM \"gdb-target.dtd\">"
+        + "<target><architecture>arm</architecture>"
+        + "<feature name=\"org.gnu.gdb.arm.m-profile\">"
+        + "<reg name=\"r0\" bitsize=\"32\"/><reg name=\"r1\" bitsize=\"32\"/>"
+        + "<reg name=\"r2\" bitsize=\"32\"/><reg name=\"r3\" bitsize=\"32\"/>"
+        + "<reg name=\"r4\" bitsize=\"32\"/><reg name=\"r5\" bitsize=\"32\"/>"
+        + "<reg name=\"r6\" bitsize=\"32\"/><reg name=\"r7\" bitsize=\"32\"/>"
+        + "<reg name=\"r8\" bitsize=\"32\"/><reg name=\"r9\" bitsize=\"32\"/>"
+        + "<reg name=\"r10\" bitsize=\"32\"/><reg name=\"r11\" bitsize=\"32\"/>"
+        + "<reg name=\"r12\" bitsize=\"32\"/>"
+        + "<reg name=\"sp\" bitsize=\"32\" type=\"data_ptr\"/>"
+        + "<reg name=\"lr\" bitsize=\"32\"/>"
+        + "<reg name=\"pc\" bitsize=\"32\" type=\"code_ptr\"/>"
+        + "<reg name=\"xpsr\" bitsize=\"32\"/>"
+        + "</feature></target>";
+
+    private final DebugTarget target;
+    private final ProbeQueue probe;
+    private final StringBuilder memoryMap = new StringBuilder();
+    private volatile boolean running = false;
+    private ServerSocket server = null;
+    private Socket client = null;
+    private InputStream in;
+    private OutputStream out;
+
+    /* Read-ahead block, dropped on anything that may change memory */
+    private byte[] cache = new byte[READ_AHEAD];
+    private long cacheAddr = 0;
+    private int cacheLen = 0;
+
+    /**
+     * Serves 'target', with all access run on 'probe'.
+     */
+    public GdbServer(DebugTarget target, ProbeQueue probe) {
+        this.target = target;
+        this.probe = probe;
+    }
+
+    /**
+     * Adds a memory region to the memory map given to GDB. Without regions,
+     * all memory is described as RAM.
+     */
+    public void addRegion(boolean flash, long start, long length,
+                          int blockSize) {
+        if (flash) {
+            memoryMap.append(String.format("<memory type=\"flash\" "
+                    + "start=\"0x%x\" length=\"0x%x\">"
+                    + "<property name=\"blocksize\">0x%x</property></memory>",
+                    start, length, blockSize));
+        } else {
+            memoryMap.append(String.format("<memory type=\"ram\" "
+                    + "start=\"0x%x\" length=\"0x%x\"/>", start, length));
+        }
+    }
+
+    /**
+     * Starts listening on 127.0.0.1:'port', on a new thread.
+     */
+    public synchronized void start(final int port) {
+        if (running) {
+            return;
+        }
+        running = true;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                serve(port);
+            }
+        }, "gdb");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops listening and closes the connection to a client.
+     */
+    public synchronized void stop() {
+        running = false;
+        close(server);
+        close(client);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void close(ServerSocket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void close(Socket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(int port) {
+        try {
+            ServerSocket s = new ServerSocket(port, 1,
+                    InetAddress.getByName("127.0.0.1"));
+            synchronized (this) {
+                server = s;
+                if (!running) {
+                    close(s);
+                }
+            }
+            while (running) {
+                Socket c = s.accept();
+                synchronized (this) {
+                    client = c;
+                }
+                try {
+                    session(c);
+                } catch (IOException e) {
+                    // Client went away
+                } finally {
+                    clearBreakpoints();
+                    close(c);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+        running = false;
+    }
+
+    private void session(Socket s) throws IOException {
+        byte[] packet;
+
+        s.setTcpNoDelay(true);
+        in = new BufferedInputStream(s.getInputStream());
+        out = s.getOutputStream();
+        cacheLen = 0;
+
+        call(new Callable<Boolean>() {
+            public Boolean call() {
+                return target.cpuHalt();
+            }
+        });
+
+        while ((packet = readPacket()) != null) {
+            String reply;
+            try {
+                reply = handle(packet);
+            } catch (RuntimeException e) {
+                reply = "E01"; // Malformed packet
+            }
+            if (reply == null) {
+                break;
+            }
+            sendPacket(reply);
+        }
+    }
+
+    /**
+     * Runs 'task' on the probe thread and waits for it.
+     *
+     * @return The result, or null if it failed.
+     */
+    private <T> T call(Callable<T> task) {
+        try {
+            return probe.submit(task).get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /* ---- Packets ---- */
+
+    /**
+     * Reads the next packet, and acknowledges it.
+     *
+     * @return The packet data, or null when the connection is closed.
+     */
+    private byte[] readPacket() throws IOException {
+        int c;
+
+        while ((c = in.read()) != '$') {
+            if (c < 0) {
+                return null;
+            }
+            // '+', '-' and a stray interrupt (0x03) while halted are ignored
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while ((c = in.read()) != '#') {
+            if (c < 0) {
+                return null;
+            }
+            data.write(c);
+        }
+        if (in.read() < 0 || in.read() < 0) {
+            return null;
+        }
+        out.write('+');
+        return data.toByteArray();
+    }
+
+    private void sendPacket(String data) throws IOException {
+        int sum = 0;
+
+        for (int i = 0; i < data.length(); i++) {
+            sum += data.charAt(i);
+        }
+        out.write(('$' + data + '#' + String.format("%02x", sum & 0xff))
+                .getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private String handle(byte[] packet) throws IOException {
+        String p;
+        try {
+            p = new String(packet, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        }
+        if (p.length() == 0) {
+            return "";
+        }
+
+        switch (p.charAt(0)) {
+        case '?':
+            return "S05";
+        case 'g':
+            return readRegisters();
+        case 'G':
+            return writeRegisters(p.substring(1));
+        case 'p':
+            return readRegister(Integer.parseInt(p.substring(1), 16));
+        case 'P':
+            return writeRegister(p.substring(1));
+        case 'm':
+            return readMemory(p.substring(1));
+        case 'M':
+            return writeMemory(p.substring(1));
+        case 'X':
+            return writeBinary(packet);
+        case 'c':
+            return cont(p.substring(1));
+        case 's':
+            return step(p.substring(1));
+        case 'Z':
+        case 'z':
+            return breakpoint(p.charAt(0) == 'Z', p.substring(1));
+        case 'q':
+            return query(p);
+        case 'H':
+            return "OK";
+        case 'D':
+            clearBreakpoints();
+            runCore();
+            sendPacket("OK");
+            return null;
+        case 'k':
+            return null;
+        default:
+            return "";
+        }
+    }
+
+    private String query(String p) {
+        if (p.startsWith("qSupported")) {
+            return String.format("PacketSize=%x;qXfer:memory-map:read+;"
+                    + "qXfer:features:read+", PACKET_SIZE);
+        }
+        if (p.equals("qAttached")) {
+            return "1";
+        }
+        if (p.startsWith("qXfer:features:read:target.xml:")) {
+            return xfer(TARGET_XML, p.substring(p.lastIndexOf(':') + 1));
+        }
+        if (p.startsWith("qXfer:memory-map:read::")) {
+            String regions = memoryMap.length() > 0 ? memoryMap.toString()
+                    : "<memory type=\"ram\" start=\"0x0\" length=\"0x100000000\"/>";
+            return xfer("<?xml version=\"1.0\"?><!DOCTYPE memory-map "
+                    + "PUBLIC \"+//IDN gnu.org//DTD GDB Memory Map V1.0//EN\" "
+                    + "\"http://sourceware.org/gdb/gdb-memory-map.dtd\">"
+                    + "<memory-map>" + regions + "</memory-map>",
+                    p.substring(p.lastIndexOf(':') + 1));
+        }
+        return "";
+    }
+
+    /**
+     * Returns the part 'offset,length' of a qXfer object.
+     */
+    private String xfer(String doc, String range) {
+        int comma = range.indexOf(',');
+        int off = Integer.parseInt(range.substring(0, comma), 16);
+        int len = Integer.parseInt(range.substring(comma + 1), 16);
+
+        if (off >= doc.length()) {
+            return "l";
+        }
+        int end = Math.min(doc.length(), off + len);
+        return (end < doc.length() ? "m" : "l") + doc.substring(off, end);
+    }
+
+    /* ---- Registers ---- */
+
+    private int[] fetchRegisters() {
+        return call(new Callable<int[]>() {
+            public int[] call() {
+                return target.readAllCoreRegs();
+            }
+        });
+    }
+
+    private boolean storeRegisters(final int[] sel, final int[] values) {
+        cacheLen = 0;
+        Boolean res = call(new Callable<Boolean>() {
+            public Boolean call() {
+                return target.writeCoreRegs(sel, values, sel.length);
+            }
+        });
+        return res != null && res;
+    }
+
+    private String readRegisters() {
+        int[] regs = fetchRegisters();
+        if (regs == null) {
+            return "E01";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NUM_REGS; i++) {
+            appendWord(sb, regs[i]);
+        }
+        return sb.toString();
+    }
+
+    private String readRegister(int n) {
+        if (n >= NUM_REGS) {
+            return "xxxxxxxx";
+        }
+        int[] regs = fetchRegisters();
+        if (regs == null) {
+            return "E01";
+        }
+        StringBuilder sb = new StringBuilder();
+        appendWord(sb, regs[n]);
+        return sb.toString();
+    }
+
+    private String writeRegisters(String hex) {
+        int n = Math.min(NUM_REGS, hex.length() / 8);
+        int[] sel = new int[n];
+        int[] values = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            sel[i] = i;
+            values[i] = parseWord(hex, i * 8);
+        }
+        return storeRegisters(sel, values) ? "OK" : "E01";
+    }
+
+    private String writeRegister(String arg) {
+        int eq = arg.indexOf('=');
+        int n = Integer.parseInt(arg.substring(0, eq), 16);
+
+        if (n >= NUM_REGS) {
+            return "E01";
+        }
+        return storeRegisters(new int[] { n },
+                new int[] { parseWord(arg, eq + 1) }) ? "OK" : "E01";
+    }
+
+    /* ---- Memory ---- */
+
+    private boolean fetch(final long addr, final byte[] dst, final int len) {
+        Boolean res = call(new Callable<Boolean>() {
+            public Boolean call() {
+                return target.readMemory(addr, dst, 0, len);
+            }
+        });
+        return res != null && res;
+    }
+
+    private boolean store(final long addr, final byte[] src, final int len) {
+        cacheLen = 0;
+        Boolean res = call(new Callable<Boolean>() {
+            public Boolean call() {
+                return target.writeMemory(addr, src, 0, len);
+            }
+        });
+        return res != null && res;
+    }
+
+    private boolean isCached(long addr, int len) {
+        return addr >= cacheAddr && addr + len <= cacheAddr + cacheLen;
+    }
+
+    private String readMemory(String arg) {
+        int comma = arg.indexOf(',');
+        long addr = Long.parseLong(arg.substring(0, comma), 16);
+        int len = Math.min(Integer.parseInt(arg.substring(comma + 1), 16),
+                MAX_READ);
+        byte[] data;
+        int off = 0;
+
+        if (!isCached(addr, len) && (addr & 3) + len <= READ_AHEAD
+                && addr + READ_AHEAD <= READ_AHEAD_END) {
+            // Small reads are coalesced into one block read. The block is
+            // dropped first, since a failed read may leave it half written.
+            cacheLen = 0;
+            if (fetch(addr & ~3L, cache, READ_AHEAD)) {
+                cacheAddr = addr & ~3L;
+                cacheLen = READ_AHEAD;
+            }
+        }
+        if (isCached(addr, len)) {
+            data = cache;
+            off = (int) (addr - cacheAddr);
+        } else {
+            data = new byte[len];
+            if (!fetch(addr, data, len)) {
+                return "E01";
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(len * 2);
+        for (int i = off; i < off + len; i++) {
+            sb.append(String.format("%02x", data[i] & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private String writeMemory(String arg) {
+        int comma = arg.indexOf(',');
+        int colon = arg.indexOf(':');
+        long addr = Long.parseLong(arg.substring(0, comma), 16);
+        int len = Integer.parseInt(arg.substring(comma + 1, colon), 16);
+        byte[] data = new byte[len];
+
+        for (int i = 0; i < len; i++) {
+            data[i] = (byte) Integer.parseInt(
+                    arg.substring(colon + 1 + i * 2, colon + 3 + i * 2), 16);
+        }
+        return len == 0 || store(addr, data, len) ? "OK" : "E01";
+    }
+
+    /**
+     * X addr,length:binary data, with '}' escapes.
+     */
+    private String writeBinary(byte[] packet) {
+        int colon = 0;
+        while (packet[colon] != ':') {
+            colon++;
+        }
+        String arg = new String(packet, 1, colon - 1);
+        int comma = arg.indexOf(',');
+        long addr = Long.parseLong(arg.substring(0, comma), 16);
+        int len = Integer.parseInt(arg.substring(comma + 1), 16);
+        byte[] data = new byte[len];
+
+        int n = 0;
+        for (int i = colon + 1; i < packet.length && n < len; i++) {
+            if (packet[i] == '}') {
+                data[n++] = (byte) (packet[++i] ^ 0x20);
+            } else {
+                data[n++] = packet[i];
+            }
+        }
+        return len == 0 || store(addr, data, n) ? "OK" : "E01";
+    }
+
+    /* ---- Execution ---- */
+
+    private boolean runCore() {
+        cacheLen = 0;
+        Boolean res = call(new Callable<Boolean>() {
+            public Boolean call() {
+                return applyBreakpoints() && target.cpuRun();
+            }
+        });
+        return res != null && res;
+    }
+
+    private String cont(String arg) throws IOException {
+        if (arg.length() > 0
+                && !storeRegisters(new int[] { 15 },
+                        new int[] { (int) Long.parseLong(arg, 16) })) {
+            return "E01";
+        }
+        if (!runCore()) {
+            return "E01";
+        }
+
+        // Wait for a halt, or an interrupt (Ctrl-C) from GDB
+        while (true) {
+            if (in.available() > 0) {
+                int c = in.read();
+                if (c == 0x03) {
+                    call(new Callable<Boolean>() {
+                        public Boolean call() {
+                            return target.cpuHalt();
+                        }
+                    });
+                    return "S02";
+                }
+            }
+            Boolean halted = call(new Callable<Boolean>() {
+                public Boolean call() {
+                    return target.isHalted();
+                }
+            });
+            if (halted == null) {
+                return "E01";
+            }
+            if (halted) {
+                return stopReply();
+            }
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                return "S02";
+            }
+        }
+    }
+
+    private String step(String arg) {
+        if (arg.length() > 0
+                && !storeRegisters(new int[] { 15 },
+                        new int[] { (int) Long.parseLong(arg, 16) })) {
+            return "E01";
+        }
+        cacheLen = 0;
+        Boolean res = call(new Callable<Boolean>() {
+            public Boolean call() {
+                return applyBreakpoints() && target.cpuStep();
+            }
+        });
+        return res != null && res ? "S05" : "E01";
+    }
+
+    /* ---- Breakpoints and watchpoints (FPB and DWT) ---- */
+
+    /**
+     * Z/z type,addr,kind. Software (0) and hardware (1) breakpoints both
+     * use the FPB, since code is usually in flash. Watchpoints (2-4) use
+     * the DWT, with 'kind' as the length.
+     * Changes are only staged here; GDB removes and re-inserts all of them
+     * around every stop, so they are written once, at the next resume.
+     */
+    private String breakpoint(final boolean set, String arg) {
+        String[] f = arg.split(",");
+        final int type = Integer.parseInt(f[0]);
+        final long addr = Long.parseLong(f[1], 16);
+        final int len = Integer.parseInt(f[2], 16);
+
+        if (type > 4) {
+            return "";
+        }
+
+        Boolean res = call(new Callable<Boolean>() {
+            public Boolean call() {
+                BreakpointManager bm = target.getBreakpoints();
+                if (bm == null) {
+                    return false;
+                }
+                if (type <= 1) {
+                    if (!set) {
+                        bm.removeBreakpoint(addr);
+                        return true;
+                    }
+                    return bm.addBreakpoint(addr);
+                }
+                int function = type == 2 ? BreakpointManager.WATCH_WRITE
+                        : type == 3 ? BreakpointManager.WATCH_READ
+                        : BreakpointManager.WATCH_ACCESS;
+                if (!set) {
+                    bm.removeWatchpoint(addr, len, function);
+                    return true;
+                }
+                return bm.addWatchpoint(addr, len, function);
+            }
+        });
+        return res != null && res ? "OK" : "E01";
+    }
+
+    /**
+     * Writes the staged breakpoint changes. Runs on the probe thread.
+     */
+    private boolean applyBreakpoints() {
+        BreakpointManager bm = target.getBreakpoints();
+        return bm == null || bm.apply();
+    }
+
+    /**
+     * Returns the stop reply for a halt: with the data address if a
+     * watchpoint matched.
+     */
+    private String stopReply() {
+        String reply = call(new Callable<String>() {
+            public String call() {
+                BreakpointManager bm = target.getBreakpoints();
+                int i = bm != null ? bm.getWatchHit() : -1;
+                if (i < 0) {
+                    return "S05";
+                }
+                int function = bm.getWatchFunction(i);
+                String kind = function == BreakpointManager.WATCH_WRITE
+                        ? "watch" : function == BreakpointManager.WATCH_READ
+                        ? "rwatch" : "awatch";
+                return String.format("T05%s:%x;", kind, bm.getWatchAddr(i));
+            }
+        });
+        return reply != null ? reply : "S05";
+    }
+
+    private void clearBreakpoints() {
+        call(new Callable<Boolean>() {
+            public Boolean call() {
+                BreakpointManager bm = target.getBreakpoints();
+                if (bm != null) {
+                    bm.clear();
+                    bm.apply();
+                }
+                return true;
+            }
+        });
+    }
+
+    /* ---- Hex ---- */
+
+    private void appendWord(StringBuilder sb, int v) {
+        for (int i = 0; i < 4; i++) {
+            sb.append(String.format("%02x", (v >> (i * 8)) & 0xff));
+        }
+    }
+
+    /**
+     * Parses a little-endian 32-bit word of 8 hex digits at 'off'.
+     */
+    private int parseWord(String hex, int off) {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v |= Integer.parseInt(hex.substring(off + i * 2, off + i * 2 + 2),
+                    16) << (i * 8);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,203 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a running core and reports when it halts, locks up or resets.
+ * DHCSR is polled on the probe thread, often right after a resume and then
+ * with exponential back-off while the core keeps running. Polls are held
+ * off while other probe commands are queued, so they never delay them.
+ *
+ */
+public class HaltMonitor {
+
+    /**
+     * Called on the probe thread. 'reason' is a set of REASON_ flags, and
+     * 'regs' the core registers (see DebugTarget.readAllCoreRegs()), or null if
+     * the core is not halted (lockup, reset) or they could not be read.
+     */
+    public interface Listener {
+        void onHalt(int reason, int[] regs);
+    }
+
+    /* Halt reasons: DFSR bits, and DHCSR status */
+    public static final int REASON_HALTED   = 0x001; // Halt request or step
+    public static final int REASON_BKPT     = 0x002; // Breakpoint
+    public static final int REASON_DWTTRAP  = 0x004; // Watchpoint
+    public static final int REASON_VCATCH   = 0x008; // Vector catch
+    public static final int REASON_EXTERNAL = 0x010; // External debug request
+    public static final int REASON_LOCKUP   = 0x100; // DHCSR.S_LOCKUP
+    public static final int REASON_RESET    = 0x200; // DHCSR.S_RESET_ST
+
+    private static final String[] REASON_NAMES = {
+        "HALTED", "BKPT", "DWTTRAP", "VCATCH", "EXTERNAL"
+    };
+
+    private final long S_HALT     = 0x00020000L; // DHCSR core halted
+    private final long S_LOCKUP   = 0x00080000L; // DHCSR core locked up
+    private final long S_RESET_ST = 0x02000000L; // DHCSR reset since last read
+    private final int MIN_PERIOD_MS = 1;
+    private final int MAX_PERIOD_MS = 200;
+
+    private final DebugTarget target;
+    private final ProbeQueue probe;
+    private Listener listener = null;
+    private ScheduledFuture<?> task = null;
+    private int period = MIN_PERIOD_MS;
+    private int generation = 0;     // Tells stale polls to stop
+    private int resetSeen = 0;      // REASON_RESET since resumed()
+
+    /**
+     * Watches 'target', polled on 'probe'.
+     */
+    public HaltMonitor(DebugTarget target, ProbeQueue probe) {
+        this.target = target;
+        this.probe = probe;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching, at the fastest rate. Call after resuming, stepping
+     * or resetting the core. Stops by itself when the core halts.
+     */
+    public synchronized void resumed() {
+        stop();
+        period = MIN_PERIOD_MS;
+        resetSeen = 0;
+        schedule(0, generation);
+    }
+
+    public synchronized void stop() {
+        generation++;
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    /**
+     * Returns the current poll period (ms).
+     */
+    public synchronized int getPeriod() {
+        return period;
+    }
+
+    /**
+     * Reads DHCSR, and on a halt or lockup the reason and registers.
+     * S_RESET_ST is cleared by the read, so a reset is remembered until
+     * the stop is reported. Polling is stopped before the listener is
+     * called. Runs on the probe thread.
+     *
+     * @return True to keep polling.
+     */
+    private boolean poll(Listener l, int gen) {
+        long dhcsr = target.readDebugStatus();
+        int reason = 0;
+        int[] regs = null;
+
+        if (dhcsr < 0) {
+            return true;    // Try again, a later command may recover
+        }
+        if ((dhcsr & S_LOCKUP) != 0) {
+            reason |= REASON_LOCKUP;
+        }
+        if ((dhcsr & S_HALT) != 0) {
+            long dfsr = target.takeHaltReason();
+            if (dfsr > 0) {
+                reason |= (int) dfsr & 0x1F;
+            }
+            regs = target.readAllCoreRegs();
+        }
+
+        synchronized (this) {
+            if (gen != generation) {
+                return false;   // Stopped meanwhile
+            }
+            if ((dhcsr & S_RESET_ST) != 0) {
+                resetSeen = REASON_RESET;
+            }
+            if ((dhcsr & (S_HALT | S_LOCKUP)) == 0) {
+                return true;    // Still running (a reset alone is not a stop)
+            }
+            reason |= resetSeen;
+            task = null;
+        }
+        if (l != null) {
+            l.onHalt(reason, regs);
+        }
+        return false;
+    }
+
+    private synchronized void schedule(long delay, final int gen) {
+        task = probe.schedule(new Runnable() {
+            public void run() {
+                Listener l;
+                synchronized (HaltMonitor.this) {
+                    if (gen != generation) {
+                        return; // Stopped
+                    }
+                    if (probe.isBusy()) {
+                        // Let queued commands run first, poll after them.
+                        // Back off also here, not to spin while they run.
+                        period = Math.min(period * 2, MAX_PERIOD_MS);
+                        schedule(period, gen);
+                        return;
+                    }
+                    l = listener;
+                }
+                boolean again = poll(l, gen);
+                synchronized (HaltMonitor.this) {
+                    if (!again || gen != generation) {
+                        return;
+                    }
+                    period = Math.min(period * 2, MAX_PERIOD_MS);
+                    schedule(period, gen);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the names of the reasons in 'reason', separated by spaces.
+     */
+    public static String reasonText(int reason) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < REASON_NAMES.length; i++) {
+            if ((reason & (1 << i)) != 0) {
+                sb.append(sb.length() > 0 ? " " : "").append(REASON_NAMES[i]);
+            }
+        }
+        if ((reason & REASON_LOCKUP) != 0) {
+            sb.append(sb.length() > 0 ? " " : "").append("LOCKUP");
+        }
+        if ((reason & REASON_RESET) != 0) {
+            sb.append(sb.length() > 0 ? " " : "").append("RESET");
+        }
+        return sb.toString();
+    }
+}
@@ -21,6 +21,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
 
 import com.kjarvel.cmsisdebug.R;
 
@@ -36,11 +37,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
+import android.graphics.Typeface;
 import android.view.Menu;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.Switch;
 import android.widget.TextView;
@@ -55,12 +58,32 @@ public class MainActivity extends Activity {
     private static final String ACTION_USB_PERMISSION =
             "com.android.example.USB_PERMISSION";
     private static final int TMO_MSG = 101;
+    private static final int CONNECT_MSG = 102;
+    private static final int HALT_MSG = 103;
+    private static final int READ_MSG = 104;
+    private static final int CLEAR_MSG = 105;
+    private static final int WATCH_MSG = 106;
+    private static final int LOG_MSG = 107;
+    private static final int SWO_MSG = 108;
+    private static final int RTT_MSG = 109;
+    private static final int WATCH_PERIOD_MS = 100;
+    private static final int SWO_BAUD = 2000000;
+    private static final long RTT_SCAN_START = 0x20000000L;
+    private static final int RTT_SCAN_SIZE = 64 * 1024;
+    private static final int LOG_MAX = 4096;     // Characters kept in the log
+    private static final int GDB_PORT = 3333;
     private PendingIntent mPermissionIntent;
     private UsbManager mUsbManager;
     private ARMInfo mARMinfo;
+    private ProbeExecutor probe;
+    private GdbServer gdbServer;
+    private HaltMonitor haltMonitor;
+    private SwoTrace swoTrace;
+    private Rtt rtt;
     private TextView firmwareText;
     private TextView otherText;
     private TextView regText;
+    private EditText readValue;
     private ProgressBar progressBar;
     private Resources res;
     private Switch connectSwitch;
@@ -69,6 +92,14 @@ public class MainActivity extends Activity {
     private Button goButton;
     private Button readButton;
     private Button writeButton;
+    private Button watchButton;
+    private Button swoButton;
+    private Button rttButton;
+    private TextView logView;
+    private LinearLayout watchView;
+    private WatchList watchList;
+    private int[] watchIdx = new int[0];
+    private int[] watchVal = new int[0];
     private ArrayList<Button> buttonArr = new ArrayList<>();
     private MsgHandler msgHandler = new MsgHandler(this);
 
@@ -85,16 +116,16 @@ public class MainActivity extends Activity {
         resetButton = (Button) findViewById(R.id.reset_button);
         resetButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                mARMinfo.cpuReset();
-                regText.setText("");
+                probe.cpuReset(MainActivity.this.<Boolean>post(CLEAR_MSG));
+                haltMonitor.resumed();
             }
         });
 
         goButton = (Button) findViewById(R.id.goButton);
         goButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                mARMinfo.cpuRun();
-                regText.setText("");
+                probe.cpuRun(MainActivity.this.<Boolean>post(CLEAR_MSG));
+                haltMonitor.resumed();
             }
         });
 
@@ -102,22 +133,20 @@ public class MainActivity extends Activity {
         haltButton = (Button) findViewById(R.id.haltButton);
         haltButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                if (mARMinfo.cpuHalt()) {
-                    regText.setText(mARMinfo.getCoreRegs());
-                }
+                probe.cpuHalt(MainActivity.this.<String>post(HALT_MSG));
             }
         });
 
         
         readButton = (Button) findViewById(R.id.readButton);
         final EditText rV = (EditText) findViewById(R.id.readValue);
+        readValue = rV;
         final TextView rA = (TextView) findViewById(R.id.readAddr);
         readButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
                 if (rA.length() > 0) {
                     long addr = Long.parseLong(rA.getText().toString(), 16);
-                    int value = (int)mARMinfo.readAddr(addr);
-                    rV.setText(String.format("%08x", value));
+                    probe.readAddr(addr, MainActivity.this.<Long>post(READ_MSG));
                 }
             }
         });
@@ -129,17 +158,65 @@ public class MainActivity extends Activity {
                 if (rA.length() > 0 && wV.length() > 0) {
                     long addr = Long.parseLong(rA.getText().toString(), 16);
                     long value = Long.parseLong(wV.getText().toString(), 16);
-                    mARMinfo.writeAddr(addr, value);
+                    probe.writeAddr(addr, value, null);
                     rV.setText(""); // After write, clear read value
                 }
             }
         });
         
+        watchView = (LinearLayout) findViewById(R.id.watchList);
+        watchButton = (Button) findViewById(R.id.watchButton);
+        watchButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                if (rA.length() > 0) {
+                    long addr = Long.parseLong(rA.getText().toString(), 16);
+                    addWatch(addr);
+                }
+            }
+        });
+        watchButton.setOnLongClickListener(new View.OnLongClickListener() {
+            public boolean onLongClick(View v) {
+                watchList.stop();
+                watchList.clear();
+                watchView.removeAllViews();
+                return true;
+            }
+        });
+
+        logView = (TextView) findViewById(R.id.logView);
+        swoButton = (Button) findViewById(R.id.swoButton);
+        swoButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                if (swoTrace.isRunning()) {
+                    swoTrace.stop();
+                } else {
+                    // The target sets up its ITM and TPIU for SWO_BAUD
+                    swoTrace.start(0, SWO_BAUD,
+                            MainActivity.this.<Integer>post(SWO_MSG));
+                }
+            }
+        });
+
+        rttButton = (Button) findViewById(R.id.rttButton);
+        rttButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                if (rtt.isRunning()) {
+                    rtt.stop();
+                } else {
+                    probe.rttFind(rtt, RTT_SCAN_START, RTT_SCAN_SIZE,
+                            MainActivity.this.<Boolean>post(RTT_MSG));
+                }
+            }
+        });
+
         buttonArr.add(resetButton);
         buttonArr.add(goButton);
         buttonArr.add(haltButton);
         buttonArr.add(readButton);
         buttonArr.add(writeButton);
+        buttonArr.add(watchButton);
+        buttonArr.add(swoButton);
+        buttonArr.add(rttButton);
         
         connectSwitch = (Switch) findViewById(R.id.cmsis_switch);
         connectSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
@@ -153,7 +230,12 @@ public class MainActivity extends Activity {
                     getUSBPermission();
 
                 } else {
-                    mARMinfo.disconnect();
+                    watchList.stop();
+                    haltMonitor.stop();
+                    swoTrace.stop();
+                    rtt.stop();
+                    gdbServer.stop();
+                    probe.disconnect(null);
                     for (Button btn: buttonArr) {
                     	btn.setEnabled(false);
                     	btn.setTextColor(res.getColor(android.R.color.darker_gray));
@@ -169,7 +251,63 @@ public class MainActivity extends Activity {
         progressBar = (ProgressBar) findViewById(R.id.progressBar);
         res = getResources();
 
-        mARMinfo = new ARMInfo(res);
+        mARMinfo = new ARMInfo(res, getPreferences(MODE_PRIVATE));
+        probe = new ProbeExecutor(mARMinfo);
+        watchList = new WatchList(mARMinfo, probe);
+        watchList.setListener(new WatchList.Listener() {
+            public void onChanged() {
+                msgHandler.sendEmptyMessage(WATCH_MSG);
+            }
+        });
+        gdbServer = new GdbServer(mARMinfo, probe);
+        swoTrace = new SwoTrace(probe, new SwoDecoder.Listener() {
+            private StringBuilder line = new StringBuilder();
+
+            public void onStimulus(int port, int value, int size) {
+                if (port != 0) {
+                    return;
+                }
+                // ITM printf characters, posted to the log a line at a time
+                for (int i = 0; i < size; i++) {
+                    char c = (char) ((value >> (i * 8)) & 0xFF);
+                    line.append(c);
+                    if (c == '\n' || line.length() >= 256) {
+                        msgHandler.obtainMessage(LOG_MSG, line.toString())
+                                .sendToTarget();
+                        line.setLength(0);
+                    }
+                }
+            }
+
+            public void onHardware(int id, int value, int size) {
+            }
+
+            public void onTimestamp(long delta) {
+            }
+
+            public void onOverflow() {
+            }
+        });
+        rtt = new Rtt(mARMinfo, probe);
+        rtt.setListener(new Rtt.Listener() {
+            public void onData(int channel, byte[] data, int len) {
+                if (channel == 0) {
+                    msgHandler.obtainMessage(LOG_MSG, new String(data, 0, len))
+                            .sendToTarget();
+                }
+            }
+        });
+        haltMonitor = new HaltMonitor(mARMinfo, probe);
+        haltMonitor.setListener(new HaltMonitor.Listener() {
+            public void onHalt(int reason, int[] regs) {
+                String text = HaltMonitor.reasonText(reason);
+                if (regs != null) {
+                    text = String.format("PC:%08x LR:%08x SP:%08x %s",
+                            regs[15], regs[14], regs[13], text);
+                }
+                msgHandler.obtainMessage(HALT_MSG, text).sendToTarget();
+            }
+        });
 
         mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(
                 ACTION_USB_PERMISSION), 0);
@@ -178,9 +316,79 @@ public class MainActivity extends Activity {
     }
 
     
+    /**
+     * Adds an address to the watch list, with a text view for its value,
+     * and starts polling.
+     */
+    private void addWatch(long addr) {
+        int size = watchList.size();
+        int i = watchList.add(addr);
+
+        if (watchList.size() != size) {
+            TextView tv = new TextView(this);
+            tv.setTypeface(Typeface.MONOSPACE);
+            tv.setText(String.format("%08x: ........", watchList.getAddr(i)));
+            watchView.addView(tv, i);
+            watchIdx = new int[watchList.size()];
+            watchVal = new int[watchList.size()];
+        }
+
+        if (!watchList.isRunning()) {
+            watchList.start(WATCH_PERIOD_MS);
+        }
+    }
+
+    /**
+     * Updates the text views of the watch entries that changed.
+     */
+    private void updateWatches() {
+        int n = watchList.takeChanges(watchIdx, watchVal);
+        for (int k = 0; k < n; k++) {
+            int i = watchIdx[k];
+            if (i < watchView.getChildCount()) {
+                ((TextView) watchView.getChildAt(i)).setText(String.format(
+                        "%08x: %08x", watchList.getAddr(i), watchVal[k]));
+            }
+        }
+    }
+
+    /**
+     * Appends text to the log view, keeping the last LOG_MAX characters.
+     */
+    private void appendLog(CharSequence text) {
+        logView.append(text);
+        int excess = logView.length() - LOG_MAX;
+        if (excess > 0) {
+            logView.setText(logView.getText().subSequence(excess,
+                    logView.length()));
+        }
+    }
+
+    /**
+     * Returns a callback that posts a probe result to the UI thread,
+     * as message 'what' with the result in 'obj'.
+     */
+    private <T> ProbeExecutor.Callback<T> post(final int what) {
+        return new ProbeExecutor.Callback<T>() {
+            public void onResult(T result) {
+                msgHandler.obtainMessage(what, result).sendToTarget();
+            }
+        };
+    }
+
+    /**
+     * Result of opening and connecting a device on the probe thread.
+     */
+    private static class ConnectResult {
+        boolean opened = false;
+        boolean connected = false;
+        StringBuffer device = new StringBuffer("");
+        StringBuffer cmsis = new StringBuffer("");
+    }
+
     /**
      * 
-     * Internal class to handle timeout messages.
+     * Internal class to handle timeout and probe result messages.
      * Completely strange code to handle the warning:
      * 'This Handler class should be static or leaks might occur'
      * 
@@ -196,19 +404,85 @@ public class MainActivity extends Activity {
         public void handleMessage(Message msg) {
         	MainActivity m = mainAct.get();
         	if (m != null) {
-        		m.handleMessage();
+        		m.handleMessage(msg);
         	}
         }
     	
     }
     
     /**
-     * Handles a detect timeout message.
+     * Handles a detect timeout message, or a result from the probe thread.
      */
-    public void handleMessage() {
-        progressBar.setVisibility(ProgressBar.INVISIBLE);
-        otherText.setText(R.string.no_dev_detect);
-        connectSwitch.setChecked(false);
+    public void handleMessage(Message msg) {
+        switch (msg.what) {
+        case TMO_MSG:
+            progressBar.setVisibility(ProgressBar.INVISIBLE);
+            otherText.setText(R.string.no_dev_detect);
+            connectSwitch.setChecked(false);
+            break;
+        case CONNECT_MSG:
+            handleConnect((ConnectResult) msg.obj);
+            break;
+        case HALT_MSG:
+            if (msg.obj != null) {
+                regText.setText((String) msg.obj);
+            }
+            break;
+        case READ_MSG:
+            if (msg.obj != null) {
+                readValue.setText(String.format("%08x",
+                        ((Long) msg.obj).intValue()));
+            }
+            break;
+        case CLEAR_MSG:
+            regText.setText("");
+            break;
+        case WATCH_MSG:
+            updateWatches();
+            break;
+        case LOG_MSG:
+            appendLog((String) msg.obj);
+            break;
+        case RTT_MSG:
+            if (Boolean.TRUE.equals(msg.obj)) {
+                rtt.start();
+            } else {
+                appendLog(res.getString(R.string.rtt_not_found) + "\n");
+            }
+            break;
+        case SWO_MSG:
+            if (msg.obj == null || (Integer) msg.obj == 0) {
+                swoTrace.stop();
+                appendLog(res.getString(R.string.swo_failed) + "\n");
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Shows the result of opening and connecting a device.
+     */
+    private void handleConnect(ConnectResult r) {
+        if (r == null || !r.opened) {
+            return;
+        }
+
+        otherText.setText(r.device);
+        if (r.connected) {
+            firmwareText.setText(r.cmsis);
+
+            for (Button btn: buttonArr) {
+                btn.setEnabled(true);
+                btn.setTextColor(res.getColor(android.R.color.holo_blue_light));
+            }
+            gdbServer.start(GDB_PORT);
+        } else {
+            connectSwitch.setChecked(false);
+            // onCheckedChanged - will call mARMinfo.disconnect()
+            // and close USB...
+        }
     }
     
     /**
@@ -216,33 +490,26 @@ public class MainActivity extends Activity {
      * received.
      */
     private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
-        public void onReceive(Context context, Intent intent) {
+        public void onReceive(Context context, final Intent intent) {
             String action = intent.getAction();
-            StringBuffer s = new StringBuffer("");
-            StringBuffer t = new StringBuffer("");
             
             if (ACTION_USB_PERMISSION.equals(action) && mUsbManager != null) {
                 msgHandler.removeMessages(TMO_MSG);
                 progressBar.setVisibility(ProgressBar.INVISIBLE);
                 firmwareText.setText("");
                 otherText.setText("");
-                
-                if (mARMinfo.open(intent, mUsbManager, s)) {
-                    otherText.setText(s);
-                    if (mARMinfo.connect(t)) {
-                        firmwareText.setText(t);
-                        
-                        for (Button btn: buttonArr) {
-                        	btn.setEnabled(true);
-                        	btn.setTextColor(res.getColor(android.R.color.holo_blue_light));
+
+                // Open and connect on the probe thread, result in CONNECT_MSG
+                probe.submit(new Callable<ConnectResult>() {
+                    public ConnectResult call() {
+                        ConnectResult r = new ConnectResult();
+                        r.opened = mARMinfo.open(intent, mUsbManager, r.device);
+                        if (r.opened) {
+                            r.connected = mARMinfo.connect(r.cmsis);
                         }
-                    } else {
-                        connectSwitch.setChecked(false);
-                        // onCheckedChanged - will call mARMinfo.disconnect()
-                        // and close USB...
+                        return r;
                     }
-                }
-                
+                }, MainActivity.this.<ConnectResult>post(CONNECT_MSG));
             }
         }
     };
@@ -285,5 +552,11 @@ public class MainActivity extends Activity {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mUsbReceiver);
+        watchList.stop();
+        haltMonitor.stop();
+        swoTrace.stop();
+        rtt.stop();
+        gdbServer.stop();
+        probe.shutdown();
     }
 }
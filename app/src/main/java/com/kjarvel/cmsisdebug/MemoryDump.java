@@ -0,0 +1,125 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams a target memory range into a file.
+ * Block reads go through a small fixed chunk buffer straight into a
+ * memory-mapped window of the file, so memory use does not depend on the
+ * size of the dump. A dump can be cancelled, and a partial dump resumed.
+ *
+ */
+public class MemoryDump {
+
+    /**
+     * Receives progress, on the probe thread, after every chunk.
+     */
+    public interface Progress {
+        void onProgress(long done, long total);
+    }
+
+    private final int CHUNK = 4096;         // Bytes per block read
+    private final int WINDOW = 64 * 1024;   // Bytes mapped at a time
+
+    private final byte[] chunk = new byte[CHUNK];
+    private volatile boolean cancelled = false;
+    private StringBuffer msg = new StringBuffer("");
+
+    public String getMsgLog() {
+        return msg.toString();
+    }
+
+    /**
+     * Cancels a running dump. The file is truncated to what was read.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Dumps 'len' bytes from 'addr' to 'file' (file offset 0 = addr).
+     * With 'resume', an existing partial dump is continued from the start
+     * of its last mapped window, since that window may be incomplete.
+     *
+     * @return True if the whole range was dumped.
+     */
+    public boolean dump(Dap dap, long addr, long len, File file,
+                        boolean resume, Progress progress) {
+        RandomAccessFile raf = null;
+        long done = 0;
+        boolean res = false;
+
+        cancelled = false;
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+
+            if (resume && raf.length() > 0) {
+                done = Math.min(((raf.length() - 1) / WINDOW) * WINDOW, len);
+            }
+
+            while (done < len && !cancelled) {
+                int size = (int) Math.min(WINDOW, len - done);
+                MappedByteBuffer map = channel.map(
+                        FileChannel.MapMode.READ_WRITE, done, size);
+                int pos = 0;
+
+                while (pos < size && !cancelled) {
+                    int n = Math.min(CHUNK, size - pos);
+                    if (!dap.readMemory(addr + done + pos, chunk, 0, n)) {
+                        msg.append(String.format("Read error at 0x%08x\n",
+                                addr + done + pos));
+                        cancelled = true;
+                        break;
+                    }
+                    map.put(chunk, 0, n);
+                    pos += n;
+                    if (progress != null) {
+                        progress.onProgress(done + pos, len);
+                    }
+                }
+
+                map.force();
+                done += pos;
+            }
+
+            res = (done == len);
+            if (raf.length() > done) {
+                channel.truncate(done);
+            }
+        } catch (IOException e) {
+            msg.append(e.getMessage() + "\n");
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return res;
+    }
+}
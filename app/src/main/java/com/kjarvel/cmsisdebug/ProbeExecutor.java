@@ -0,0 +1,197 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Runs all probe I/O on one dedicated thread.
+ * The executor owns the ARMInfo (and with it Usb and Dap), and commands
+ * are run in the order they were queued (see ProbeQueue).
+ *
+ */
+public class ProbeExecutor extends ProbeQueue {
+
+    private final ARMInfo armInfo;
+
+    public ProbeExecutor(ARMInfo armInfo) {
+        super("probe");
+        this.armInfo = armInfo;
+    }
+
+    public ARMInfo getARMInfo() {
+        return armInfo;
+    }
+
+    /**
+     * Disconnects and stops the probe thread, after the queued commands.
+     */
+    @Override
+    public void shutdown() {
+        submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.disconnect();
+            }
+        });
+        super.shutdown();
+    }
+
+    public Future<Boolean> cpuReset(Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.cpuReset();
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> cpuRun(Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.cpuRun();
+            }
+        }, callback);
+    }
+
+    /**
+     * Halts the CPU and returns the core register string (or null).
+     */
+    public Future<String> cpuHalt(Callback<String> callback) {
+        return submit(new Callable<String>() {
+            public String call() {
+                if (armInfo.cpuHalt()) {
+                    return armInfo.getCoreRegs();
+                }
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Single steps 'n' instructions, and returns the PC trace (shorter if
+     * stepping stopped early), or null.
+     */
+    public Future<int[]> stepTrace(final int n, Callback<int[]> callback) {
+        return submit(new Callable<int[]>() {
+            public int[] call() {
+                int[] trace = new int[n];
+                int done = armInfo.cpuStep(n, trace);
+                if (done < 0) {
+                    return null;
+                }
+                return Arrays.copyOf(trace, done);
+            }
+        }, callback);
+    }
+
+    public Future<Long> readAddr(final long addr, Callback<Long> callback) {
+        return submit(new Callable<Long>() {
+            public Long call() {
+                return armInfo.readAddr(addr);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> writeAddr(final long addr, final long value,
+                                     Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.writeAddr(addr, value);
+            }
+        }, callback);
+    }
+
+    /**
+     * Reads a memory region, returns the data or null.
+     */
+    public Future<byte[]> readMemory(final long addr, final int len,
+                                     Callback<byte[]> callback) {
+        return submit(new Callable<byte[]>() {
+            public byte[] call() {
+                byte[] data = new byte[len];
+                if (armInfo.readMemory(addr, data, 0, len)) {
+                    return data;
+                }
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Programs flash with a flash algorithm, see ARMInfo.programFlash().
+     */
+    public Future<Boolean> programFlash(final byte[] flm, final long ramStart,
+            final int ramSize, final long addr, final byte[] image,
+            final StringBuffer log, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.programFlash(flm, ramStart, ramSize, addr,
+                        image, log);
+            }
+        }, callback);
+    }
+
+    /**
+     * Verifies memory against an image, see ARMInfo.verifyMemory().
+     */
+    public Future<Boolean> verifyMemory(final long addr, final byte[] image,
+            final long ramStart, final StringBuffer log,
+            Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.verifyMemory(addr, image, ramStart, log);
+            }
+        }, callback);
+    }
+
+    /**
+     * Dumps a memory range to a file. Cancel with dump.cancel().
+     */
+    public Future<Boolean> dumpMemory(final MemoryDump dump, final long addr,
+            final long len, final File file, final boolean resume,
+            final MemoryDump.Progress progress, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.dumpMemory(dump, addr, len, file, resume,
+                        progress);
+            }
+        }, callback);
+    }
+
+    /**
+     * Scans target RAM for the RTT control block, see Rtt.find().
+     */
+    public Future<Boolean> rttFind(final Rtt rtt, final long start,
+            final int size, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return rtt.find(start, size);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> disconnect(Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return armInfo.disconnect();
+            }
+        }, callback);
+    }
+}
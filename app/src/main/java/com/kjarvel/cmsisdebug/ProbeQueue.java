@@ -0,0 +1,128 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A queue of commands run in order on one dedicated thread. Results are
+ * returned as futures, and can also be delivered to a callback (on the
+ * queue thread). Plain Java, see ProbeExecutor for the probe commands.
+ *
+ */
+public class ProbeQueue {
+
+    /**
+     * Receives the result of a command, on the queue thread.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public ProbeQueue(final String name) {
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Queues a command. Must not be called from the queue thread and then
+     * waited for, since that would deadlock.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return submit(task, null);
+    }
+
+    /**
+     * Queues a command, and passes its result (or null if it threw) to
+     * 'callback' when done. Throws RejectedExecutionException after
+     * shutdown().
+     */
+    public <T> Future<T> submit(final Callable<T> task,
+                                final Callback<T> callback) {
+        Callable<T> counted = new Callable<T>() {
+            public T call() throws Exception {
+                T result = null;
+                try {
+                    result = task.call();
+                } finally {
+                    pending.decrementAndGet();
+                    if (callback != null) {
+                        callback.onResult(result);
+                    }
+                }
+                return result;
+            }
+        };
+
+        pending.incrementAndGet();
+        try {
+            return executor.submit(counted);
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet(); // Shut down, it will never run
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if commands are queued or running. Background polls
+     * (scheduled tasks) are not counted, and should hold off when busy.
+     */
+    public boolean isBusy() {
+        return pending.get() > 0;
+    }
+
+    /**
+     * Runs a command repeatedly on the queue thread, between other commands.
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task,
+            long initialDelay, long delay, TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(task, initialDelay, delay, unit);
+    }
+
+    /**
+     * Runs a command once on the queue thread, after a delay.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay,
+                                       TimeUnit unit) {
+        return executor.schedule(task, delay, unit);
+    }
+
+    /**
+     * Stops the queue thread, after the queued commands.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,244 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SEGGER RTT client. Reads the target's RTT up-buffers (target to host)
+ * while the core runs, on the probe thread.
+ * Each poll reads all up-buffer descriptors in one block read, then only
+ * the new bytes of each buffer, and writes back the buffer's read offset.
+ * The poll period is short while data flows and backs off when idle.
+ * Polls are held off while other probe commands are queued.
+ *
+ */
+public class Rtt {
+
+    /**
+     * Receives up-buffer data, on the probe thread. 'data' is reused.
+     */
+    public interface Listener {
+        void onData(int channel, byte[] data, int len);
+    }
+
+    private static final byte[] ID = {
+        'S', 'E', 'G', 'G', 'E', 'R', ' ', 'R', 'T', 'T'
+    };
+    private final int SCAN_CHUNK   = 1024;   // Bytes per read when scanning
+    private final int CB_HEADER    = 24;     // acID[16], MaxNumUp, MaxNumDown
+    private final int DESC_SIZE    = 24;     // Name, pBuffer, Size, WrOff, RdOff, Flags
+    private final int MAX_UP       = 16;
+    private final int READ_MAX     = 4096;   // Max bytes per buffer and poll
+    private final int MIN_PERIOD_MS = 1;
+    private final int MAX_PERIOD_MS = 100;
+
+    private final DebugTarget target;
+    private final ProbeQueue probe;
+    private long cbAddr = 0;
+    private int numUp = 0;
+    private byte[] desc = new byte[MAX_UP * DESC_SIZE];
+    private byte[] data = new byte[READ_MAX];
+    private byte[] word = new byte[4];
+
+    private Listener listener = null;
+    private ScheduledFuture<?> task = null;
+    private int period = MIN_PERIOD_MS;
+    private int generation = 0;     // Tells stale polls to stop
+
+    /**
+     * RTT of 'target', polled on 'probe'.
+     */
+    public Rtt(DebugTarget target, ProbeQueue probe) {
+        this.target = target;
+        this.probe = probe;
+    }
+
+    private static int getWord(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8)
+                | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Scans target RAM for the control block, with block reads.
+     *
+     * @return True if found and attached.
+     */
+    public boolean find(long start, int size) {
+        byte[] buf = new byte[SCAN_CHUNK];
+        int step = SCAN_CHUNK - 16;  // Overlap by acID[16], keeps word alignment
+
+        for (int pos = 0; pos + ID.length <= size; pos += step) {
+            int len = Math.min(SCAN_CHUNK, size - pos);
+            if (!target.readMemory(start + pos, buf, 0, len)) {
+                return false;
+            }
+            for (int i = 0; i + ID.length <= len; i += 4) {
+                if (match(buf, i) && attach(start + pos + i)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean match(byte[] buf, int off) {
+        for (int i = 0; i < ID.length; i++) {
+            if (buf[off + i] != ID[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Attaches to a control block at a known address (_SEGGER_RTT).
+     */
+    public synchronized boolean attach(long addr) {
+        byte[] header = new byte[CB_HEADER];
+
+        if (!target.readMemory(addr, header, 0, CB_HEADER)
+                || !match(header, 0)) {
+            return false;
+        }
+        int up = getWord(header, 16);
+        if (up <= 0 || up > 255) {
+            return false;
+        }
+        cbAddr = addr;
+        numUp = Math.min(up, MAX_UP);
+        return true;
+    }
+
+    public long getAddress() {
+        return cbAddr;
+    }
+
+    public int getNumUpBuffers() {
+        return numUp;
+    }
+
+    /**
+     * Reads new data from all up-buffers. Runs on the probe thread.
+     *
+     * @return Number of bytes read, or -1.
+     */
+    public int poll() {
+        int total = 0;
+
+        if (numUp == 0 || !target.readMemory(cbAddr + CB_HEADER, desc, 0,
+                numUp * DESC_SIZE)) {
+            return -1;
+        }
+
+        for (int ch = 0; ch < numUp; ch++) {
+            int d = ch * DESC_SIZE;
+            long buffer = getWord(desc, d + 4) & 0xFFFFFFFFL;
+            int size = getWord(desc, d + 8);
+            int wrOff = getWord(desc, d + 12);
+            int rdOff = getWord(desc, d + 16);
+
+            if (buffer == 0 || size <= 0 || wrOff == rdOff
+                    || wrOff < 0 || wrOff >= size || rdOff < 0 || rdOff >= size) {
+                continue;
+            }
+
+            // Up to the write offset, or to the end if it has wrapped
+            int len = Math.min((wrOff > rdOff ? wrOff : size) - rdOff, READ_MAX);
+            if (!target.readMemory(buffer + rdOff, data, 0, len)) {
+                return -1;
+            }
+            int n = len;
+            if (wrOff < rdOff && wrOff > 0 && n < READ_MAX) {
+                // Wrapped: the rest from the start of the buffer
+                int rest = Math.min(wrOff, READ_MAX - n);
+                if (target.readMemory(buffer, data, n, rest)) {
+                    n += rest;
+                }
+            }
+
+            rdOff = (rdOff + n) % size;
+            for (int i = 0; i < 4; i++) {
+                word[i] = (byte) (rdOff >> (i * 8));
+            }
+            target.writeMemory(cbAddr + CB_HEADER + d + 16, word, 0, 4);
+            total += n;
+            Listener l;
+            synchronized (this) {
+                l = listener;
+            }
+            if (l != null) {
+                l.onData(ch, data, n);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Starts polling on the probe thread. The period is MIN_PERIOD_MS
+     * while there is data, and doubles up to MAX_PERIOD_MS when idle.
+     */
+    public synchronized void start() {
+        stop();
+        period = MIN_PERIOD_MS;
+        schedule(0, generation);
+    }
+
+    public synchronized void stop() {
+        generation++;
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    private synchronized void schedule(long delay, final int gen) {
+        task = probe.schedule(new Runnable() {
+            public void run() {
+                synchronized (Rtt.this) {
+                    if (gen != generation) {
+                        return; // Stopped
+                    }
+                    if (probe.isBusy()) {
+                        // Let queued commands run first, poll after them
+                        schedule(period, gen);
+                        return;
+                    }
+                }
+                int n = poll();
+                synchronized (Rtt.this) {
+                    if (gen != generation) {
+                        return;
+                    }
+                    period = n > 0 ? MIN_PERIOD_MS
+                                   : Math.min(period * 2, MAX_PERIOD_MS);
+                    schedule(period, gen);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
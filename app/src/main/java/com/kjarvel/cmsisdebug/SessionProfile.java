@@ -0,0 +1,144 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import android.content.SharedPreferences;
+
+/**
+ * What is known about a probe and a target connected to it: probe
+ * firmware and capabilities, packet size and count, and per target (probe
+ * serial number and DPIDR) the working SWD clock, AP 0 identification and
+ * CPUID. Persisted, so that a reconnect only needs to validate the probe
+ * firmware version and the target's IDCODE. A probe moved between boards
+ * keeps a profile for each.
+ *
+ */
+public class SessionProfile {
+
+    private static final String KEY_PREFIX = "profile_";
+
+    public final String serial;
+    public String fwVersion = "";     // Without ','
+    public int caps = 0;
+    public int packetSize = 0;    // DAP_Info packet size, 0 = endpoint size
+    public int packetCount = 1;
+    public long dpidr = 0;        // 0 = target unknown
+    public int clock = 0;         // SWD clock (Hz), 0 = unknown
+    public int apIdr = 0;
+    public int cpuId = 0;
+
+    public SessionProfile(String serial) {
+        this.serial = serial;
+    }
+
+    private String targetKey(long id) {
+        return KEY_PREFIX + serial + "_" + Long.toHexString(id);
+    }
+
+    /**
+     * Loads the profile stored for a probe, with the target it was last
+     * connected to (if that is known).
+     *
+     * @return The profile, or null if there is none (or it is invalid).
+     */
+    public static SessionProfile load(SharedPreferences prefs, String serial) {
+        if (prefs == null || serial.length() == 0) {
+            return null;
+        }
+        String s = prefs.getString(KEY_PREFIX + serial, null);
+        if (s == null) {
+            return null;
+        }
+
+        String[] f = s.split(",", -1);
+        if (f.length != 5) {
+            return null;
+        }
+        SessionProfile p = new SessionProfile(serial);
+        long last;
+        try {
+            p.fwVersion = f[0];
+            p.caps = Integer.parseInt(f[1]);
+            p.packetSize = Integer.parseInt(f[2]);
+            p.packetCount = Integer.parseInt(f[3]);
+            last = Long.parseLong(f[4], 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (last != 0) {
+            p.loadTarget(prefs, last);
+        }
+        return p;
+    }
+
+    /**
+     * Loads what is known about the target with IDCODE (DPIDR) 'id' on
+     * this probe. If nothing is, the target fields are cleared.
+     *
+     * @return True if the target is known.
+     */
+    public boolean loadTarget(SharedPreferences prefs, long id) {
+        clearTarget();
+        String s = prefs != null ? prefs.getString(targetKey(id), null) : null;
+        if (s == null) {
+            return false;
+        }
+
+        String[] f = s.split(",", -1);
+        if (f.length != 3) {
+            return false;
+        }
+        try {
+            clock = Integer.parseInt(f[0]);
+            apIdr = (int) Long.parseLong(f[1], 16);
+            cpuId = (int) Long.parseLong(f[2], 16);
+        } catch (NumberFormatException e) {
+            clearTarget();
+            return false;
+        }
+        dpidr = id;
+        return true;
+    }
+
+    /**
+     * Saves the probe, and the target if there is one.
+     */
+    public void save(SharedPreferences prefs) {
+        if (prefs == null || serial.length() == 0) {
+            return;
+        }
+        SharedPreferences.Editor e = prefs.edit();
+        e.putString(KEY_PREFIX + serial, String.format("%s,%d,%d,%d,%x",
+                fwVersion, caps, packetSize, packetCount, dpidr));
+        if (dpidr != 0) {
+            e.putString(targetKey(dpidr), String.format("%d,%x,%x",
+                    clock, apIdr, cpuId));
+        }
+        e.apply();
+    }
+
+    /**
+     * Forgets the target, keeping the probe information.
+     */
+    public void clearTarget() {
+        dpidr = 0;
+        clock = 0;
+        apIdr = 0;
+        cpuId = 0;
+    }
+}
@@ -0,0 +1,128 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * Decodes the ITM/DWT trace packet stream (ARMv7-M ARM, appendix D4),
+ * one byte at a time, so packets may be split across reads.
+ *
+ */
+public class SwoDecoder {
+
+    /**
+     * Receives decoded packets, on the decoding thread.
+     */
+    public interface Listener {
+        /** ITM stimulus port write (ITM printf is usually port 0) */
+        void onStimulus(int port, int value, int size);
+        /** DWT hardware source packet: 0 event counter, 1 exception
+         *  trace, 2 PC sample, 8-23 data trace */
+        void onHardware(int id, int value, int size);
+        /** Local timestamp, cycles since the previous one */
+        void onTimestamp(long delta);
+        /** The trace FIFO in the target overflowed */
+        void onOverflow();
+    }
+
+    private final int ST_HEADER  = 0;
+    private final int ST_PAYLOAD = 1;  // Source packet payload
+    private final int ST_CONT    = 2;  // Continuation bytes (bit 7 set)
+
+    private Listener listener;
+    private int state = ST_HEADER;
+    private int header;
+    private int size;
+    private int count;
+    private long value;
+    private boolean timestamp;
+
+    public SwoDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void decode(byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            decode(data[i] & 0xFF);
+        }
+    }
+
+    private void decode(int b) {
+        switch (state) {
+        case ST_HEADER:
+            header(b);
+            break;
+
+        case ST_PAYLOAD:
+            value |= (long) b << (count * 8);
+            if (++count == size) {
+                if ((header & 0x04) == 0) {
+                    listener.onStimulus(header >> 3, (int) value, size);
+                } else {
+                    listener.onHardware(header >> 3, (int) value, size);
+                }
+                state = ST_HEADER;
+            }
+            break;
+
+        case ST_CONT:
+            if (count < 5) {
+                value |= (long) (b & 0x7F) << (count * 7);
+            }
+            count++;
+            if ((b & 0x80) == 0) {
+                if (timestamp) {
+                    listener.onTimestamp(value);
+                }
+                state = ST_HEADER;
+            }
+            break;
+        }
+    }
+
+    private void header(int b) {
+        header = b;
+        value = 0;
+        count = 0;
+        timestamp = false;
+
+        if (b == 0x00 || b == 0x80) {
+            return; // Synchronization
+        }
+        if (b == 0x70) {
+            listener.onOverflow();
+            return;
+        }
+        if ((b & 0x03) != 0) {
+            size = (b & 0x03) == 3 ? 4 : (b & 0x03);
+            state = ST_PAYLOAD;
+            return;
+        }
+        if ((b & 0x0F) == 0) {
+            // Local timestamp: one byte, or continuation bytes follow
+            timestamp = true;
+            if ((b & 0x80) == 0) {
+                listener.onTimestamp((b >> 4) & 0x07);
+                return;
+            }
+        }
+        // Timestamp, global timestamp or extension continuation bytes
+        if ((b & 0x80) != 0) {
+            state = ST_CONT;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * Lock-free byte ring buffer for one producer thread and one consumer
+ * thread. Each position is only written by its own thread, and the
+ * volatile positions publish the data in between.
+ * Bytes that do not fit are dropped and counted, the producer never waits.
+ *
+ */
+public class SwoRing {
+
+    private final byte[] buf;
+    private final int mask;
+    private volatile long head = 0;     // Written by the producer
+    private volatile long tail = 0;     // Written by the consumer
+    private volatile long dropped = 0;  // Written by the producer
+
+    /**
+     * @param size Capacity in bytes, rounded up to a power of two.
+     */
+    public SwoRing(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        buf = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Producer: adds up to 'len' bytes.
+     *
+     * @return Number of bytes added.
+     */
+    public int write(byte[] src, int off, int len) {
+        long h = head;
+        int free = buf.length - (int) (h - tail);
+        int n = Math.min(len, free);
+
+        for (int i = 0; i < n; i++) {
+            buf[(int) (h + i) & mask] = src[off + i];
+        }
+        if (n < len) {
+            dropped += len - n;
+        }
+        head = h + n;
+        return n;
+    }
+
+    /**
+     * Consumer: removes up to 'len' bytes.
+     *
+     * @return Number of bytes removed, 0 if empty.
+     */
+    public int read(byte[] dst, int off, int len) {
+        long t = tail;
+        int n = Math.min(len, (int) (head - t));
+
+        for (int i = 0; i < n; i++) {
+            dst[off + i] = buf[(int) (t + i) & mask];
+        }
+        tail = t + n;
+        return n;
+    }
+
+    public int available() {
+        return (int) (head - tail);
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
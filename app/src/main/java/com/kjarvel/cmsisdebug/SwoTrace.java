@@ -0,0 +1,188 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures and decodes SWO trace.
+ * Trace bytes are read by one producer, either a reader thread on the v2
+ * trace endpoint or DAP_SWO_Data polling on the probe thread, into a
+ * lock-free ring buffer. A decoder thread empties the ring and passes
+ * the packets to a SwoDecoder.Listener, so a slow consumer does not stall
+ * the reading. Each capture has its own ring, decoder and threads.
+ *
+ */
+public class SwoTrace {
+
+    private final int RING_SIZE = 256 * 1024;
+    private final int READ_SIZE = 16 * 1024;  // Max trace endpoint transfer
+    private final int READ_TIMEOUT_MS = 100;
+    private final int POLL_MS = 5;            // DAP_SWO_Data poll period
+    private final long IDLE_NS = 1000000;     // Decoder wait when empty
+
+    private final ProbeExecutor probe;
+    private final SwoDecoder.Listener listener;
+    private Session session = null;
+
+    /**
+     * One capture, with its own ring and decoder. Threads of a stopped
+     * capture that have not exited yet cannot mix with the next one.
+     */
+    private class Session {
+        final SwoRing ring = new SwoRing(RING_SIZE);
+        final SwoDecoder decoder = new SwoDecoder(listener);
+        volatile boolean running = true;
+        Thread decoderThread = null;
+        ScheduledFuture<?> poller = null;
+    }
+
+    public SwoTrace(ProbeExecutor probe, SwoDecoder.Listener listener) {
+        this.probe = probe;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts trace capture, see ARMInfo.swoStart(). The actual baudrate
+     * (0 on failure) is passed to 'callback'.
+     */
+    public synchronized void start(final int cpuHz, final int baud,
+                                   ProbeExecutor.Callback<Integer> callback) {
+        stop();
+        final Session s = new Session();
+        session = s;
+
+        s.decoderThread = new Thread(new Runnable() {
+            public void run() {
+                decodeLoop(s);
+            }
+        }, "swo-decoder");
+        s.decoderThread.setDaemon(true);
+        s.decoderThread.start();
+
+        probe.submit(new Callable<Integer>() {
+            public Integer call() {
+                ARMInfo armInfo = probe.getARMInfo();
+                int actual = armInfo.swoStart(cpuHz, baud);
+                if (actual > 0) {
+                    startReading(s, armInfo.isSwoStreaming());
+                }
+                return actual;
+            }
+        }, callback);
+    }
+
+    public synchronized void stop() {
+        Session s = session;
+        if (s == null || !s.running) {
+            return;
+        }
+        s.running = false;
+        if (s.poller != null) {
+            s.poller.cancel(false);
+            s.poller = null;
+        }
+        LockSupport.unpark(s.decoderThread);
+        probe.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                probe.getARMInfo().swoStop();
+                return true;
+            }
+        });
+    }
+
+    public synchronized boolean isRunning() {
+        return session != null && session.running;
+    }
+
+    /**
+     * Returns the number of trace bytes dropped because the ring was full,
+     * in the last capture.
+     */
+    public synchronized long getDropped() {
+        return session != null ? session.ring.getDropped() : 0;
+    }
+
+    /**
+     * Starts the producer, on the probe thread.
+     */
+    private synchronized void startReading(final Session s,
+                                           boolean streaming) {
+        if (!s.running) {
+            return;
+        }
+
+        if (streaming) {
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    readLoop(s);
+                }
+            }, "swo-reader");
+            reader.setDaemon(true);
+            reader.start();
+        } else {
+            final byte[] buf = new byte[READ_SIZE];
+            s.poller = probe.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    int n;
+                    // Empty the probe's trace buffer, one packet at a time
+                    while (s.running
+                            && (n = probe.getARMInfo().swoData(buf)) > 0) {
+                        produce(s, buf, n);
+                    }
+                }
+            }, 0, POLL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void readLoop(Session s) {
+        byte[] buf = new byte[READ_SIZE];
+        ARMInfo armInfo = probe.getARMInfo();
+
+        while (s.running) {
+            int n = armInfo.swoRead(buf, READ_TIMEOUT_MS);
+            if (n < 0) {
+                break;
+            }
+            produce(s, buf, n);
+        }
+    }
+
+    private void produce(Session s, byte[] buf, int n) {
+        if (n > 0) {
+            s.ring.write(buf, 0, n);
+            LockSupport.unpark(s.decoderThread);
+        }
+    }
+
+    private void decodeLoop(Session s) {
+        byte[] buf = new byte[READ_SIZE];
+
+        while (s.running) {
+            int n = s.ring.read(buf, 0, buf.length);
+            if (n > 0) {
+                s.decoder.decode(buf, 0, n);
+            } else {
+                LockSupport.parkNanos(IDLE_NS);
+            }
+        }
+    }
+}
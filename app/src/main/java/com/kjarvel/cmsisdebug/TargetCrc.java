@@ -0,0 +1,180 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.util.zip.CRC32;
+
+/**
+ * Computes CRC32 (same as java.util.zip.CRC32) of target memory on the
+ * target itself, by running a small Thumb routine from RAM. This costs a
+ * few packets regardless of the region size, instead of reading it back.
+ * The core is halted, and its registers are changed, by running it.
+ *
+ */
+public class TargetCrc {
+
+    public static final int CODE_SIZE = 0x24;   // Code and literal pool
+    private static final int CHUNK = 4096;      // Verify fallback chunk size
+    private static final int XPSR_THUMB = 0x01000000;
+
+    /*
+     * In:  r0 = address, r1 = length, r2 = 0xffffffff
+     * Out: r0 = CRC32, then BKPT
+     *
+     *      ldr   r3, =0xEDB88320
+     * loop:cmp   r1, #0
+     *      beq   done
+     *      ldrb  r4, [r0]
+     *      adds  r0, #1
+     *      eors  r2, r4
+     *      movs  r5, #8
+     * bit: lsrs  r2, r2, #1
+     *      bcc   skip
+     *      eors  r2, r3
+     * skip:subs  r5, #1
+     *      bne   bit
+     *      subs  r1, #1
+     *      b     loop
+     * done:mvns  r0, r2
+     *      bkpt  #0
+     */
+    private static final int[] CODE = {
+        0x4B07, 0x2900, 0xD00A, 0x7804, 0x3001, 0x4062, 0x2508, 0x0852,
+        0xD300, 0x405A, 0x3D01, 0xD1FA, 0x3901, 0xE7F2, 0x43D0, 0xBE00
+    };
+    private static final int POLY = 0xEDB88320;
+
+    /* Registers set for a call: R0-R2, PC, xPSR */
+    private final int[] callRegs = { 0, 1, 2, 15, 16 };
+    private final int[] callValues = new int[callRegs.length];
+
+    private Dap dap;
+    private long base;
+    private boolean loaded = false;
+    private StringBuffer msg = new StringBuffer("");
+
+    /**
+     * @param base Word aligned RAM address for the routine (CODE_SIZE bytes).
+     */
+    public TargetCrc(Dap dap, long base) {
+        this.dap = dap;
+        this.base = base & ~3L;
+    }
+
+    public String getMsgLog() {
+        return msg.toString();
+    }
+
+    /**
+     * Returns the CRC32 of a byte array.
+     */
+    public static long hostCrc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+
+    /**
+     * Halts the core and loads the routine.
+     */
+    private boolean load() {
+        byte[] code = new byte[CODE_SIZE];
+
+        for (int i = 0; i < CODE.length; i++) {
+            code[i * 2] = (byte) CODE[i];
+            code[i * 2 + 1] = (byte) (CODE[i] >> 8);
+        }
+        for (int i = 0; i < 4; i++) {
+            code[CODE.length * 2 + i] = (byte) (POLY >> (i * 8));
+        }
+
+        loaded = dap.halt() && dap.writeMemory(base, code, 0, CODE_SIZE);
+        if (!loaded) {
+            msg.append("Could not load CRC routine\n");
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the CRC32 of a target memory region, or -1.
+     */
+    public long crc(long addr, int len) {
+        if (!loaded && !load()) {
+            return -1;
+        }
+
+        callValues[0] = (int) addr;
+        callValues[1] = len;
+        callValues[2] = 0xffffffff;
+        callValues[3] = (int) base;
+        callValues[4] = XPSR_THUMB;
+        if (!dap.writeCoreRegs(callRegs, callValues, callRegs.length)
+                || !dap.run()) {
+            return -1;
+        }
+
+        // About 50 cycles per byte, assume a slow core
+        if (!dap.waitHalted(500 + len / 50)) {
+            msg.append(String.format("CRC timeout at 0x%08x\n", addr));
+            return -1;
+        }
+        return dap.readCoreReg(0) & 0xffffffffL;
+    }
+
+    /**
+     * Verifies that target memory at 'addr' matches 'len' bytes of 'image'.
+     * The whole region is checked with one target CRC. Only if it does not
+     * match, it is checked in chunks, and mismatching chunks are read back
+     * to find the first differing address.
+     *
+     * @return True if equal. Differences are in getMsgLog().
+     */
+    public boolean verify(long addr, byte[] image, int off, int len) {
+        long crc = crc(addr, len);
+
+        if (crc < 0) {
+            return false;
+        }
+        if (crc == hostCrc(image, off, len)) {
+            return true;
+        }
+
+        byte[] data = new byte[CHUNK];
+        for (int pos = 0; pos < len; pos += CHUNK) {
+            int n = Math.min(CHUNK, len - pos);
+            crc = crc(addr + pos, n);
+            if (crc < 0) {
+                return false;
+            }
+            if (crc == hostCrc(image, off + pos, n)) {
+                continue;
+            }
+            if (!dap.readMemory(addr + pos, data, 0, n)) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                if (data[i] != image[off + pos + i]) {
+                    msg.append(String.format("Verify error at 0x%08x\n",
+                            addr + pos + i));
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+}
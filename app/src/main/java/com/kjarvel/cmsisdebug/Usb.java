@@ -31,12 +31,15 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.hardware.usb.UsbRequest;
+import android.os.Build;
 
 /**
  * Handles low-level USB communication.
+ * CMSIS-DAP v2 probes are used through their vendor-class interface with
+ * bulk endpoints, and v1 probes through HID with interrupt endpoints.
  * 
  */
-public class Usb {
+public class Usb implements DapTransport {
 
     /* http://libusb.sourceforge.net/api-1.0/group__desc.html */
     private static final int STD_USB_REQUEST_GET_DESCRIPTOR = 0x06;
@@ -46,9 +49,27 @@ public class Usb {
     private UsbDeviceConnection connection = null;
     private UsbEndpoint epOut = null;
     private UsbEndpoint epIn = null;
+    private UsbEndpoint epSwo = null;   // v2 SWO trace endpoint, optional
     private UsbDevice device = null;
-    UsbRequest inRequest = null;
-    UsbRequest outRequest = null;
+    private boolean bulk = false;
+    private int packetSize = 0;
+    /* Transfers use a pool of request pairs with preallocated direct
+     * buffers, used as a ring with up to 'pipeDepth' commands in flight.
+     * Responses come back in order. Lock-step transfers use the same pool
+     * with one command in flight. */
+    private static final int MAX_PIPE_DEPTH = 16;
+    private int pipeDepth = 0;
+    private int pipeHead = 0;
+    private int pipePending = 0;
+    private UsbRequest[] pipeOut = null;
+    private UsbRequest[] pipeIn = null;
+    private ByteBuffer[] pipeOutBuf = null;
+    private ByteBuffer[] pipeInBuf = null;
+    private boolean[] pipeOutDone = null;
+    private boolean[] pipeInDone = null;
+    private int[] pipeOutLen = null;
+    private long[] pipeSent = null;    // Submit time (ns)
+    private final DapMetrics metrics = new DapMetrics();
 
 
     public Usb(UsbDevice device) {
@@ -73,48 +94,71 @@ public class Usb {
     
     
     /**
-     *  Initialize and claim the interface, endpoints and transfer requests
+     *  Initialize and claim the interface, endpoints and transfer requests.
+     *  A CMSIS-DAP v2 (bulk) interface is preferred over HID.
      */
     public boolean connect() {
+        if (connection != null) {
+            if (claimInterface(UsbConstants.USB_CLASS_VENDOR_SPEC,
+                        UsbConstants.USB_ENDPOINT_XFER_BULK)
+                    || claimInterface(UsbConstants.USB_CLASS_HID,
+                        UsbConstants.USB_ENDPOINT_XFER_INT)) {
+                packetSize = epOut.getMaxPacketSize();
+                return setPipelineDepth(1);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     *  Claims the first interface of class 'intfClass' that has an OUT and
+     *  an IN endpoint of type 'epType'. The first IN endpoint is used for
+     *  responses, a v2 probe may have a second one for SWO trace.
+     */
+    private boolean claimInterface(int intfClass, int epType) {
         int interfaces = device.getInterfaceCount();
-        int intf_idx = 0;
-        boolean claimed = false;
 
-        if (connection != null) {
+        for (int intf_idx = 0; intf_idx < interfaces; intf_idx++) {
+            UsbInterface ui = device.getInterface(intf_idx);
+            UsbEndpoint out = null;
+            UsbEndpoint in = null;
+            UsbEndpoint swo = null;
 
-            for (intf_idx = 0; intf_idx < interfaces; intf_idx++) {
-                intf = device.getInterface(intf_idx);
-                if (intf != null && 
-                    intf.getInterfaceClass() == UsbConstants.USB_CLASS_HID) 
-                {
-                    if (connection.claimInterface(intf, true)) {
-                        claimed = true;
-                        break;
-                    }
-                }
+            if (ui == null || ui.getInterfaceClass() != intfClass) {
+                continue;
             }
 
-            if (claimed) {
-                for (int i = 0; i < intf.getEndpointCount(); i++) {
-                    UsbEndpoint ep = intf.getEndpoint(i);
-                    if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_INT) {
-                        if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
-                            epOut = ep;
-                        } else {
-                            epIn = ep;
+            /* Vendor-class interfaces must be named CMSIS-DAP (v2) */
+            if (intfClass == UsbConstants.USB_CLASS_VENDOR_SPEC
+                    && Build.VERSION.SDK_INT >= 21 && (ui.getName() == null
+                        || !ui.getName().contains("CMSIS-DAP"))) {
+                continue;
+            }
+
+            for (int i = 0; i < ui.getEndpointCount(); i++) {
+                UsbEndpoint ep = ui.getEndpoint(i);
+                if (ep.getType() == epType) {
+                    if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
+                        if (out == null) {
+                            out = ep;
                         }
+                    } else if (in == null) {
+                        in = ep;
+                    } else if (swo == null) {
+                        swo = ep;
                     }
                 }
+            }
 
-                if (epOut != null && epIn != null) {
-                    inRequest = new UsbRequest();
-                    outRequest = new UsbRequest();
-                    
-                    outRequest.initialize(connection, epOut);
-                    inRequest.initialize(connection, epIn);
-                    
-                    return true;
-                }
+            if (out != null && in != null
+                    && connection.claimInterface(ui, true)) {
+                intf = ui;
+                epOut = out;
+                epIn = in;
+                bulk = (epType == UsbConstants.USB_ENDPOINT_XFER_BULK);
+                epSwo = bulk ? swo : null;
+                return true;
             }
         }
 
@@ -132,18 +176,13 @@ public class Usb {
             }
         }
 
-        if (inRequest != null) {
-        	inRequest.close();
-        	inRequest = null;
-        }
-        
-        if (outRequest != null) {
-        	outRequest.close();
-        	outRequest = null;
-        }
+        closePipeline();
         
         epOut = null;
         epIn = null;
+        epSwo = null;
+        bulk = false;
+        packetSize = 0;
 
         return true;
     }
@@ -157,6 +196,13 @@ public class Usb {
         boolean res = false;
         StringBuilder manufProduct = new StringBuilder("");
 
+        /* The strings are already read by the system (no control transfers)
+         * on API 21+ */
+        if (Build.VERSION.SDK_INT >= 21 && device.getProductName() != null) {
+            String manuf = device.getManufacturerName();
+            return (manuf != null ? manuf + " " : "") + device.getProductName();
+        }
+
         byte[] rawDescs = connection.getRawDescriptors();
         if (rawDescs.length > 17) {
             try {
@@ -197,40 +243,250 @@ public class Usb {
     }
 
     /**
-     * Performs an USB 'interrupt transfer'
+     * Performs an USB 'interrupt transfer'.
+     * Sends 'length' bytes and waits for the response, which is placed in
+     * 'bytes'. No commands may be in flight.
      */
     public boolean usbXfer(byte[] bytes, int length) {
-        int i;
-        ByteBuffer bBytes;
-        boolean res = false;
-        
-        /* Clear the rest of the bytes */
-        for (i = length; i < bytes.length; i++) {
-            bytes[i] = (byte)0;
+        if (usbSubmit(bytes, length)) {
+            /* The bytes array contains the input data */
+            return usbReceive(bytes);
+        }
+        return false;
+    }
+
+    /**
+     * Sets how many commands may be in flight at the same time,
+     * normally the probe's packet count. Re-creates the request pool.
+     */
+    public boolean setPipelineDepth(int depth) {
+        int size = getPacketSize();
+
+        closePipeline();
+        if (connection == null || size == 0) {
+            return false;
         }
 
-        bBytes = ByteBuffer.wrap(bytes);        
+        depth = Math.max(1, Math.min(depth, MAX_PIPE_DEPTH));
+        pipeOut = new UsbRequest[depth];
+        pipeIn = new UsbRequest[depth];
+        pipeOutBuf = new ByteBuffer[depth];
+        pipeInBuf = new ByteBuffer[depth];
+        pipeOutDone = new boolean[depth];
+        pipeInDone = new boolean[depth];
+        pipeOutLen = new int[depth];
+        pipeSent = new long[depth];
 
-        if (outRequest.queue(bBytes, bytes.length)) {
-            if (connection.requestWait() == outRequest) {
-                /* The output bytes were sent */
-                if (inRequest.queue(bBytes, bytes.length)) {
-                    if (connection.requestWait() == inRequest) {
-                        /* The bytes array contains the input data */
-                    	res = true;
-                    }
-                }
+        for (int i = 0; i < depth; i++) {
+            pipeOut[i] = new UsbRequest();
+            pipeIn[i] = new UsbRequest();
+            pipeOut[i].initialize(connection, epOut);
+            pipeIn[i].initialize(connection, epIn);
+            pipeOutBuf[i] = ByteBuffer.allocateDirect(size);
+            pipeInBuf[i] = ByteBuffer.allocateDirect(size);
+        }
+        pipeDepth = depth;
+        return true;
+    }
+
+    public int getPipelineDepth() {
+        return pipeDepth;
+    }
+
+    private void closePipeline() {
+        for (int i = 0; i < pipeDepth; i++) {
+            pipeOut[i].close();
+            pipeIn[i].close();
+        }
+        pipeDepth = 0;
+        pipeHead = 0;
+        pipePending = 0;
+    }
+
+    /**
+     * Queues a command without waiting for the response. The response is
+     * picked up, in order, with usbReceive(). Lock-step usbXfer() must not
+     * be used while commands are in flight.
+     */
+    public boolean usbSubmit(byte[] bytes, int length) {
+        if (pipePending >= pipeDepth) {
+            return false;
+        }
+
+        int slot = (pipeHead + pipePending) % pipeDepth;
+        ByteBuffer out = pipeOutBuf[slot];
+        ByteBuffer in = pipeInBuf[slot];
+
+        /* Clear the rest of the HID report. Only the bytes written by the
+         * previous command in this slot can be non-zero. Bulk packets are
+         * sent with their actual length. */
+        out.clear();
+        out.put(bytes, 0, length);
+        if (!bulk) {
+            for (int i = length; i < pipeOutLen[slot]; i++) {
+                out.put(i, (byte) 0);
             }
+            pipeOutLen[slot] = length;
+            length = out.capacity();
         }
+        in.clear();
 
-        return res;
+        pipeOutDone[slot] = false;
+        pipeInDone[slot] = false;
+        if (pipeOut[slot].queue(out, length)) {
+            if (pipeIn[slot].queue(in, in.capacity())) {
+                metrics.command(bytes[0], length);
+                pipeSent[slot] = System.nanoTime();
+                pipePending++;
+                return true;
+            }
+            // The OUT request is live: cancel it with the others
+            pipeInDone[slot] = true;
+            pipePending++;
+            abortPipeline();
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the response to the oldest command in flight and copies it
+     * into 'bytes'. If the wait fails, all commands in flight are cancelled.
+     */
+    public boolean usbReceive(byte[] bytes) {
+        if (pipePending == 0) {
+            return false;
+        }
+
+        int slot = pipeHead;
+        while (!(pipeOutDone[slot] && pipeInDone[slot])) {
+            long t = System.nanoTime();
+            UsbRequest r = connection.requestWait();
+            metrics.requestWait(System.nanoTime() - t);
+            if (!markDone(r)) {
+                abortPipeline();
+                return false;
+            }
+        }
+
+        ByteBuffer in = pipeInBuf[slot];
+        metrics.response(in.position() > 0 ? in.position()
+                : in.capacity(), System.nanoTime() - pipeSent[slot]);
+        in.position(0);
+        in.get(bytes, 0, Math.min(bytes.length, in.capacity()));
+
+        pipeHead = (pipeHead + 1) % pipeDepth;
+        pipePending--;
+        return true;
+    }
+
+    /**
+     * Marks a completed request of the pool as done.
+     *
+     * @return False if 'r' is not one of the pool's requests (or null).
+     */
+    private boolean markDone(UsbRequest r) {
+        for (int i = 0; i < pipeDepth; i++) {
+            if (r == pipeOut[i]) {
+                pipeOutDone[i] = true;
+                return true;
+            } else if (r == pipeIn[i]) {
+                pipeInDone[i] = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancels every command in flight and empties the ring. The cancelled
+     * requests are reaped, so that a late completion is never taken for a
+     * later command in the same slot. If they do not all come back (the
+     * probe is gone), the pool is dropped until setPipelineDepth().
+     */
+    private void abortPipeline() {
+        int queued = 0;
+
+        for (int n = 0; n < pipePending; n++) {
+            int slot = (pipeHead + n) % pipeDepth;
+            if (!pipeOutDone[slot]) {
+                pipeOut[slot].cancel();
+                queued++;
+            }
+            if (!pipeInDone[slot]) {
+                pipeIn[slot].cancel();
+                queued++;
+            }
+        }
+        while (queued > 0 && markDone(connection.requestWait())) {
+            queued--;
+        }
+
+        pipeHead = 0;
+        pipePending = 0;
+        if (queued > 0) {
+            // Still queued requests must not be re-used, nor closed
+            pipeDepth = 0;
+        }
+    }
+
+    public DapMetrics getMetrics() {
+        return metrics;
     }
 
     public int getPacketSize() {
-        if (epOut != null) {
-            return epOut.getMaxPacketSize();
-        } else {
-            return 0;
+        return packetSize;
+    }
+
+    /**
+     * Sets the packet size reported by a v2 probe. Bulk packets may be
+     * longer than the endpoint's max packet size. Re-creates the request
+     * pool, so no commands may be in flight.
+     */
+    public boolean setPacketSize(int size) {
+        if (!bulk || size <= 0) {
+            return false;
+        }
+        packetSize = size;
+        return setPipelineDepth(Math.max(pipeDepth, 1));
+    }
+
+    /**
+     * Returns true if the probe has a SWO trace endpoint (v2 only).
+     */
+    public boolean hasSwoEndpoint() {
+        return epSwo != null;
+    }
+
+    /**
+     * Reads SWO trace data from the trace endpoint into 'buf'.
+     * Independent of the command requests, so it may be called from
+     * another thread while commands are in flight.
+     *
+     * @return Number of bytes read, 0 on timeout, or -1 on a transfer
+     *         error (e.g. the probe was unplugged).
+     */
+    public int swoRead(byte[] buf, int timeoutMs) {
+        UsbDeviceConnection conn = connection;
+        UsbEndpoint ep = epSwo;
+
+        if (conn == null || ep == null) {
+            return -1;
+        }
+        long t = System.nanoTime();
+        int n = conn.bulkTransfer(ep, buf, buf.length, timeoutMs);
+        if (n < 0) {
+            // bulkTransfer() fails the same way on timeout. Failing well
+            // before the timeout is an error.
+            long ms = (System.nanoTime() - t) / 1000000;
+            return ms < timeoutMs / 2 ? -1 : 0;
         }
+        return n;
+    }
+
+    /**
+     * Returns true if a CMSIS-DAP v2 (bulk) interface is used.
+     */
+    public boolean isBulk() {
+        return bulk;
     }
 }
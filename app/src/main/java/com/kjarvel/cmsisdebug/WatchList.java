@@ -0,0 +1,268 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A list of watched 32-bit memory words, polled on the probe thread.
+ * Adjacent addresses are grouped into block reads. The last values are
+ * kept in primitive arrays, and only entries that changed since the last
+ * takeChanges() are handed to the UI.
+ *
+ */
+public class WatchList {
+
+    /**
+     * Called on the probe thread when new changes are pending. It is not
+     * called again until the changes have been taken with takeChanges().
+     */
+    public interface Listener {
+        void onChanged();
+    }
+
+    private final int GROUP_GAP = 16;    // Join entries this close (bytes)
+    private final long GROUP_GAP_END = 0x40000000L; // Not in peripherals
+    private final int MAX_GROUP = 1024;  // Max bytes per block read
+
+    /* Entries, sorted by address. Replaced (not modified) when the list
+     * changes, so a poll can tell if its snapshot is still current. */
+    private long[] addrs = new long[0];
+    private int[] values = new int[0];
+    private boolean[] valid = new boolean[0];
+    private boolean[] changed = new boolean[0];
+    private boolean pending = false;
+
+    /* Block reads: first entry and number of entries per group */
+    private int[] groupFirst = new int[0];
+    private int[] groupCount = new int[0];
+    private byte[] buf = new byte[MAX_GROUP];
+
+    private final DebugTarget target;
+    private final ProbeQueue probe;
+    private Listener listener = null;
+    private ScheduledFuture<?> task = null;
+
+    /**
+     * Watches memory of 'target', polled on 'probe'.
+     */
+    public WatchList(DebugTarget target, ProbeQueue probe) {
+        this.target = target;
+        this.probe = probe;
+    }
+
+    /**
+     * Adds a (word aligned) address to the list.
+     *
+     * @return The index of the entry.
+     */
+    public synchronized int add(long addr) {
+        addr &= 0xFFFFFFFCL;
+        int i = Arrays.binarySearch(addrs, addr);
+        if (i >= 0) {
+            return i;
+        }
+        i = -i - 1;
+
+        addrs = insert(addrs, i, addr);
+        values = insert(values, i);
+        valid = insert(valid, i);
+        changed = insert(changed, i);
+        buildGroups();
+        return i;
+    }
+
+    public synchronized void clear() {
+        addrs = new long[0];
+        values = new int[0];
+        valid = new boolean[0];
+        changed = new boolean[0];
+        pending = false;
+        buildGroups();
+    }
+
+    public synchronized int size() {
+        return addrs.length;
+    }
+
+    public synchronized long getAddr(int i) {
+        return addrs[i];
+    }
+
+    public synchronized int getValue(int i) {
+        return values[i];
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts polling every 'periodMs' milliseconds on the probe thread.
+     */
+    public synchronized void start(long periodMs) {
+        stop();
+        task = probe.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    /**
+     * Reads all watched words, one block read per group.
+     * Runs on the probe thread.
+     */
+    public void poll() {
+        long[] a;
+        int[] first;
+        int[] count;
+        boolean notify = false;
+
+        synchronized (this) {
+            a = addrs;
+            first = groupFirst;
+            count = groupCount;
+        }
+
+        for (int g = 0; g < first.length; g++) {
+            int f = first[g];
+            int n = count[g];
+            int len = (int) (a[f + n - 1] - a[f]) + 4;
+
+            if (!target.readMemory(a[f], buf, 0, len)) {
+                continue;
+            }
+
+            synchronized (this) {
+                if (a != addrs) {
+                    return; // The list changed, the next poll reads it
+                }
+                for (int i = f; i < f + n; i++) {
+                    int off = (int) (a[i] - a[f]);
+                    int v = (buf[off] & 0xFF)
+                            | ((buf[off + 1] & 0xFF) << 8)
+                            | ((buf[off + 2] & 0xFF) << 16)
+                            | ((buf[off + 3] & 0xFF) << 24);
+                    if (!valid[i] || values[i] != v) {
+                        values[i] = v;
+                        valid[i] = true;
+                        changed[i] = true;
+                        if (!pending) {
+                            pending = true;
+                            notify = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        Listener l;
+        synchronized (this) {
+            l = listener;
+        }
+        if (notify && l != null) {
+            l.onChanged();
+        }
+    }
+
+    /**
+     * Takes the entries that changed since the last call.
+     * 'idx' and 'val' must have room for size() entries.
+     *
+     * @return The number of changed entries.
+     */
+    public synchronized int takeChanges(int[] idx, int[] val) {
+        int n = 0;
+        for (int i = 0; i < changed.length && n < idx.length; i++) {
+            if (changed[i]) {
+                changed[i] = false;
+                idx[n] = i;
+                val[n] = values[i];
+                n++;
+            }
+        }
+        pending = false;
+        return n;
+    }
+
+    /**
+     * Groups entries that are at most GROUP_GAP bytes apart, up to
+     * MAX_GROUP bytes per group. From GROUP_GAP_END up, only adjacent
+     * words are joined: reading the words in a gap could clear status
+     * flags or pop a FIFO of a peripheral.
+     */
+    private void buildGroups() {
+        int[] first = new int[addrs.length];
+        int[] count = new int[addrs.length];
+        int groups = 0;
+
+        for (int i = 0; i < addrs.length; i++) {
+            if (groups > 0) {
+                int f = first[groups - 1];
+                long gap = addrs[i] < GROUP_GAP_END ? GROUP_GAP : 4;
+                if (addrs[i] - addrs[i - 1] <= gap
+                        && addrs[i] + 4 - addrs[f] <= MAX_GROUP) {
+                    count[groups - 1]++;
+                    continue;
+                }
+            }
+            first[groups] = i;
+            count[groups] = 1;
+            groups++;
+        }
+
+        groupFirst = Arrays.copyOf(first, groups);
+        groupCount = Arrays.copyOf(count, groups);
+    }
+
+    private static long[] insert(long[] a, int i, long v) {
+        long[] b = new long[a.length + 1];
+        System.arraycopy(a, 0, b, 0, i);
+        System.arraycopy(a, i, b, i + 1, a.length - i);
+        b[i] = v;
+        return b;
+    }
+
+    private static int[] insert(int[] a, int i) {
+        int[] b = new int[a.length + 1];
+        System.arraycopy(a, 0, b, 0, i);
+        System.arraycopy(a, i, b, i + 1, a.length - i);
+        return b;
+    }
+
+    private static boolean[] insert(boolean[] a, int i) {
+        boolean[] b = new boolean[a.length + 1];
+        System.arraycopy(a, 0, b, 0, i);
+        System.arraycopy(a, i, b, i + 1, a.length - i);
+        return b;
+    }
+}
@@ -0,0 +1,135 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dap protocol layer benchmarks against SimProbe, in ops/s. The packets
+ * sent are reported as the secondary result "packets" (packets/s), so
+ * packets/op is that score divided by the benchmark score.
+ * Run with: ./gradlew :benchmark:jmh
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DapBenchmark {
+
+    private static final long RAM = 0x20000000L;
+
+    /**
+     * Packets sent, as a JMH secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Packets {
+        public long packets;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+        }
+    }
+
+    /** Simulated USB round trip (ns), 0 = protocol layer cost only */
+    @Param({ "0", "125000" })
+    public long delayNs;
+
+    @Param({ "4096" })
+    public int blockSize;
+
+    private SimProbe sim;
+    private Dap dap;
+    private byte[] block;
+    private long value;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sim = new SimProbe(delayNs);
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        dap.halt();
+        block = new byte[blockSize];
+    }
+
+    @Benchmark
+    public long readWord(Packets p) {
+        long n = sim.getPackets();
+        long v = dap.readAddr(RAM);
+        p.packets += sim.getPackets() - n;
+        return v;
+    }
+
+    @Benchmark
+    public boolean writeWord(Packets p) {
+        long n = sim.getPackets();
+        boolean ok = dap.writeAddr(RAM, value++);
+        p.packets += sim.getPackets() - n;
+        return ok;
+    }
+
+    @Benchmark
+    public boolean readBlock(Packets p) {
+        long n = sim.getPackets();
+        boolean ok = dap.readMemory(RAM, block, 0, block.length);
+        p.packets += sim.getPackets() - n;
+        return ok;
+    }
+
+    @Benchmark
+    public boolean writeBlock(Packets p) {
+        long n = sim.getPackets();
+        boolean ok = dap.writeMemory(RAM, block, 0, block.length);
+        p.packets += sim.getPackets() - n;
+        return ok;
+    }
+
+    @Benchmark
+    public int[] coreRegisters(Packets p) {
+        long n = sim.getPackets();
+        int[] regs = dap.readAllCoreRegs();
+        p.packets += sim.getPackets() - n;
+        return regs;
+    }
+
+    @Benchmark
+    public boolean connect(Packets p) {
+        long n = sim.getPackets();
+        boolean ok = dap.connect();
+        p.packets += sim.getPackets() - n;
+        return ok;
+    }
+}
@@ -0,0 +1,748 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * In-process simulated CMSIS-DAP v2 probe with a Cortex-M target model:
+ * SW-DP with debug power-up and sticky errors, one MEM-AP with 8/16/32-bit
+ * accesses, TAR auto-increment and banked registers, flash, RAM and the
+ * private peripheral bus (SCS, DWT, FPB, ROM table), and a halted core with
+ * debug register access (DHCSR, DCRSR, DCRDR, DFSR). When resumed, it runs
+ * an optional test Program. Packets are answered immediately, optionally
+ * after a fixed delay to model USB round trips.
+ *
+ * Faults can be injected for tests: WAIT and FAULT responses, a powered
+ * down debug domain, a maximum working SWD clock, and firmware without
+ * DAP_ExecuteCommands.
+ *
+ */
+public class SimProbe implements DapTransport {
+
+    public static final int PACKET_SIZE = 512;
+    public static final int PACKET_COUNT = 4;
+    public static final int HID_PACKET_SIZE = 64;
+    public static final long IDCODE = 0x2ba01477L;
+    public static final long FLASH = 0x00000000L;
+    public static final long RAM   = 0x20000000L;
+    public static final int MEM_SIZE = 256 * 1024;
+
+    private static final long PPB   = 0xe0000000L;   // Private peripheral bus
+    private static final int PPB_SIZE = 0x100000;
+    private static final long DHCSR = 0xe000edf0L;
+    private static final long DCRSR = 0xe000edf4L;
+    private static final long DCRDR = 0xe000edf8L;
+    private static final long DFSR  = 0xe000ed30L;
+    private static final long FP_CTRL  = 0xe0002000L;
+    private static final long DWT_CTRL = 0xe0001000L;
+    private static final long ROM_TABLE = 0xe00ff000L;
+    private static final long AP_IDR = 0x24770011L;  // AHB-AP, Cortex-M4
+
+    private static final int ACK_OK    = 0x01;
+    private static final int ACK_WAIT  = 0x02;
+    private static final int ACK_FAULT = 0x04;
+    private static final long PWRUP_REQ = 0x50000000L; // CSYS/CDBGPWRUPREQ
+    private static final long PWRUP_ACK = 0xa0000000L; // CSYS/CDBGPWRUPACK
+    private static final long STICKYERR = 0x00000020L;
+
+    private final DapMetrics metrics = new DapMetrics();
+    private final int packetSize;
+    private final int packetCount;
+    private final long delayNs;
+    private long packets = 0;
+    private int maxRequest = 0;
+
+    /* Responses of submitted commands, oldest first */
+    private final byte[][] pending;
+    private int pendHead = 0;
+    private int pendCount = 0;
+    private final byte[] req;    // Command
+    private final byte[] resp;   // Its response
+
+    /* Probe */
+    private boolean executeCommands = true;
+    private int clock = 0;
+    private int maxClock = Integer.MAX_VALUE;
+
+    /* Injected faults, counted in transfers from now */
+    private long transfers = 0;
+    private long waitAt = -1;
+    private int waitLeft = 0;
+    private long faultAt = -1;
+
+    /* Target */
+    private final byte[] flash = new byte[MEM_SIZE];
+    private final byte[] ram = new byte[MEM_SIZE];
+    private final int[] ppb = new int[PPB_SIZE / 4];
+    private final int[] coreRegs = new int[128];
+    private long select = 0;
+    private long csw = 0;
+    private long tar = 0;
+    private long ctrl = PWRUP_REQ;
+    private long sticky = 0;
+    private boolean halted = true;
+    private Program program = null;
+    private long haltAt = 0;         // nanoTime when a running program halts
+    private boolean haltPending = false;
+    private boolean resetSeen = false;  // DHCSR.S_RESET_ST, clear on read
+    private int stepsLeft = -1;      // Single steps that halt, -1 = all
+
+    /**
+     * Code "run" by the simulated core. It is called when the debugger
+     * resumes the core, and works on the registers and memory directly
+     * (getCoreReg(), setByte(), ...). The core halts again, as on a BKPT,
+     * when the returned time has passed.
+     */
+    public interface Program {
+        /**
+         * @return Milliseconds until the core halts, or -1 to keep running.
+         */
+        int run(SimProbe sim);
+    }
+
+    public SimProbe() {
+        this(0);
+    }
+
+    /**
+     * @param delayNs Round-trip time added to every packet.
+     */
+    public SimProbe(long delayNs) {
+        this(PACKET_SIZE, PACKET_COUNT, delayNs);
+    }
+
+    /**
+     * @param packetSize  Packet size reported by DAP_Info, and the largest
+     *                    command accepted. HID_PACKET_SIZE models a v1 probe.
+     * @param packetCount Packets that may be in flight.
+     * @param delayNs     Round-trip time added to every packet.
+     */
+    public SimProbe(int packetSize, int packetCount, long delayNs) {
+        this.packetSize = packetSize;
+        this.packetCount = packetCount;
+        this.delayNs = delayNs;
+        pending = new byte[packetCount][packetSize];
+        req = new byte[packetSize];
+        resp = new byte[packetSize];
+
+        setPpb(0xe000ed00L, 0x410fc241);   // CPUID: M4
+        setPpb(FP_CTRL, 0x10000060);       // FPB rev 2, 6 code comparators
+        setPpb(DWT_CTRL, 0x40000000);      // 4 DWT comparators
+        setPpb(ROM_TABLE, 0xfff0f003);     // SCS
+        setPpb(ROM_TABLE + 4, 0xfff02003); // DWT
+        setPpb(ROM_TABLE + 8, 0xfff03003); // FPB
+        coreRegs[16] = 0x01000000;         // xPSR: Thumb
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * Returns the longest command received.
+     */
+    public int getMaxRequest() {
+        return maxRequest;
+    }
+
+    /* ---- Fault injection and target access for tests ---- */
+
+    /**
+     * Answers DAP_ExecuteCommands as an unknown command (0xFF) if false,
+     * like firmware older than CMSIS-DAP 1.1.
+     */
+    public void setExecuteCommands(boolean supported) {
+        executeCommands = supported;
+    }
+
+    /**
+     * Corrupts read data while the SWD clock is above 'hz' (every other
+     * read has bit 0 flipped).
+     */
+    public void setMaxClock(int hz) {
+        maxClock = hz;
+    }
+
+    public int getClock() {
+        return clock;
+    }
+
+    /**
+     * Returns the number of transfers done (acknowledged with OK).
+     */
+    public long getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Answers WAIT 'times' times to the transfer after the next 'after'
+     * transfers (as if the probe's own WAIT retries ran out).
+     */
+    public void injectWait(int after, int times) {
+        waitAt = transfers + after;
+        waitLeft = times;
+    }
+
+    /**
+     * Answers FAULT to the transfer after the next 'after' transfers, and
+     * sets STICKYERR. AP accesses then FAULT until ABORT clears it.
+     */
+    public void injectFault(int after) {
+        faultAt = transfers + after;
+    }
+
+    /**
+     * Powers the debug domain down, as after a target power cycle. AP
+     * accesses FAULT until debug power-up is requested in CTRL/STAT.
+     */
+    public void powerDown() {
+        ctrl = 0;
+        sticky = 0;
+    }
+
+    public boolean isSticky() {
+        return sticky != 0;
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    public void setHalted(boolean halted) {
+        this.halted = halted;
+        haltPending = false;
+    }
+
+    /**
+     * Resets the running core, as a watchdog would. DHCSR.S_RESET_ST is
+     * set until DHCSR is next read, and the core keeps running.
+     */
+    public void reset() {
+        resetSeen = true;
+    }
+
+    /**
+     * Lets the next 'steps' single steps halt as usual. The step after
+     * them leaves the core running, as if it stepped into a long wait.
+     */
+    public void runAfterSteps(int steps) {
+        stepsLeft = steps;
+    }
+
+    /**
+     * Sets the program run when the core is resumed (null: run forever).
+     */
+    public void setProgram(Program program) {
+        this.program = program;
+    }
+
+    public int getCoreReg(int sel) {
+        return coreRegs[sel];
+    }
+
+    public void setCoreReg(int sel, int value) {
+        coreRegs[sel] = value;
+    }
+
+    /**
+     * Reads target memory directly, not through the probe.
+     */
+    public byte getByte(long addr) {
+        return (byte) (memRead(addr) >> ((addr & 3) * 8));
+    }
+
+    /**
+     * Writes target memory (also flash) directly, not through the probe.
+     */
+    public void setByte(long addr, byte value) {
+        if (addr >= FLASH && addr < FLASH + MEM_SIZE) {
+            flash[(int) (addr - FLASH)] = value;
+        } else {
+            memWrite(addr, (value & 0xFFL) << ((addr & 3) * 8),
+                    0xFFL << ((addr & 3) * 8));
+        }
+    }
+
+    public long getWord(long addr) {
+        return memRead(addr);
+    }
+
+    public void setWord(long addr, long value) {
+        memWrite(addr, value, 0xFFFFFFFFL);
+    }
+
+    private void setPpb(long addr, int value) {
+        ppb[(int) (addr - PPB) / 4] = value;
+    }
+
+    /* ---- DapTransport ---- */
+
+    public boolean usbXfer(byte[] bytes, int length) {
+        return usbSubmit(bytes, length) && usbReceive(bytes);
+    }
+
+    public boolean usbSubmit(byte[] bytes, int length) {
+        if (pendCount >= packetCount || length > packetSize) {
+            return false;
+        }
+        byte[] resp = pending[(pendHead + pendCount) % packetCount];
+        metrics.command(bytes[0], length);
+        maxRequest = Math.max(maxRequest, length);
+        execute(bytes, length, resp);
+        pendCount++;
+        packets++;
+        return true;
+    }
+
+    public boolean usbReceive(byte[] bytes) {
+        if (pendCount == 0) {
+            return false;
+        }
+        if (delayNs > 0) {
+            long end = System.nanoTime() + delayNs;
+            while (System.nanoTime() < end) {
+                // Busy wait, sleeping is too coarse
+            }
+        }
+        byte[] resp = pending[pendHead];
+        System.arraycopy(resp, 0, bytes, 0, Math.min(bytes.length, packetSize));
+        metrics.response(packetSize, delayNs);
+        pendHead = (pendHead + 1) % packetCount;
+        pendCount--;
+        return true;
+    }
+
+    public int getPipelineDepth() {
+        return packetCount;
+    }
+
+    public DapMetrics getMetrics() {
+        return metrics;
+    }
+
+    /* ---- Commands ---- */
+
+    private static long getWord(byte[] b, int off) {
+        return (b[off] & 0xFFL) | ((b[off + 1] & 0xFFL) << 8)
+                | ((b[off + 2] & 0xFFL) << 16) | ((b[off + 3] & 0xFFL) << 24);
+    }
+
+    private static void putWord(byte[] b, int off, long v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >> 8);
+        b[off + 2] = (byte) (v >> 16);
+        b[off + 3] = (byte) (v >> 24);
+    }
+
+    private void execute(byte[] cmd, int length, byte[] out) {
+        if (cmd[0] == 0x7F) {
+            if (executeCommands) {
+                executeCommands(cmd, out);
+            } else {
+                out[0] = (byte) 0xFF; // Unknown command
+            }
+            return;
+        }
+        System.arraycopy(cmd, 0, req, 0, length);
+        execute(req, out, 0);
+    }
+
+    /**
+     * DAP_ExecuteCommands: runs the sub-commands and concatenates their
+     * responses.
+     */
+    private void executeCommands(byte[] cmd, byte[] out) {
+        int n = cmd[1] & 0xFF;
+        int pos = 2;
+        int off = 2;
+
+        for (int i = 0; i < n; i++) {
+            int len = commandLength(cmd, pos);
+            System.arraycopy(cmd, pos, req, 0, len);
+            off += execute(req, out, off);
+            pos += len;
+        }
+        out[0] = 0x7F;
+        out[1] = (byte) n;
+    }
+
+    /**
+     * Returns the length of the command at 'off'.
+     */
+    private int commandLength(byte[] cmd, int off) {
+        switch (cmd[off]) {
+        case 0x00: return 2;                    // DAP_Info
+        case 0x01: return 3;                    // DAP_LED
+        case 0x02: return 2;                    // DAP_Connect
+        case 0x04: return 6;                    // DAP_TransferConfigure
+        case 0x05:                              // DAP_Transfer
+            int count = cmd[off + 2] & 0xFF;
+            int pos = off + 3;
+            for (int i = 0; i < count; i++) {
+                pos += (cmd[pos] & 0x02) != 0 ? 1 : 5;
+            }
+            return pos - off;
+        case 0x08: return 6;                    // DAP_WriteABORT
+        case 0x10: return 7;                    // DAP_SWJ_Pins
+        case 0x11: return 5;                    // DAP_SWJ_Clock
+        case 0x12:                              // DAP_SWJ_Sequence
+            int bits = cmd[off + 1] & 0xFF;
+            return 2 + ((bits == 0 ? 256 : bits) + 7) / 8;
+        case 0x13: return 2;                    // DAP_SWD_Configure
+        default:   return 1;                    // DAP_Disconnect...
+        }
+    }
+
+    /**
+     * Runs one command, and places the response at 'off'.
+     *
+     * @return The response length.
+     */
+    private int execute(byte[] cmd, byte[] out, int off) {
+        int len = 2;
+
+        resp[0] = cmd[0];
+        resp[1] = 0; // DAP_OK
+
+        switch (cmd[0]) {
+        case 0x00: // DAP_Info
+            len = info(cmd[1] & 0xFF, resp);
+            break;
+        case 0x02: // DAP_Connect
+            resp[1] = 1; // SWD
+            break;
+        case 0x05: // DAP_Transfer
+            len = transfer(cmd, resp);
+            break;
+        case 0x06: // DAP_TransferBlock
+            len = transferBlock(cmd, resp);
+            break;
+        case 0x08: // DAP_WriteABORT
+            abort(getWord(cmd, 2));
+            break;
+        case 0x11: // DAP_SWJ_Clock
+            clock = (int) getWord(cmd, 1);
+            break;
+        default:   // LED, Disconnect, configuration, sequences, pins...
+            break;
+        }
+        System.arraycopy(resp, 0, out, off, Math.min(len, out.length - off));
+        return len;
+    }
+
+    private int info(int id, byte[] resp) {
+        switch (id) {
+        case 0x03:
+            infoString("SIM0001", resp);
+            break;
+        case 0x04:
+            infoString("2.0.0", resp);
+            break;
+        case 0xF0:
+            resp[1] = 1;
+            resp[2] = 0x01; // SWD
+            break;
+        case 0xFE:
+            resp[1] = 1;
+            resp[2] = (byte) packetCount;
+            break;
+        case 0xFF:
+            resp[1] = 2;
+            resp[2] = (byte) packetSize;
+            resp[3] = (byte) (packetSize >> 8);
+            break;
+        default:
+            resp[1] = 0;
+            break;
+        }
+        return 2 + resp[1];
+    }
+
+    private void infoString(String s, byte[] resp) {
+        resp[1] = (byte) (s.length() + 1);
+        for (int i = 0; i < s.length(); i++) {
+            resp[2 + i] = (byte) s.charAt(i);
+        }
+        resp[2 + s.length()] = 0;
+    }
+
+    /**
+     * Returns the ACK for the next transfer, with injected WAIT and FAULT,
+     * and FAULT for AP accesses while powered down or a sticky error is set.
+     */
+    private int ack(int req) {
+        if ((req & 0x0F) == 0x00) {
+            return ACK_OK;      // ABORT is always accepted
+        }
+        if (transfers == waitAt && waitLeft > 0) {
+            waitLeft--;
+            return ACK_WAIT;
+        }
+        if (transfers == faultAt) {
+            faultAt = -1;
+            sticky |= STICKYERR;
+            return ACK_FAULT;
+        }
+        if ((req & 0x01) != 0
+                && (sticky != 0 || (ctrl & PWRUP_REQ) != PWRUP_REQ)) {
+            sticky |= STICKYERR;
+            return ACK_FAULT;
+        }
+        return ACK_OK;
+    }
+
+    /**
+     * Read data as seen by the probe: corrupted above the maximum clock.
+     */
+    private long readData(int req) {
+        long v = read(req);
+        return clock > maxClock ? v ^ (transfers & 1) : v;
+    }
+
+    private int transfer(byte[] cmd, byte[] resp) {
+        int count = cmd[2] & 0xFF;
+        int pos = 3;
+        int data = 3;
+        int ack = ACK_OK;
+        int done = 0;
+
+        for (int i = 0; i < count; i++) {
+            int req = cmd[pos++] & 0xFF;
+            ack = ack(req);
+            if (ack != ACK_OK) {
+                break;
+            }
+            if ((req & 0x02) != 0) {
+                putWord(resp, data, readData(req));
+                data += 4;
+            } else {
+                write(req, getWord(cmd, pos));
+                pos += 4;
+            }
+            transfers++;
+            done++;
+        }
+        resp[1] = (byte) done;
+        resp[2] = (byte) ack;
+        return data;
+    }
+
+    private int transferBlock(byte[] cmd, byte[] resp) {
+        int count = (cmd[2] & 0xFF) | ((cmd[3] & 0xFF) << 8);
+        int req = cmd[4] & 0xFF;
+        int ack = ACK_OK;
+        int done = 0;
+
+        for (int i = 0; i < count; i++) {
+            ack = ack(req);
+            if (ack != ACK_OK) {
+                break;
+            }
+            if ((req & 0x02) != 0) {
+                putWord(resp, 4 + i * 4, readData(req));
+            } else {
+                write(req, getWord(cmd, 5 + i * 4));
+            }
+            transfers++;
+            done++;
+        }
+        resp[1] = (byte) done;
+        resp[2] = (byte) (done >> 8);
+        resp[3] = (byte) ack;
+        return (req & 0x02) != 0 ? 4 + done * 4 : 4;
+    }
+
+    /* ---- DP and AP registers ---- */
+
+    /**
+     * ABORT: DAPABORT cancels a stalled (WAIT) transaction. STKCMPCLR,
+     * STKERRCLR, WDERRCLR and ORUNERRCLR clear the sticky flags.
+     */
+    private void abort(long v) {
+        if ((v & 0x01) != 0) {
+            waitLeft = 0;
+        }
+        if ((v & 0x1e) != 0) {
+            sticky = 0;
+        }
+    }
+
+    private long read(int req) {
+        int reg = req & 0x0C;
+
+        if ((req & 0x01) == 0) {
+            switch (reg) {
+            case 0x00: return IDCODE;
+            case 0x04:
+                long ack = (ctrl & PWRUP_REQ) == PWRUP_REQ ? PWRUP_ACK : 0;
+                return ctrl | ack | sticky;
+            default:   return 0;
+            }
+        }
+        if ((select & 0xF0) == 0xF0) {
+            return reg == 0x0C ? AP_IDR : 0;      // Bank 0xF, IDR at 0xFC
+        }
+        if ((select & 0xF0) == 0x10) {
+            return memRead((tar & ~0xFL) + reg);  // Banked BD0-BD3
+        }
+        switch (reg) {
+        case 0x00: return csw;
+        case 0x04: return tar;
+        case 0x0C:
+            // Only the byte lanes of the access size are valid
+            long v = memRead(tar) & laneMask();
+            increment();
+            return v;
+        default:   return 0;
+        }
+    }
+
+    private void write(int req, long v) {
+        int reg = req & 0x0C;
+
+        if ((req & 0x01) == 0) {
+            if (reg == 0x00) {
+                abort(v);
+            } else if (reg == 0x04) {
+                ctrl = v & PWRUP_REQ;
+            } else if (reg == 0x08) {
+                select = v;
+            }
+            return;
+        }
+        if ((select & 0xF0) == 0x10) {
+            memWrite((tar & ~0xFL) + reg, v, 0xFFFFFFFFL);
+            return;
+        }
+        switch (reg) {
+        case 0x00: csw = v; break;
+        case 0x04: tar = v; break;
+        case 0x0C:
+            memWrite(tar, v, laneMask());
+            increment();
+            break;
+        default:   break;
+        }
+    }
+
+    /**
+     * Returns the byte lanes of a DRW access: CSW.Size and the low TAR bits.
+     */
+    private long laneMask() {
+        switch ((int) (csw & 0x07)) {
+        case 0:  return 0xFFL << ((tar & 3) * 8);
+        case 1:  return 0xFFFFL << ((tar & 2) * 8);
+        default: return 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * TAR single auto-increment by the access size, within the 1 KB block.
+     */
+    private void increment() {
+        if ((csw & 0x30) == 0x10) {
+            int size = 1 << Math.min((int) (csw & 0x07), 2);
+            tar = (tar & ~0x3FFL) | ((tar + size) & 0x3FFL);
+        }
+    }
+
+    /* ---- Target memory (aligned words, with byte lanes) ---- */
+
+    private long memRead(long addr) {
+        addr &= ~3L;
+        if (addr == DHCSR) {
+            if (haltPending && System.nanoTime() - haltAt >= 0) {
+                halted = true;
+                haltPending = false;
+                setPpb(DFSR, ppb[(int) (DFSR - PPB) / 4] | 0x02);  // BKPT
+            }
+            // S_REGRDY | C_DEBUGEN, S_HALT, S_RESET_ST
+            long v = 0x00010001L | (halted ? 0x00020000L : 0)
+                    | (resetSeen ? 0x02000000L : 0);
+            resetSeen = false;
+            return v;
+        }
+        if (addr >= FLASH && addr < FLASH + MEM_SIZE) {
+            return getWord(flash, (int) (addr - FLASH));
+        }
+        if (addr >= RAM && addr < RAM + MEM_SIZE) {
+            return getWord(ram, (int) (addr - RAM));
+        }
+        if (addr >= PPB && addr < PPB + PPB_SIZE) {
+            return ppb[(int) (addr - PPB) / 4] & 0xFFFFFFFFL;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the byte lanes in 'mask' of the word at 'addr'.
+     */
+    private void memWrite(long addr, long v, long mask) {
+        addr &= ~3L;
+        if (addr == DFSR) {
+            ppb[(int) (addr - PPB) / 4] &= ~(int) (v & mask);  // Write 1 to clear
+            return;
+        }
+        v = (memRead(addr) & ~mask) | (v & mask);
+        if (addr == DHCSR) {
+            if ((v >>> 16) == 0xa05f) {
+                boolean wasHalted = halted;
+                haltPending = false;
+                if ((v & 0x02) != 0) {              // C_HALT
+                    halted = true;
+                } else if ((v & 0x04) != 0) {       // C_STEP, only if halted
+                    if (halted) {
+                        coreRegs[15] += 2;
+                        halted = stepsLeft != 0;
+                        if (stepsLeft > 0) {
+                            stepsLeft--;
+                        }
+                    }
+                } else {
+                    halted = false;
+                }
+                if (halted && (!wasHalted || (v & 0x04) != 0)) {
+                    setPpb(DFSR, ppb[(int) (DFSR - PPB) / 4] | 0x01); // HALTED
+                }
+                if (wasHalted && (v & 0x06) == 0 && program != null) {
+                    int ms = program.run(this);
+                    haltAt = System.nanoTime() + ms * 1000000L;
+                    haltPending = ms >= 0;
+                }
+            }
+        } else if (addr == DCRSR) {
+            int sel = (int) (v & 0x7F);
+            int dcrdr = (int) (DCRDR - PPB) / 4;
+            if ((v & 0x10000) != 0) {
+                coreRegs[sel] = ppb[dcrdr];
+            } else {
+                ppb[dcrdr] = coreRegs[sel];
+            }
+        } else if (addr == FP_CTRL) {
+            if ((v & 0x02) != 0) { // KEY
+                ppb[(int) (addr - PPB) / 4] = 0x10000060 | (int) (v & 1);
+            }
+        } else if (addr == DWT_CTRL) {
+            ppb[(int) (addr - PPB) / 4] = 0x40000000 | (int) (v & 0x0FFFFFFF);
+        } else if (addr >= RAM && addr < RAM + MEM_SIZE) {
+            putWord(ram, (int) (addr - RAM), v);
+        } else if (addr >= PPB && addr < PPB + PPB_SIZE) {
+            ppb[(int) (addr - PPB) / 4] = (int) v;
+        }
+        // Flash and everything else are read-only through the AP
+    }
+}
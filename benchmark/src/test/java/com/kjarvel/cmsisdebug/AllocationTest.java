@@ -0,0 +1,102 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the transfer hot path (queueing, flushTransfers(), word and
+ * block accesses) does not allocate, with SimProbe, which does not
+ * allocate either. Measured with the per-thread allocation counter of
+ * HotSpot's ThreadMXBean.
+ *
+ */
+public class AllocationTest {
+
+    private static final long RAM = SimProbe.RAM;
+    private static final int OPS = 20000;
+    private static final long SLACK = 512; // Bytes, for the measuring itself
+
+    private com.sun.management.ThreadMXBean threads;
+    private SimProbe sim;
+    private Dap dap;
+    private byte[] block = new byte[4096];
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean t =
+                ManagementFactory.getThreadMXBean();
+        assumeTrue(t instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) t;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        dap.halt();
+    }
+
+    private long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void transfers(int n) {
+        for (int i = 0; i < n; i++) {
+            int slot = dap.queueReadAddr(RAM + (i & 0xFF) * 4);
+            dap.queueWriteAddr(RAM + 0x400, i);
+            dap.flushTransfers();
+            dap.getTransferData(slot);
+            dap.readAddr(RAM);
+            dap.writeAddr(RAM + 4, i);
+        }
+    }
+
+    private void blocks(int n) {
+        for (int i = 0; i < n; i++) {
+            dap.writeMemory(RAM, block, 0, block.length);
+            dap.readMemory(RAM, block, 0, block.length);
+        }
+    }
+
+    @Test
+    public void transfersDoNotAllocate() {
+        transfers(OPS); // Warm up, so that the JIT has compiled the path
+        long before = allocated();
+        transfers(OPS);
+        long bytes = allocated() - before;
+        assertTrue(bytes + " bytes allocated in " + OPS + " iterations",
+                bytes < SLACK);
+    }
+
+    @Test
+    public void blockTransfersDoNotAllocate() {
+        blocks(OPS / 10);
+        long before = allocated();
+        blocks(OPS / 10);
+        long bytes = allocated() - before;
+        assertTrue(bytes + " bytes allocated in " + OPS / 10 + " iterations",
+                bytes < SLACK);
+    }
+}
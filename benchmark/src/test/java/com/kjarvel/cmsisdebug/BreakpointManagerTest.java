@@ -0,0 +1,135 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Staged FPB breakpoints and DWT watchpoints in BreakpointManager, on
+ * SimProbe (FPB with 6 code comparators, DWT with 4 comparators).
+ *
+ */
+public class BreakpointManagerTest {
+
+    private static final long FP_CTRL   = 0xe0002000L;
+    private static final long FP_COMP0  = 0xe0002008L;
+    private static final long DWT_COMP0 = 0xe0001020L;
+    private static final long DEMCR     = 0xe000edfcL;
+    private static final long VC_BITS   = 0x000007f1L; // Vector catch
+
+    private SimProbe sim;
+    private Dap dap;
+    private BreakpointManager bm;
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        bm = new BreakpointManager(dap);
+    }
+
+    @Test
+    public void countsComparators() {
+        assertEquals(6, bm.getNumBreakpoints());
+        assertEquals(4, bm.getNumWatchpoints());
+    }
+
+    @Test
+    public void watchpointKeepsVectorCatch() {
+        sim.setWord(DEMCR, VC_BITS);
+
+        assertTrue(bm.addWatchpoint(SimProbe.RAM + 0x10, 4,
+                BreakpointManager.WATCH_WRITE));
+        assertTrue(bm.apply());
+
+        assertEquals(0x01000000L | VC_BITS, sim.getWord(DEMCR));
+        assertEquals(SimProbe.RAM + 0x10, sim.getWord(DWT_COMP0));
+        assertEquals(2, sim.getWord(DWT_COMP0 + 4));
+        assertEquals(BreakpointManager.WATCH_WRITE, sim.getWord(DWT_COMP0 + 8));
+    }
+
+    @Test
+    public void watchpointKeepsVectorCatchAfterInvalidate() {
+        bm.getNumWatchpoints();
+        sim.setWord(DEMCR, VC_BITS);
+        bm.invalidate();
+
+        assertTrue(bm.addWatchpoint(SimProbe.RAM, 8,
+                BreakpointManager.WATCH_ACCESS));
+        assertTrue(bm.apply());
+        assertEquals(0x01000000L | VC_BITS, sim.getWord(DEMCR));
+    }
+
+    @Test
+    public void breakpointIsWritten() {
+        assertTrue(bm.addBreakpoint(0x00000100L));
+        assertTrue(bm.apply());
+
+        assertEquals(1, sim.getWord(FP_CTRL) & 1);         // ENABLE
+        assertEquals(0x00000101L, sim.getWord(FP_COMP0));
+    }
+
+    @Test
+    public void rearmingCostsNoWrites() {
+        assertTrue(bm.addBreakpoint(0x00000100L));
+        assertTrue(bm.addWatchpoint(SimProbe.RAM, 4,
+                BreakpointManager.WATCH_READ));
+        assertTrue(bm.apply());
+
+        // As GDB does around every stop
+        long transfers = sim.getTransfers();
+        bm.removeBreakpoint(0x00000100L);
+        bm.removeWatchpoint(SimProbe.RAM, 4, BreakpointManager.WATCH_READ);
+        assertTrue(bm.addBreakpoint(0x00000100L));
+        assertTrue(bm.addWatchpoint(SimProbe.RAM, 4,
+                BreakpointManager.WATCH_READ));
+        assertTrue(bm.apply());
+        assertEquals(transfers, sim.getTransfers());
+    }
+
+    @Test
+    public void clearDisablesComparators() {
+        assertTrue(bm.addBreakpoint(0x00000100L));
+        assertTrue(bm.addWatchpoint(SimProbe.RAM, 4,
+                BreakpointManager.WATCH_WRITE));
+        assertTrue(bm.apply());
+
+        bm.clear();
+        assertTrue(bm.apply());
+        assertEquals(0, sim.getWord(FP_COMP0));
+        assertEquals(0, sim.getWord(DWT_COMP0 + 8));
+    }
+
+    @Test
+    public void unsupportedRequestsAreRejected() {
+        assertFalse(bm.addWatchpoint(SimProbe.RAM + 2, 4,
+                BreakpointManager.WATCH_WRITE));
+        assertFalse(bm.addWatchpoint(SimProbe.RAM, 3,
+                BreakpointManager.WATCH_WRITE));
+        for (int i = 0; i < 6; i++) {
+            assertTrue(bm.addBreakpoint(0x100 + i * 4));
+        }
+        assertFalse(bm.addBreakpoint(0x200));
+    }
+}
@@ -0,0 +1,77 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SWD clock auto-tuning in Dap, against the maximum clock of SimProbe.
+ *
+ */
+public class ClockTuneTest {
+
+    private static final int CONNECT_CLOCK = 100000;    // Dap's initial clock
+
+    private SimProbe sim;
+    private Dap dap;
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+    }
+
+    @Test
+    public void picksFastestWorkingClock() {
+        sim.setMaxClock(4000000);
+        dap.connect();
+
+        assertEquals(4000000, dap.autoTuneClock());
+        assertEquals(4000000, dap.getClock());
+        assertEquals(4000000, sim.getClock());
+    }
+
+    @Test
+    public void tunesColdTarget() {
+        sim.powerDown();
+        sim.setMaxClock(1000000);
+        dap.connect();
+
+        assertEquals(1000000, dap.autoTuneClock());
+    }
+
+    @Test
+    public void keepsVerifiedConnectClock() {
+        sim.setMaxClock(150000);
+        dap.connect();
+
+        assertEquals(CONNECT_CLOCK, dap.autoTuneClock());
+    }
+
+    @Test
+    public void returnsZeroWhenNothingVerifies() {
+        sim.setMaxClock(50000);
+        dap.connect();
+
+        assertEquals(0, dap.autoTuneClock());
+        assertEquals(CONNECT_CLOCK, dap.getClock());
+    }
+}
@@ -0,0 +1,83 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Dap.connect() on a cold target: every connect powers up the debug
+ * domain and clears sticky errors, also when nothing is read after it.
+ *
+ */
+public class ConnectTest {
+
+    private SimProbe sim;
+    private Dap dap;
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+    }
+
+    @Test
+    public void connectPowersUpDebugDomain() {
+        sim.powerDown();
+        assertTrue(dap.connect());
+        assertEquals(SimProbe.IDCODE, dap.getConnectIdCode());
+
+        sim.setWord(SimProbe.RAM, 0x12345678L);
+        byte[] b = new byte[4];
+        assertTrue(dap.readMemory(SimProbe.RAM, b, 0, b.length));
+        assertEquals(0x78, b[0] & 0xff);
+        assertEquals(0x12, b[3] & 0xff);
+    }
+
+    @Test
+    public void connectClearsStickyErrors() {
+        // A previous session left the target powered down, with an error
+        sim.powerDown();
+        byte[] cmd = new byte[SimProbe.PACKET_SIZE];
+        cmd[0] = 0x05;              // DAP_Transfer
+        cmd[2] = 1;
+        cmd[3] = 0x0F;              // AP read DRW
+        sim.usbXfer(cmd, 4);
+        assertEquals(0x04, cmd[2]); // FAULT
+        assertTrue(sim.isSticky());
+
+        assertTrue(dap.connect());
+        assertFalse(sim.isSticky());
+        byte[] b = new byte[4];
+        assertTrue(dap.readMemory(SimProbe.RAM, b, 0, b.length));
+    }
+
+    @Test
+    public void reconnectNeedsNoDiscovery() {
+        sim.powerDown();
+        dap.connect();
+        // The AP IDR is read without any extra power-up
+        long packets = sim.getPackets();
+        assertEquals(0x24770011L, dap.coreId());
+        assertTrue(sim.getPackets() - packets <= 2);
+    }
+}
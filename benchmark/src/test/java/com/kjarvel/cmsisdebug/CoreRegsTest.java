@@ -0,0 +1,89 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Batched core register reads in Dap (readAllCoreRegs).
+ *
+ */
+public class CoreRegsTest {
+
+    private static final long MVFR0 = 0xe000ef40L;
+
+    private SimProbe sim;
+    private Dap dap;
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        for (int sel = 0; sel < 128; sel++) {
+            sim.setCoreReg(sel, 0x1000 + sel);
+        }
+    }
+
+    @Test
+    public void readsAllRegistersInFewPackets() {
+        dap.halt();
+        dap.hasFpu();
+
+        long packets = sim.getPackets();
+        int[] regs = dap.readAllCoreRegs();
+        assertNotNull(regs);
+        assertTrue(sim.getPackets() - packets <= 2);
+
+        assertEquals(20, regs.length);
+        for (int i = 0; i < 19; i++) {
+            assertEquals(0x1000 + i, regs[i]);      // R0-R15, xPSR, MSP, PSP
+        }
+        assertEquals(0x1000 + 20, regs[19]);        // CONTROL/.../PRIMASK
+    }
+
+    @Test
+    public void readsFpuRegistersInFewPackets() {
+        sim.setWord(MVFR0, 0x10110021L);
+        dap.halt();
+        assertTrue(dap.hasFpu());
+
+        long packets = sim.getPackets();
+        int[] regs = dap.readAllCoreRegs();
+        assertNotNull(regs);
+        assertTrue(sim.getPackets() - packets <= 2);
+
+        assertEquals(53, regs.length);
+        assertEquals(0x1000 + 33, regs[20]);        // FPSCR
+        for (int i = 0; i < 32; i++) {
+            assertEquals(0x1000 + 64 + i, regs[21 + i]); // S0-S31
+        }
+    }
+
+    @Test
+    public void runningCoreGivesNull() {
+        dap.run();
+        assertNull(dap.readAllCoreRegs());
+    }
+}
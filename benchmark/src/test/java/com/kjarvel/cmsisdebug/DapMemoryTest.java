@@ -0,0 +1,124 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Memory access through Dap on SimProbe: word, block and 8/16-bit
+ * accesses, which must only touch the bytes asked for.
+ *
+ */
+public class DapMemoryTest {
+
+    private static final long RAM = SimProbe.RAM;
+
+    private SimProbe sim;
+    private Dap dap;
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        dap.halt();
+        for (int i = 0; i < 64; i++) {
+            sim.setByte(RAM + i, (byte) 0xEE);
+        }
+    }
+
+    @Test
+    public void wordRoundTrip() {
+        assertTrue(dap.writeAddr(RAM + 8, 0x12345678L));
+        assertEquals(0x12345678L, dap.readAddr(RAM + 8));
+        assertEquals((byte) 0x78, sim.getByte(RAM + 8));
+        assertEquals((byte) 0x12, sim.getByte(RAM + 11));
+    }
+
+    @Test
+    public void unalignedWriteKeepsNeighbours() {
+        byte[] data = { 1, 2, 3, 4, 5, 6, 7 };
+
+        assertTrue(dap.writeMemory(RAM + 3, data, 0, data.length));
+
+        assertEquals((byte) 0xEE, sim.getByte(RAM + 2));
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], sim.getByte(RAM + 3 + i));
+        }
+        assertEquals((byte) 0xEE, sim.getByte(RAM + 10));
+    }
+
+    @Test
+    public void singleByteAndHalfword() {
+        assertTrue(dap.writeMemory(RAM + 5, new byte[] { 0x11 }, 0, 1));
+        assertTrue(dap.writeMemory(RAM + 10, new byte[] { 0x22, 0x33 }, 0, 2));
+
+        assertEquals(0xEEEE11EEL, sim.getWord(RAM + 4));
+        assertEquals(0x3322EEEEL, sim.getWord(RAM + 8));
+    }
+
+    @Test
+    public void unalignedRead() {
+        for (int i = 0; i < 16; i++) {
+            sim.setByte(RAM + i, (byte) i);
+        }
+        for (int off = 0; off < 4; off++) {
+            for (int len = 1; len <= 9; len++) {
+                byte[] buf = new byte[len];
+                assertTrue(dap.readMemory(RAM + off, buf, 0, len));
+                for (int i = 0; i < len; i++) {
+                    assertEquals("off " + off + " len " + len,
+                            (byte) (off + i), buf[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void blockAcrossTarWrap() {
+        byte[] data = new byte[3000];
+        byte[] back = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+
+        // Starts just below a 1 KB boundary, where TAR stops incrementing
+        assertTrue(dap.writeMemory(RAM + 0x3F8, data, 0, data.length));
+        assertTrue(dap.readMemory(RAM + 0x3F8, back, 0, back.length));
+        assertArrayEquals(data, back);
+    }
+
+    @Test
+    public void writeThatDoesNotFitIsNotShadowed() {
+        long addr = RAM + 0x100;
+        while (dap.queueWriteAddr(addr, addr)) {
+            addr += 8;
+        }
+        assertTrue(dap.flushTransfers());
+        assertEquals(addr - 8, sim.getWord(addr - 8));
+        sim.setWord(addr, 0xCAFEF00DL);
+
+        // The TAR write for 'addr' did not fit, so it was never sent
+        assertEquals(0xCAFEF00DL, dap.readAddr(addr));
+    }
+}
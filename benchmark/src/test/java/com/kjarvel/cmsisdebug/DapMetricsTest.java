@@ -0,0 +1,157 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * DapMetrics counters, latency buckets and percentiles, and the counts
+ * recorded for Dap traffic on SimProbe.
+ *
+ */
+public class DapMetricsTest {
+
+    @Test
+    public void countsCommandsAndBytes() {
+        DapMetrics m = new DapMetrics();
+        m.command(0x05, 10);
+        m.command(0x05, 20);
+        m.command(0x7F, 100);
+        m.response(64, 5000);
+
+        DapMetrics.Snapshot s = m.snapshot();
+        assertEquals(2, s.commands[0x05]);
+        assertEquals(1, s.commands[0x7F]);
+        assertEquals(130, s.bytesOut);
+        assertEquals(64, s.bytesIn);
+        assertEquals(1, s.packets);
+    }
+
+    @Test
+    public void latencyBucketsAndPercentiles() {
+        DapMetrics m = new DapMetrics();
+        for (int i = 0; i < 98; i++) {
+            m.response(0, 500);          // < 1 us: bucket 0
+        }
+        m.response(0, 3000);             // 3 us: bucket 3, exact
+        m.response(0, 1000000);          // 1000 us: bucket 190, [992, 1008)
+
+        DapMetrics.Snapshot s = m.snapshot();
+        assertEquals(100, s.packets);
+        assertEquals(98, s.latency[0]);
+        assertEquals(1, s.latency[3]);
+        assertEquals(1, s.latency[190]);
+        assertEquals(1, s.percentile(50));
+        assertEquals(4, s.percentile(99));
+        assertEquals(1008, s.percentile(100));
+        assertEquals(1000000, s.latencyMax);
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        // Every latency up to the last bucket is reported within 1/32
+        for (long us = 1; us < 2000L * 1000000L; us += us / 7 + 1) {
+            DapMetrics m = new DapMetrics();
+            m.response(0, us * 1000);
+            long p = m.snapshot().percentile(100);
+            assertTrue(us + " -> " + p, p > us && p <= us + us / 32 + 1);
+        }
+
+        // p50 and p99 of a spread of latencies, 100..10099 us
+        DapMetrics m = new DapMetrics();
+        for (int i = 0; i < 10000; i++) {
+            m.response(0, (100 + i) * 1000L);
+        }
+        DapMetrics.Snapshot s = m.snapshot();
+        assertEquals(5099, s.percentile(50), 5099 / 32);
+        assertEquals(10000, s.percentile(99), 10000 / 32);
+    }
+
+    @Test
+    public void bucketLimitsAreContiguous() {
+        for (int i = 1; i < DapMetrics.BUCKETS; i++) {
+            long from = DapMetrics.bucketLimit(i - 1);
+            assertEquals(i, DapMetrics.bucket(from));
+            assertEquals(i, DapMetrics.bucket(DapMetrics.bucketLimit(i) - 1));
+        }
+    }
+
+    @Test
+    public void slowResponsesGoInLastBucket() {
+        DapMetrics m = new DapMetrics();
+        m.response(0, 3600L * 1000000000L);
+        assertEquals(1, m.snapshot().latency[DapMetrics.BUCKETS - 1]);
+    }
+
+    @Test
+    public void countsAcksAndRetries() {
+        DapMetrics m = new DapMetrics();
+        m.ack(0x01);
+        m.ack(0x01);
+        m.ack(0x02);
+        m.ack(0x04);
+        m.ack(0x07);
+        m.ack(0x09);                     // Protocol error, low nibble 9
+        m.retry();
+
+        DapMetrics.Snapshot s = m.snapshot();
+        assertEquals(2, s.ackOk);
+        assertEquals(1, s.ackWait);
+        assertEquals(1, s.ackFault);
+        assertEquals(2, s.ackError);
+        assertEquals(1, s.retries);
+    }
+
+    @Test
+    public void snapshotIsACopy() {
+        DapMetrics m = new DapMetrics();
+        m.command(0x05, 4);
+        DapMetrics.Snapshot s = m.snapshot();
+        m.command(0x05, 4);
+        m.response(0, 1000);
+
+        assertEquals(1, s.commands[0x05]);
+        assertEquals(0, s.packets);
+        assertEquals(2, m.snapshot().commands[0x05]);
+    }
+
+    @Test
+    public void recordsDapTraffic() {
+        SimProbe sim = new SimProbe();
+        Dap dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        DapMetrics.Snapshot before = sim.getMetrics().snapshot();
+
+        byte[] b = new byte[4096];
+        assertTrue(dap.readMemory(SimProbe.RAM, b, 0, b.length));
+        sim.injectWait(2, 1);
+        assertTrue(dap.writeAddr(SimProbe.RAM, 1));
+
+        DapMetrics.Snapshot s = sim.getMetrics().snapshot();
+        long blocks = s.commands[0x06] - before.commands[0x06];
+        assertTrue(blocks >= b.length / SimProbe.PACKET_SIZE);
+        assertEquals(sim.getPackets(), s.packets);
+        assertEquals(1, s.ackWait - before.ackWait);
+        assertEquals(1, s.retries - before.retries);
+        assertTrue(s.bytesIn - before.bytesIn >= b.length);
+        assertTrue(s.toString().contains("Cmd 0x06"));
+    }
+}
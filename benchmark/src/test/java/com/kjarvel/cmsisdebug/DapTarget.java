@@ -0,0 +1,77 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+/**
+ * A DebugTarget on a Dap, for host tests (ARMInfo needs Android).
+ *
+ */
+public class DapTarget implements DebugTarget {
+
+    private final Dap dap;
+    private final BreakpointManager breakpoints;
+
+    public DapTarget(Dap dap) {
+        this.dap = dap;
+        this.breakpoints = new BreakpointManager(dap);
+    }
+
+    public boolean cpuHalt() {
+        return dap.halt();
+    }
+
+    public boolean cpuRun() {
+        return dap.run();
+    }
+
+    public boolean cpuStep() {
+        return dap.step();
+    }
+
+    public boolean isHalted() {
+        return dap.isHalted();
+    }
+
+    public long readDebugStatus() {
+        return dap.readDhcsr();
+    }
+
+    public long takeHaltReason() {
+        return dap.takeDfsr();
+    }
+
+    public int[] readAllCoreRegs() {
+        return dap.readAllCoreRegs();
+    }
+
+    public boolean writeCoreRegs(int[] sel, int[] values, int count) {
+        return dap.writeCoreRegs(sel, values, count);
+    }
+
+    public boolean readMemory(long addr, byte[] dst, int off, int len) {
+        return dap.readMemory(addr, dst, off, len);
+    }
+
+    public boolean writeMemory(long addr, byte[] src, int off, int len) {
+        return dap.writeMemory(addr, src, off, len);
+    }
+
+    public BreakpointManager getBreakpoints() {
+        return breakpoints;
+    }
+}
@@ -0,0 +1,101 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Connect and reset batched with DAP_ExecuteCommands, and the fallback to
+ * one command per packet when the probe does not support it.
+ *
+ */
+public class ExecuteCommandsTest {
+
+    private static final int CMD_EXECUTE = 0x7F;
+
+    private SimProbe sim;
+    private Dap dap;
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+    }
+
+    private long executes() {
+        return sim.getMetrics().snapshot().commands[CMD_EXECUTE];
+    }
+
+    @Test
+    public void connectIsOnePacket() {
+        assertTrue(dap.connect());
+
+        long packets = sim.getPackets();
+        assertTrue(dap.connect());
+        assertEquals(1, sim.getPackets() - packets);
+        assertEquals(SimProbe.IDCODE, dap.idCode());
+    }
+
+    @Test
+    public void fallsBackWhenNotSupported() {
+        sim.setExecuteCommands(false);
+
+        assertTrue(dap.connect());
+        assertEquals(SimProbe.IDCODE, dap.idCode());
+        assertEquals(1, executes());
+
+        // Not tried again
+        long packets = sim.getPackets();
+        assertTrue(dap.connect());
+        assertEquals(SimProbe.IDCODE, dap.idCode());
+        assertEquals(1, executes());
+        assertTrue(sim.getPackets() - packets > 1);
+
+        byte[] b = new byte[4];
+        assertTrue(dap.readMemory(SimProbe.RAM, b, 0, b.length));
+    }
+
+    @Test
+    public void resetFallsBackWhenNotSupported() {
+        sim.setExecuteCommands(false);
+        dap.connect();
+
+        assertTrue(dap.resetPins());
+        assertEquals(SimProbe.IDCODE, dap.idCode());
+        assertEquals(1, executes());
+    }
+
+    @Test
+    public void versionStringsAreTrimmed() {
+        assertEquals("2.0.0", dap.fwVersion());
+        assertEquals("SIM0001", dap.serialNumber());
+    }
+
+    @Test
+    public void oldFirmwareIsNotAsked() {
+        dap.setFwVersion("1.0.0");
+
+        assertTrue(dap.connect());
+        assertEquals(SimProbe.IDCODE, dap.idCode());
+        assertEquals(0, executes());
+    }
+}
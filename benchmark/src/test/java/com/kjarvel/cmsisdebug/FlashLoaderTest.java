@@ -0,0 +1,268 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * FlashLoader on SimProbe, with a generated .FLM and a stub algorithm: a
+ * SimProbe program that does what the function at the PC would do.
+ *
+ */
+public class FlashLoaderTest {
+
+    private static final long RAM = SimProbe.RAM;
+    private static final long ALGO_BASE = RAM + 0x20;  // After the header
+    private static final int SECTOR = 0x1000;
+    private static final int PAGE = 0x100;
+
+    /* Function offsets in PrgCode */
+    private static final int INIT = 0x00;
+    private static final int UNINIT = 0x08;
+    private static final int ERASE = 0x10;
+    private static final int PROGRAM = 0x18;
+
+    private SimProbe sim;
+    private Dap dap;
+    private FlashAlgo algo;
+    private int initMs = 0;
+    private int eraseMs = 0;
+    private int erases = 0;
+    private int pages = 0;
+
+    /**
+     * The stub algorithm. Any PC outside it is the on-target CRC32
+     * routine, computed here with java.util.zip.CRC32.
+     */
+    private final SimProbe.Program stub = new SimProbe.Program() {
+        public int run(SimProbe s) {
+            long r0 = s.getCoreReg(0) & 0xFFFFFFFFL;
+            int r1 = s.getCoreReg(1);
+            long r2 = s.getCoreReg(2) & 0xFFFFFFFFL;
+
+            switch ((int) ((s.getCoreReg(15) & 0xFFFFFFFFL) - ALGO_BASE)) {
+            case INIT:
+                s.setCoreReg(0, 0);
+                return initMs;
+            case UNINIT:
+                s.setCoreReg(0, 0);
+                return 0;
+            case ERASE:
+                for (int i = 0; i < SECTOR; i++) {
+                    s.setByte(r0 + i, (byte) 0xFF);
+                }
+                erases++;
+                s.setCoreReg(0, 0);
+                return eraseMs;
+            case PROGRAM:
+                for (int i = 0; i < r1; i++) {
+                    s.setByte(r0 + i, s.getByte(r2 + i));
+                }
+                pages++;
+                s.setCoreReg(0, 0);
+                return 0;
+            default:
+                CRC32 crc = new CRC32();
+                for (int i = 0; i < r1; i++) {
+                    crc.update(s.getByte(r0 + i));
+                }
+                s.setCoreReg(0, (int) crc.getValue());
+                return 0;
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        sim.setProgram(stub);
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        algo = new FlashAlgo();
+        assertTrue(algo.parse(buildFlm()));
+        for (int i = 0; i < 4 * SECTOR; i++) {
+            sim.setByte(SimProbe.FLASH + i, (byte) (i * 7));
+        }
+    }
+
+    /* ---- A minimal .FLM: PrgCode, PrgData, DevDscr and the symbols ---- */
+
+    private static void putString(ByteBuffer b, int off, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b.put(off + i, (byte) s.charAt(i));
+        }
+    }
+
+    private static byte[] buildFlm() {
+        String shstr = "\0PrgCode\0PrgData\0DevDscr\0.symtab\0.strtab\0.shstrtab\0";
+        String str = "\0Init\0UnInit\0EraseSector\0ProgramPage\0";
+        String[] syms = { "Init", "UnInit", "EraseSector", "ProgramPage" };
+        int[] symValues = { INIT, UNINIT, ERASE, PROGRAM };
+        int code = 52;                 // PrgCode, 0x40 bytes
+        int data = code + 0x40;        // PrgData, 0x10 bytes
+        int dev = data + 0x10;         // FlashDevice, one sector size
+        int symtab = dev + 160 + 16;
+        int strtab = symtab + 16 * (syms.length + 1);
+        int shstrtab = strtab + str.length();
+        int shoff = (shstrtab + shstr.length() + 3) & ~3;
+        ByteBuffer b = ByteBuffer.allocate(shoff + 7 * 40)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        b.put(0, (byte) 0x7F);
+        putString(b, 1, "ELF");
+        b.put(4, (byte) 1);            // ELFCLASS32
+        b.put(5, (byte) 1);            // Little endian
+        b.putInt(0x20, shoff);
+        b.putShort(0x2E, (short) 40);
+        b.putShort(0x30, (short) 7);
+        b.putShort(0x32, (short) 6);
+
+        putString(b, dev + 2, "SimProbe 64kB Flash");
+        b.putInt(dev + 132, (int) SimProbe.FLASH);
+        b.putInt(dev + 136, 0x10000);
+        b.putInt(dev + 140, PAGE);
+        b.put(dev + 148, (byte) 0xFF);
+        b.putInt(dev + 152, 100);      // toProg
+        b.putInt(dev + 156, 300);      // toErase
+        b.putInt(dev + 160, SECTOR);
+        b.putInt(dev + 164, 0);
+        b.putInt(dev + 168, 0xFFFFFFFF);
+        b.putInt(dev + 172, 0xFFFFFFFF);
+
+        for (int i = 0; i < syms.length; i++) {
+            int sym = symtab + 16 * (i + 1);
+            b.putInt(sym, str.indexOf("\0" + syms[i] + "\0") + 1);
+            b.putInt(sym + 4, symValues[i]);
+        }
+        putString(b, strtab, str);
+        putString(b, shstrtab, shstr);
+
+        // name, type, addr, offset, size, link
+        int[][] sections = {
+            { 0, 0, 0, 0, 0, 0 },
+            { shstr.indexOf("PrgCode"), 1, 0, code, 0x40, 0 },
+            { shstr.indexOf("PrgData"), 1, 0x40, data, 0x10, 0 },
+            { shstr.indexOf("DevDscr"), 1, 0, dev, 160 + 16, 0 },
+            { shstr.indexOf(".symtab"), 2, 0, symtab, strtab - symtab, 5 },
+            { shstr.indexOf(".strtab"), 3, 0, strtab, str.length(), 0 },
+            { shstr.indexOf(".shstrtab"), 3, 0, shstrtab, shstr.length(), 0 },
+        };
+        for (int i = 0; i < sections.length; i++) {
+            int sh = shoff + i * 40;
+            b.putInt(sh, sections[i][0]);
+            b.putInt(sh + 4, sections[i][1]);
+            b.putInt(sh + 12, sections[i][2]);
+            b.putInt(sh + 16, sections[i][3]);
+            b.putInt(sh + 20, sections[i][4]);
+            b.putInt(sh + 24, sections[i][5]);
+        }
+        return b.array();
+    }
+
+    private static byte[] image(int len) {
+        byte[] image = new byte[len];
+        for (int i = 0; i < len; i++) {
+            image[i] = (byte) (0x5A ^ i);
+        }
+        return image;
+    }
+
+    private boolean program(long addr, byte[] image) {
+        FlashLoader loader = new FlashLoader(dap, algo, RAM, 0x4000);
+        return loader.program(addr, image, 0, image.length);
+    }
+
+    @Test
+    public void parsesGeneratedFlm() {
+        assertEquals(SECTOR, algo.getSectorSize(SimProbe.FLASH + 0x1234));
+        assertEquals(SimProbe.FLASH + 0x1000,
+                algo.getSectorStart(SimProbe.FLASH + 0x1234));
+        assertEquals(0x40, algo.getDataOffset());
+        assertEquals(PROGRAM, algo.getProgramPage());
+    }
+
+    @Test
+    public void partialSectorsKeepBytesOutsideImage() {
+        long addr = SimProbe.FLASH + 0x0F80;
+        byte[] image = image(0x300);
+
+        assertTrue(program(addr, image));
+        assertEquals(2, erases);
+        for (int i = 0; i < 2 * SECTOR; i++) {
+            byte want = (byte) (i * 7);
+            if (i >= 0x0F80 && i < 0x0F80 + image.length) {
+                want = image[i - 0x0F80];
+            }
+            assertEquals("at " + i, want, sim.getByte(SimProbe.FLASH + i));
+        }
+        // A sector outside the image is untouched
+        assertEquals((byte) (0x2000 * 7), sim.getByte(SimProbe.FLASH + 0x2000));
+    }
+
+    @Test
+    public void unchangedSectorsAreSkipped() {
+        byte[] image = image(2 * SECTOR);
+
+        assertTrue(program(SimProbe.FLASH, image));
+        assertEquals(2, erases);
+        assertEquals(2 * SECTOR / PAGE, pages);
+
+        FlashLoader loader = new FlashLoader(dap, algo, RAM, 0x4000);
+        assertTrue(loader.program(SimProbe.FLASH, image, 0, image.length));
+        assertEquals(2, erases);
+        assertEquals(2 * SECTOR / PAGE, pages);
+        assertTrue(loader.getMsgLog().contains("0 sectors programmed, 2 unchanged"));
+    }
+
+    @Test
+    public void slowEraseDoesNotFloodProbe() {
+        byte[] image = image(SECTOR);
+
+        long before = sim.getPackets();
+        assertTrue(program(SimProbe.FLASH, image));
+        long fast = sim.getPackets() - before;
+
+        // 200 ms per erase: the halt wait backs off instead of spinning
+        eraseMs = 200;
+        before = sim.getPackets();
+        assertTrue(program(SimProbe.FLASH + SECTOR, image));
+        long slow = sim.getPackets() - before;
+
+        assertTrue("packets " + fast + " -> " + slow, slow - fast < 40);
+    }
+
+    @Test
+    public void initThatNeverReturnsFails() {
+        initMs = -1;
+        FlashLoader loader = new FlashLoader(dap, algo, RAM, 0x4000);
+
+        assertFalse(loader.program(SimProbe.FLASH, image(PAGE), 0, PAGE));
+        assertTrue(loader.getMsgLog().contains("Flash Init failed"));
+        assertEquals(0, erases);
+        assertTrue(sim.isHalted());
+    }
+}
@@ -0,0 +1,196 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * GDB remote serial protocol round trips through GdbServer, on SimProbe.
+ *
+ */
+public class GdbServerTest {
+
+    private static final long RAM = SimProbe.RAM;
+
+    private SimProbe sim;
+    private ProbeQueue probe;
+    private GdbServer server;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    @Before
+    public void setUp() throws Exception {
+        sim = new SimProbe();
+        Dap dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        for (int i = 0; i < 4096; i++) {
+            sim.setByte(RAM + i, pattern(RAM + i));
+        }
+
+        probe = new ProbeQueue("probe");
+        server = new GdbServer(new DapTarget(dap), probe);
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        server.start(port);
+
+        for (int i = 0; socket == null; i++) {
+            try {
+                socket = new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                if (i == 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+        socket.setSoTimeout(5000);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+        server.stop();
+        probe.shutdown();
+    }
+
+    /**
+     * Sends a packet, and returns the reply data.
+     */
+    private String command(String data) throws IOException {
+        int sum = 0;
+        for (int i = 0; i < data.length(); i++) {
+            sum += data.charAt(i);
+        }
+        out.write(String.format("$%s#%02x", data, sum & 0xff)
+                .getBytes("ISO-8859-1"));
+        out.flush();
+
+        int c;
+        assertEquals('+', in.read());
+        while ((c = in.read()) != '$') {
+            assertTrue(c >= 0);
+        }
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        while ((c = in.read()) != '#') {
+            assertTrue(c >= 0);
+            reply.write(c);
+        }
+        in.read();
+        in.read();
+        return reply.toString("ISO-8859-1");
+    }
+
+    private static byte pattern(long addr) {
+        return (byte) (addr + (addr >> 8) * 3);
+    }
+
+    private static String hex(long addr, int len) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            sb.append(String.format("%02x", pattern(addr + i) & 0xff));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void queriesAndStatus() throws IOException {
+        assertTrue(command("qSupported:multiprocess+").startsWith("PacketSize="));
+        assertEquals("S05", command("?"));
+        assertEquals("1", command("qAttached"));
+        assertEquals("", command("vMustReplyEmpty"));
+    }
+
+    @Test
+    public void smallReadsAreServedFromReadAhead() throws IOException {
+        assertEquals(hex(RAM + 1, 4), command("m20000001,4"));
+        long packets = sim.getPackets();
+        assertEquals(hex(RAM + 5, 2), command("m20000005,2"));
+        assertEquals(hex(RAM + 0x3f0, 16), command("m200003f0,10"));
+        assertEquals(packets, sim.getPackets());
+    }
+
+    @Test
+    public void unalignedReadAtBlockEnd() throws IOException {
+        // (addr & 3) + len > READ_AHEAD: read directly
+        assertEquals(hex(RAM + 3, 1023), command("m20000003,3ff"));
+        assertEquals(hex(RAM + 0x400, 8), command("m20000400,8"));
+    }
+
+    @Test
+    public void writeDropsReadAhead() throws IOException {
+        assertEquals(hex(RAM, 4), command("m20000000,4"));
+        assertEquals("OK", command("M20000000,2:aabb"));
+        assertEquals("aabb" + hex(RAM + 2, 2), command("m20000000,4"));
+        assertEquals((byte) 0xbb, sim.getByte(RAM + 1));
+    }
+
+    @Test
+    public void failedReadAheadIsNotServed() throws IOException {
+        assertEquals(hex(RAM, 4), command("m20000000,4"));
+
+        // The block read at 0x20000800 faults half way
+        sim.injectFault(200);
+        command("m20000800,4");
+
+        assertEquals(hex(RAM, 4), command("m20000000,4"));
+        assertEquals(hex(RAM + 0x800, 4), command("m20000800,4"));
+    }
+
+    @Test
+    public void registers() throws IOException {
+        sim.setCoreReg(0, 0x11223344);
+        sim.setCoreReg(15, 0x08000100);
+
+        String regs = command("g");
+        assertEquals(17 * 8, regs.length());
+        assertTrue(regs.startsWith("44332211"));
+        assertEquals("00010008", regs.substring(15 * 8, 16 * 8));
+
+        assertEquals("OK", command("P1=efbeadde"));
+        assertEquals(0xdeadbeef, sim.getCoreReg(1));
+        assertEquals("efbeadde", command("p1"));
+    }
+
+    @Test
+    public void stepAppliesWatchpoints() throws IOException {
+        sim.setCoreReg(15, 0x100);
+
+        assertEquals("OK", command("Z2,20000100,4"));
+        assertEquals("S05", command("s"));
+        assertEquals(0x102, sim.getCoreReg(15));
+        assertEquals(RAM + 0x100, sim.getWord(0xe0001020L)); // DWT_COMP0
+        assertEquals(BreakpointManager.WATCH_WRITE,
+                sim.getWord(0xe0001028L));                   // DWT_FUNCTION0
+    }
+}
@@ -0,0 +1,260 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * HaltMonitor on SimProbe: the poll back-off, the hold-off while probe
+ * commands are queued, and the halt reason and registers it reports.
+ *
+ */
+public class HaltMonitorTest {
+
+    private static final long DFSR = 0xe000ed30L;
+
+    private SimProbe sim;
+    private Dap dap;
+    private ProbeQueue queue;
+    private HaltMonitor monitor;
+    private final CountDownLatch halted = new CountDownLatch(1);
+    private int reason = -1;
+    private int[] regs = null;
+
+    /* Poll times (ns) and the period each poll was scheduled with */
+    private final List<Long> pollTimes = new ArrayList<>();
+    private final List<Integer> pollPeriods = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        queue = new ProbeQueue("test");
+        monitor = new HaltMonitor(new DapTarget(dap) {
+            @Override
+            public long readDebugStatus() {
+                synchronized (pollTimes) {
+                    pollTimes.add(System.nanoTime());
+                    pollPeriods.add(monitor.getPeriod());
+                }
+                return super.readDebugStatus();
+            }
+        }, queue);
+        monitor.setListener(new HaltMonitor.Listener() {
+            public void onHalt(int r, int[] values) {
+                reason = r;
+                regs = values;
+                halted.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        monitor.stop();
+        queue.shutdown();
+    }
+
+    private int polls() {
+        synchronized (pollTimes) {
+            return pollTimes.size();
+        }
+    }
+
+    @Test
+    public void pollPeriodBacksOff() throws Exception {
+        sim.setHalted(false);
+        monitor.resumed();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (polls() < 11 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        monitor.stop();
+
+        int[] want = { 1, 2, 4, 8, 16, 32, 64, 128, 200, 200, 200 };
+        synchronized (pollTimes) {
+            assertTrue(pollTimes.size() >= want.length);
+            for (int i = 0; i < want.length; i++) {
+                assertEquals("poll " + i, want[i], (int) pollPeriods.get(i));
+            }
+            // Each poll is at least its period after the previous one
+            for (int i = 1; i < want.length; i++) {
+                long gap = pollTimes.get(i) - pollTimes.get(i - 1);
+                assertTrue("poll " + i + " after " + gap + " ns",
+                        gap >= want[i] * 1000000L);
+            }
+        }
+        assertEquals(1, halted.getCount());
+    }
+
+    @Test
+    public void pollsWaitForQueuedCommands() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        sim.setHalted(false);
+        monitor.resumed();
+        while (polls() < 3) {
+            Thread.sleep(1);
+        }
+
+        // A long command, while the next poll becomes due
+        queue.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                started.countDown();
+                return release.await(5, TimeUnit.SECONDS);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final int before = polls();
+        Thread.sleep(3 * monitor.getPeriod() + 20);
+
+        // Queued after the due poll, but runs before it
+        Future<Integer> next = queue.submit(new Callable<Integer>() {
+            public Integer call() {
+                return polls();
+            }
+        });
+        release.countDown();
+
+        assertEquals(before, (int) next.get(5, TimeUnit.SECONDS));
+        Thread.sleep(3 * monitor.getPeriod() + 20);
+        assertTrue(polls() > before);
+        assertTrue(monitor.isRunning());
+    }
+
+    @Test
+    public void busyProbeBacksOff() throws Exception {
+        Callable<Boolean> command = new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                Thread.sleep(2);
+                return true;
+            }
+        };
+
+        sim.setHalted(false);
+        monitor.resumed();
+        while (polls() < 3) {
+            Thread.sleep(1);
+        }
+
+        // Commands queued faster than they run: no poll gets through
+        int before = polls();
+        Future<Boolean> last = null;
+        long end = System.currentTimeMillis() + 3000;
+        while (monitor.getPeriod() < 200 && System.currentTimeMillis() < end) {
+            last = queue.submit(command);
+            Thread.sleep(1);
+        }
+        assertEquals(200, monitor.getPeriod());
+        assertTrue(polls() - before <= 1);
+
+        assertTrue(last.get(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (polls() == before && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(polls() > before);
+        assertTrue(monitor.isRunning());
+    }
+
+    @Test
+    public void resetIsReportedWithLaterHalt() throws Exception {
+        sim.setHalted(false);
+        monitor.resumed();
+        queue.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                sim.reset();
+                return true;
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        // S_RESET_ST is read (and cleared) by a poll, the core runs on
+        int before = polls();
+        while (polls() < before + 2) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, halted.getCount());
+        assertTrue(monitor.isRunning());
+
+        queue.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return dap.halt();
+            }
+        });
+        assertTrue(halted.await(5, TimeUnit.SECONDS));
+        assertEquals(HaltMonitor.REASON_HALTED | HaltMonitor.REASON_RESET,
+                reason);
+        assertEquals("HALTED RESET", HaltMonitor.reasonText(reason));
+    }
+
+    @Test
+    public void reportsBreakpointAndRegisters() throws Exception {
+        sim.setProgram(new SimProbe.Program() {
+            public int run(SimProbe s) {
+                s.setCoreReg(15, 0x00000124);
+                s.setCoreReg(14, 0x00000101);
+                return 20;              // Then a BKPT
+            }
+        });
+        assertTrue(dap.run());
+        monitor.resumed();
+
+        assertTrue(halted.await(5, TimeUnit.SECONDS));
+        assertEquals(HaltMonitor.REASON_BKPT, reason);
+        assertNotNull(regs);
+        assertEquals(0x00000124, regs[15]);
+        assertEquals(0x00000101, regs[14]);
+        assertEquals("BKPT", HaltMonitor.reasonText(reason));
+
+        // The reason was read and cleared, and polling has stopped
+        assertEquals(0, sim.getWord(DFSR));
+        assertFalse(monitor.isRunning());
+    }
+
+    @Test
+    public void reportsHaltRequest() throws Exception {
+        sim.setHalted(false);
+        monitor.resumed();
+        queue.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                return dap.halt();
+            }
+        });
+
+        assertTrue(halted.await(5, TimeUnit.SECONDS));
+        assertEquals(HaltMonitor.REASON_HALTED, reason);
+        assertNotNull(regs);
+    }
+}
@@ -0,0 +1,156 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Dumping, cancelling and resuming with MemoryDump, from SimProbe RAM.
+ *
+ */
+public class MemoryDumpTest {
+
+    private static final long RAM = SimProbe.RAM;
+    private static final int LEN = 150 * 1024 + 100;
+    private static final int WINDOW = 64 * 1024;
+
+    private SimProbe sim;
+    private Dap dap;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        for (int i = 0; i < LEN; i++) {
+            sim.setByte(RAM + i, (byte) (i * 7 + (i >> 8)));
+        }
+        file = File.createTempFile("dump", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void assertDumped() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(LEN, raf.length());
+            byte[] b = new byte[LEN];
+            raf.readFully(b);
+            for (int i = 0; i < LEN; i++) {
+                assertEquals("offset " + i, sim.getByte(RAM + i), b[i]);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Records the first progress, and cancels the dump at 'cancelAt'.
+     */
+    private static class Recorder implements MemoryDump.Progress {
+        final MemoryDump dump;
+        final long cancelAt;
+        long first = -1;
+        long last = -1;
+
+        Recorder(MemoryDump dump, long cancelAt) {
+            this.dump = dump;
+            this.cancelAt = cancelAt;
+        }
+
+        public void onProgress(long done, long total) {
+            if (first < 0) {
+                first = done;
+            }
+            last = done;
+            if (done >= cancelAt) {
+                dump.cancel();
+            }
+        }
+    }
+
+    @Test
+    public void dumpsWholeRange() throws IOException {
+        MemoryDump dump = new MemoryDump();
+        assertTrue(dump.dump(dap, RAM, LEN, file, false, null));
+        assertDumped();
+    }
+
+    @Test
+    public void cancelTruncatesToWhatWasRead() {
+        MemoryDump dump = new MemoryDump();
+        Recorder r = new Recorder(dump, WINDOW + 3 * 4096);
+
+        assertFalse(dump.dump(dap, RAM, LEN, file, false, r));
+        assertEquals(WINDOW + 3 * 4096, r.last);
+        assertEquals(r.last, file.length());
+    }
+
+    @Test
+    public void resumesFromLastWindow() throws IOException {
+        MemoryDump dump = new MemoryDump();
+        assertFalse(dump.dump(dap, RAM, LEN, file, false,
+                new Recorder(dump, WINDOW + 3 * 4096)));
+
+        // The last window may be incomplete, so it is read again
+        Recorder r = new Recorder(dump, Long.MAX_VALUE);
+        assertTrue(dump.dump(dap, RAM, LEN, file, true, r));
+        assertEquals(WINDOW + 4096, r.first);
+        assertEquals(LEN, r.last);
+        assertDumped();
+    }
+
+    @Test
+    public void resumeAtWindowBoundary() throws IOException {
+        MemoryDump dump = new MemoryDump();
+        assertFalse(dump.dump(dap, RAM, LEN, file, false,
+                new Recorder(dump, 2 * WINDOW)));
+        assertEquals(2 * WINDOW, file.length());
+
+        Recorder r = new Recorder(dump, Long.MAX_VALUE);
+        assertTrue(dump.dump(dap, RAM, LEN, file, true, r));
+        assertEquals(WINDOW + 4096, r.first);
+        assertDumped();
+    }
+
+    @Test
+    public void withoutResumeStartsOver() throws IOException {
+        MemoryDump dump = new MemoryDump();
+        assertFalse(dump.dump(dap, RAM, LEN, file, false,
+                new Recorder(dump, WINDOW + 3 * 4096)));
+
+        Recorder r = new Recorder(dump, Long.MAX_VALUE);
+        assertTrue(dump.dump(dap, RAM, LEN, file, false, r));
+        assertEquals(4096, r.first);
+        assertDumped();
+    }
+}
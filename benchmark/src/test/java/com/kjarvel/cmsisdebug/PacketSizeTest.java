@@ -0,0 +1,95 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Packet sizes: a 64-byte HID probe and a CMSIS-DAP v2 bulk probe with
+ * 512-byte packets. Dap must use the packet size it is given, never send
+ * more (SimProbe rejects longer commands), and send only the bytes needed.
+ *
+ */
+public class PacketSizeTest {
+
+    private static final long RAM = SimProbe.RAM;
+    private static final int BLOCK = 4096;
+
+    /**
+     * Writes and reads back a block, and returns the packets used.
+     */
+    private long blockRoundTrip(SimProbe sim, Dap dap) {
+        byte[] data = new byte[BLOCK];
+        byte[] back = new byte[BLOCK];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i ^ (i >> 8));
+        }
+
+        long before = sim.getPackets();
+        assertTrue(dap.writeMemory(RAM, data, 0, data.length));
+        assertTrue(dap.readMemory(RAM, back, 0, back.length));
+        assertArrayEquals(data, back);
+        return sim.getPackets() - before;
+    }
+
+    @Test
+    public void hidProbe() {
+        SimProbe sim = new SimProbe(SimProbe.HID_PACKET_SIZE, 1, 0);
+        Dap dap = new Dap(SimProbe.HID_PACKET_SIZE, sim);
+
+        assertEquals(SimProbe.HID_PACKET_SIZE, dap.packetSize());
+        assertEquals(1, dap.packetCount());
+        dap.connect();
+        assertEquals(SimProbe.IDCODE, dap.idCode());
+
+        long packets = blockRoundTrip(sim, dap);
+        assertTrue(sim.getMaxRequest() <= SimProbe.HID_PACKET_SIZE);
+        // 15 words per packet each way
+        assertTrue(packets >= 2 * BLOCK / 60);
+    }
+
+    @Test
+    public void bulkProbeUsesLargePackets() {
+        SimProbe hidSim = new SimProbe(SimProbe.HID_PACKET_SIZE, 1, 0);
+        Dap hid = new Dap(SimProbe.HID_PACKET_SIZE, hidSim);
+        hid.connect();
+        SimProbe sim = new SimProbe();
+        Dap dap = new Dap(SimProbe.PACKET_SIZE, sim);
+
+        assertEquals(SimProbe.PACKET_SIZE, dap.packetSize());
+        assertEquals(SimProbe.PACKET_COUNT, dap.packetCount());
+        dap.connect();
+
+        long packets = blockRoundTrip(sim, dap);
+        assertTrue(sim.getMaxRequest() > SimProbe.HID_PACKET_SIZE);
+        assertTrue(packets * 4 <= blockRoundTrip(hidSim, hid));
+    }
+
+    @Test
+    public void shortCommandsAreNotPadded() {
+        SimProbe sim = new SimProbe();
+        Dap dap = new Dap(SimProbe.PACKET_SIZE, sim);
+
+        dap.readAddr(RAM);
+        assertTrue(sim.getMaxRequest() < 32);
+    }
+}
@@ -0,0 +1,175 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ordering, callbacks and the busy state of ProbeQueue.
+ *
+ */
+public class ProbeQueueTest {
+
+    private ProbeQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new ProbeQueue("test");
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test
+    public void commandsRunInOrderOnOneThread() throws Exception {
+        final List<Integer> order =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> threads =
+                Collections.synchronizedList(new ArrayList<String>());
+        Future<Integer> last = null;
+
+        for (int i = 0; i < 50; i++) {
+            final int n = i;
+            last = queue.submit(new Callable<Integer>() {
+                public Integer call() {
+                    order.add(n);
+                    threads.add(Thread.currentThread().getName());
+                    return n;
+                }
+            });
+        }
+        assertEquals(Integer.valueOf(49), last.get(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+            assertEquals("test", threads.get(i));
+        }
+    }
+
+    @Test
+    public void callbackGetsResult() throws Exception {
+        final AtomicReference<String> result = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        queue.submit(new Callable<String>() {
+            public String call() {
+                return "halted";
+            }
+        }, new ProbeQueue.Callback<String>() {
+            public void onResult(String r) {
+                result.set(r);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("halted", result.get());
+    }
+
+    @Test
+    public void callbackGetsNullWhenCommandThrows() throws Exception {
+        final AtomicReference<String> result =
+                new AtomicReference<String>("unset");
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Future<String> f = queue.submit(new Callable<String>() {
+            public String call() {
+                throw new IllegalStateException("probe gone");
+            }
+        }, new ProbeQueue.Callback<String>() {
+            public void onResult(String r) {
+                result.set(r);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(result.get());
+        try {
+            f.get();
+            assertTrue(false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(queue.isBusy());
+    }
+
+    @Test
+    public void busyWhileCommandsArePending() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        assertFalse(queue.isBusy());
+        Future<Boolean> f = queue.submit(new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+                return release.await(5, TimeUnit.SECONDS);
+            }
+        });
+        assertTrue(queue.isBusy());
+        release.countDown();
+        assertTrue(f.get(5, TimeUnit.SECONDS));
+        assertFalse(queue.isBusy());
+    }
+
+    @Test
+    public void scheduledTasksAreNotCounted() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<Boolean> busy = new AtomicReference<Boolean>();
+
+        queue.schedule(new Runnable() {
+            public void run() {
+                busy.set(queue.isBusy());
+                ran.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(busy.get());
+    }
+
+    @Test
+    public void rejectedCommandIsNotCounted() {
+        queue.shutdown();
+        try {
+            queue.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return true;
+                }
+            });
+            assertTrue(false);
+        } catch (RejectedExecutionException e) {
+            // Expected after shutdown
+        }
+        assertFalse(queue.isBusy());
+    }
+}
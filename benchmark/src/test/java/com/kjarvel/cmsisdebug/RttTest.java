@@ -0,0 +1,171 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Rtt on SimProbe: control block discovery, up-buffer reads with and
+ * without wrap-around, and the read offset written back to the target.
+ *
+ */
+public class RttTest {
+
+    private static final long RAM = SimProbe.RAM;
+    private static final long CB = RAM + 1020;   // Across the first scan chunk
+    private static final long BUF0 = RAM + 0x2000;
+    private static final long BUF1 = RAM + 0x2100;
+
+    private SimProbe sim;
+    private ProbeQueue queue;
+    private Rtt rtt;
+    private ByteArrayOutputStream[] received = {
+        new ByteArrayOutputStream(), new ByteArrayOutputStream()
+    };
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        Dap dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        queue = new ProbeQueue("test");
+        rtt = new Rtt(new DapTarget(dap), queue);
+        rtt.setListener(new Rtt.Listener() {
+            public void onData(int channel, byte[] data, int len) {
+                received[channel].write(data, 0, len);
+            }
+        });
+
+        String id = "SEGGER RTT";
+        for (int i = 0; i < id.length(); i++) {
+            sim.setByte(CB + i, (byte) id.charAt(i));
+        }
+        sim.setWord(CB + 16, 2);                  // MaxNumUp
+        sim.setWord(CB + 20, 0);                  // MaxNumDown
+        setUpBuffer(0, BUF0, 16);
+        setUpBuffer(1, BUF1, 64);
+        for (int i = 0; i < 16; i++) {
+            sim.setByte(BUF0 + i, (byte) ('a' + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        rtt.stop();
+        queue.shutdown();
+    }
+
+    private long desc(int ch) {
+        return CB + 24 + ch * 24;
+    }
+
+    private void setUpBuffer(int ch, long buffer, int size) {
+        sim.setWord(desc(ch) + 4, buffer);
+        sim.setWord(desc(ch) + 8, size);
+        setOffsets(ch, 0, 0);
+    }
+
+    private void setOffsets(int ch, int wrOff, int rdOff) {
+        sim.setWord(desc(ch) + 12, wrOff);
+        sim.setWord(desc(ch) + 16, rdOff);
+    }
+
+    @Test
+    public void findsControlBlockAcrossScanChunks() {
+        assertTrue(rtt.find(RAM, 4096));
+        assertEquals(CB, rtt.getAddress());
+        assertEquals(2, rtt.getNumUpBuffers());
+    }
+
+    @Test
+    public void noControlBlock() {
+        assertFalse(rtt.find(RAM + 0x4000, 4096));
+        assertEquals(-1, rtt.poll());
+    }
+
+    @Test
+    public void readsUpToWriteOffset() {
+        assertTrue(rtt.attach(CB));
+        setOffsets(0, 5, 0);
+
+        assertEquals(5, rtt.poll());
+        assertEquals("abcde", received[0].toString());
+        assertEquals(5, sim.getWord(desc(0) + 16));
+
+        // Nothing new
+        assertEquals(0, rtt.poll());
+        assertEquals(5, received[0].size());
+    }
+
+    @Test
+    public void wrappedBufferIsReadInOrder() {
+        assertTrue(rtt.find(RAM, 4096));
+        setOffsets(0, 4, 10);
+
+        assertEquals(10, rtt.poll());
+        assertEquals("klmnopabcd", received[0].toString());
+        // RdOff written back past the wrap, to WrOff
+        assertEquals(4, sim.getWord(desc(0) + 16));
+        assertEquals(4, sim.getWord(desc(0) + 12));
+    }
+
+    @Test
+    public void eachChannelHasItsOwnOffsets() {
+        assertTrue(rtt.attach(CB));
+        sim.setByte(BUF1 + 20, (byte) 'z');
+        setOffsets(0, 2, 0);
+        setOffsets(1, 21, 20);
+
+        assertEquals(3, rtt.poll());
+        assertEquals("ab", received[0].toString());
+        assertEquals("z", received[1].toString());
+        assertEquals(2, sim.getWord(desc(0) + 16));
+        assertEquals(21, sim.getWord(desc(1) + 16));
+    }
+
+    @Test
+    public void pollsOnProbeThreadWhenStarted() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        assertTrue(rtt.attach(CB));
+        setOffsets(0, 3, 0);
+        rtt.setListener(new Rtt.Listener() {
+            public void onData(int channel, byte[] data, int len) {
+                received[channel].write(data, 0, len);
+                done.countDown();
+            }
+        });
+        rtt.start();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(rtt.isRunning());
+        rtt.stop();
+        assertFalse(rtt.isRunning());
+        assertEquals("abc", received[0].toString());
+    }
+}
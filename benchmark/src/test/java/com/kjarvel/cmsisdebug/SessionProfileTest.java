@@ -0,0 +1,242 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import android.content.SharedPreferences;
+
+/**
+ * SessionProfile save, load and invalidation on in-memory preferences.
+ *
+ */
+public class SessionProfileTest {
+
+    private static final String SERIAL = "0240000034544e45";
+    private static final long DPIDR_A = 0x2ba01477L;
+    private static final long DPIDR_B = 0x0bc11477L;
+
+    /**
+     * SharedPreferences with the strings in a map. Only what
+     * SessionProfile uses is implemented.
+     */
+    private static class Prefs implements SharedPreferences {
+        final Map<String, String> map = new HashMap<>();
+
+        public Map<String, ?> getAll() {
+            return map;
+        }
+
+        public String getString(String key, String defValue) {
+            return map.containsKey(key) ? map.get(key) : defValue;
+        }
+
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getInt(String key, int defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getLong(String key, long defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        public float getFloat(String key, float defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean contains(String key) {
+            return map.containsKey(key);
+        }
+
+        public Editor edit() {
+            return new Editor() {
+                private final Map<String, String> put = new HashMap<>();
+
+                public Editor putString(String key, String value) {
+                    put.put(key, value);
+                    return this;
+                }
+
+                public Editor putStringSet(String key, Set<String> values) {
+                    throw new UnsupportedOperationException();
+                }
+
+                public Editor putInt(String key, int value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                public Editor putLong(String key, long value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                public Editor putFloat(String key, float value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                public Editor putBoolean(String key, boolean value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                public Editor remove(String key) {
+                    throw new UnsupportedOperationException();
+                }
+
+                public Editor clear() {
+                    throw new UnsupportedOperationException();
+                }
+
+                public boolean commit() {
+                    map.putAll(put);
+                    return true;
+                }
+
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+    }
+
+    private final Prefs prefs = new Prefs();
+
+    private SessionProfile profile(long dpidr) {
+        SessionProfile p = new SessionProfile(SERIAL);
+        p.fwVersion = "2.1.0";
+        p.caps = 0x13;
+        p.packetSize = 512;
+        p.packetCount = 8;
+        p.dpidr = dpidr;
+        p.clock = 4000000;
+        p.apIdr = 0x24770011;
+        p.cpuId = 0x410fc241;
+        return p;
+    }
+
+    @Test
+    public void savedProfileLoads() {
+        profile(DPIDR_A).save(prefs);
+
+        SessionProfile p = SessionProfile.load(prefs, SERIAL);
+        assertEquals("2.1.0", p.fwVersion);
+        assertEquals(0x13, p.caps);
+        assertEquals(512, p.packetSize);
+        assertEquals(8, p.packetCount);
+        assertEquals(DPIDR_A, p.dpidr);
+        assertEquals(4000000, p.clock);
+        assertEquals(0x24770011, p.apIdr);
+        assertEquals(0x410fc241, p.cpuId);
+    }
+
+    @Test
+    public void probeWithoutTargetLoads() {
+        profile(0).save(prefs);
+
+        SessionProfile p = SessionProfile.load(prefs, SERIAL);
+        assertEquals(512, p.packetSize);
+        assertEquals(0, p.dpidr);
+        assertEquals(0, p.clock);
+        assertEquals(1, prefs.map.size());
+    }
+
+    @Test
+    public void eachTargetIsKept() {
+        profile(DPIDR_A).save(prefs);
+
+        // Moved to another board
+        SessionProfile p = SessionProfile.load(prefs, SERIAL);
+        assertFalse(p.loadTarget(prefs, DPIDR_B));
+        assertEquals(0, p.dpidr);
+        assertEquals(0, p.clock);
+        assertEquals(0, p.cpuId);
+        p.dpidr = DPIDR_B;
+        p.clock = 1000000;
+        p.save(prefs);
+
+        p = SessionProfile.load(prefs, SERIAL);
+        assertEquals(DPIDR_B, p.dpidr);
+        assertEquals(1000000, p.clock);
+        assertTrue(p.loadTarget(prefs, DPIDR_A));
+        assertEquals(DPIDR_A, p.dpidr);
+        assertEquals(4000000, p.clock);
+    }
+
+    @Test
+    public void clearedTargetIsNotLoaded() {
+        SessionProfile p = profile(DPIDR_A);
+        p.save(prefs);
+        p.clearTarget();
+        p.save(prefs);
+
+        p = SessionProfile.load(prefs, SERIAL);
+        assertEquals("2.1.0", p.fwVersion);
+        assertEquals(0, p.dpidr);
+        assertEquals(0, p.clock);
+    }
+
+    @Test
+    public void missingOrInvalidProfileIsNotLoaded() {
+        assertNull(SessionProfile.load(prefs, SERIAL));
+        assertNull(SessionProfile.load(null, SERIAL));
+
+        profile(DPIDR_A).save(prefs);
+        assertNull(SessionProfile.load(prefs, ""));
+        assertNull(SessionProfile.load(prefs, "other"));
+
+        prefs.map.put("profile_" + SERIAL, "2.1.0,19,512,8");
+        assertNull(SessionProfile.load(prefs, SERIAL));
+        prefs.map.put("profile_" + SERIAL, "2.1.0,19,x,8,0");
+        assertNull(SessionProfile.load(prefs, SERIAL));
+    }
+
+    @Test
+    public void invalidTargetIsCleared() {
+        profile(DPIDR_A).save(prefs);
+        prefs.map.put("profile_" + SERIAL + "_" + Long.toHexString(DPIDR_A),
+                "4000000,zz,410fc241");
+
+        SessionProfile p = SessionProfile.load(prefs, SERIAL);
+        assertEquals(512, p.packetSize);
+        assertEquals(0, p.dpidr);
+        assertEquals(0, p.clock);
+        assertEquals(0, p.apIdr);
+    }
+}
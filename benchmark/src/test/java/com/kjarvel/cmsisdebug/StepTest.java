@@ -0,0 +1,112 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Batched single stepping in Dap on SimProbe, where each step advances
+ * the PC by 2: the PC trace, stopping on leaving a range or reaching an
+ * address, and a step that does not halt.
+ *
+ */
+public class StepTest {
+
+    private static final int PC = 0x100;
+
+    private SimProbe sim;
+    private Dap dap;
+    private int[] trace = new int[256];
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        assertTrue(dap.halt());
+        sim.setCoreReg(15, PC);
+    }
+
+    @Test
+    public void traceHasThePcAfterEachStep() {
+        // More than two batches
+        assertEquals(100, dap.step(100, trace));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("step " + i, PC + 2 + i * 2, trace[i]);
+        }
+        assertEquals(PC + 200, sim.getCoreReg(15));
+        assertTrue(sim.isHalted());
+    }
+
+    @Test
+    public void stepsLimitedByTrace() {
+        int[] small = new int[5];
+        assertEquals(5, dap.step(100, small));
+        assertEquals(PC + 10, sim.getCoreReg(15));
+    }
+
+    @Test
+    public void stepWhileInStopsOnLeavingRange() {
+        int done = dap.stepWhileIn(PC, PC + 0x10, 100, trace);
+
+        assertEquals(8, done);
+        assertEquals(PC + 0x10, trace[done - 1]);
+        // No step was taken past the exit
+        assertEquals(PC + 0x10, sim.getCoreReg(15));
+    }
+
+    @Test
+    public void stepToStopsAtAddress() {
+        int done = dap.stepTo(PC + 0x20, 100, trace);
+
+        assertEquals(16, done);
+        assertEquals(PC + 0x20, trace[done - 1]);
+        assertEquals(PC + 0x20, sim.getCoreReg(15));
+    }
+
+    @Test
+    public void stepToGivesUpAfterMax() {
+        assertEquals(5, dap.stepTo(PC + 0x1000, 5, trace));
+        assertEquals(PC + 10, sim.getCoreReg(15));
+    }
+
+    @Test
+    public void stepThatDoesNotHaltEndsBatch() {
+        sim.runAfterSteps(10);
+        int done = dap.step(40, trace);
+
+        assertEquals(10, done);
+        assertEquals(PC + 20, trace[9]);
+        assertTrue(dap.getMsgLog().contains("Step did not halt"));
+        // Halted again, and the steps after it in the batch were ignored
+        assertTrue(sim.isHalted());
+        assertEquals(PC + 22, sim.getCoreReg(15));
+    }
+
+    @Test
+    public void stepOfRunningCoreFails() {
+        sim.setHalted(false);
+        assertFalse(dap.step());
+        assertFalse(sim.isHalted());
+    }
+}
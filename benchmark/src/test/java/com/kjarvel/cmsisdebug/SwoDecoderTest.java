@@ -0,0 +1,113 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SwoDecoder packet parsing: ITM stimulus and DWT hardware packets of each
+ * size, timestamps, synchronization, overflow and split reads.
+ *
+ */
+public class SwoDecoderTest {
+
+    private List<String> packets = new ArrayList<>();
+    private SwoDecoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new SwoDecoder(new SwoDecoder.Listener() {
+            public void onStimulus(int port, int value, int size) {
+                packets.add(String.format("S%d:%x/%d", port, value, size));
+            }
+
+            public void onHardware(int id, int value, int size) {
+                packets.add(String.format("H%d:%x/%d", id, value, size));
+            }
+
+            public void onTimestamp(long delta) {
+                packets.add("T" + delta);
+            }
+
+            public void onOverflow() {
+                packets.add("O");
+            }
+        });
+    }
+
+    private void decode(int... bytes) {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        decoder.decode(data, 0, data.length);
+    }
+
+    private void expect(String... want) {
+        assertEquals(Arrays.asList(want), packets);
+    }
+
+    @Test
+    public void stimulusPacketsOfEachSize() {
+        decode(0x01, 'A',                       // Port 0, 1 byte
+               0x0A, 0x34, 0x12,                // Port 1, 2 bytes
+               0xFB, 0x78, 0x56, 0x34, 0x12);   // Port 31, 4 bytes
+        expect("S0:41/1", "S1:1234/2", "S31:12345678/4");
+    }
+
+    @Test
+    public void dwtHardwarePackets() {
+        decode(0x05, 0x20,                      // Event counter wrap
+               0x0E, 0x0F, 0x20,                // Exception trace
+               0x17, 0x00, 0x01, 0x00, 0x08);   // PC sample
+        expect("H0:20/1", "H1:200f/2", "H2:8000100/4");
+    }
+
+    @Test
+    public void localTimestamps() {
+        decode(0x30,                            // One byte, delta 3
+               0xC0, 0x81, 0x01);               // Continued, 1 + 1 << 7
+        expect("T3", "T129");
+    }
+
+    @Test
+    public void syncAndOverflowBetweenPackets() {
+        decode(0x00, 0x00, 0x00, 0x00, 0x00, 0x80,
+               0x01, 'x',
+               0x70,
+               0x00, 0x80,
+               0x01, 'y');
+        expect("S0:78/1", "O", "S0:79/1");
+    }
+
+    @Test
+    public void packetsSplitAcrossReads() {
+        decode(0x03, 0x44);
+        decode(0x33, 0x22);
+        decode(0x11, 0x0D);
+        decode(0x99);
+        expect("S0:11223344/4", "H1:99/1");
+    }
+}
@@ -0,0 +1,213 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TargetCrc on SimProbe, with the routine run by a small Thumb emulator:
+ * the encoded code, its register and BKPT convention, verify() and the
+ * halt timeout.
+ *
+ */
+public class TargetCrcTest {
+
+    private static final long RAM = SimProbe.RAM;
+    private static final long CODE = RAM + 0x30000;
+    private static final int BKPT_OFFSET = 0x1E;   // Last instruction
+
+    private SimProbe sim;
+    private Dap dap;
+    private TargetCrc crc;
+    private long executed = 0;
+
+    /**
+     * Runs the Thumb code at the PC until a BKPT. Only the instructions
+     * the CRC routine needs are known, anything else fails the test.
+     */
+    private final SimProbe.Program thumb = new SimProbe.Program() {
+        public int run(SimProbe s) {
+            int[] r = new int[16];
+            boolean z = false;
+            boolean c = false;
+
+            for (int i = 0; i < r.length; i++) {
+                r[i] = s.getCoreReg(i);
+            }
+            for (;;) {
+                long pc = r[15] & 0xFFFFFFFFL;
+                int op = (s.getByte(pc) & 0xFF) | (s.getByte(pc + 1) & 0xFF) << 8;
+                int lo = op & 7;                // Rd/Rt/Rdn
+                int mid = (op >> 3) & 7;        // Rn/Rm
+                int hi = (op >> 8) & 7;         // Rd of 8-bit immediate forms
+                int imm8 = op & 0xFF;
+                long result = 0;
+                boolean flags = true;
+                int next = r[15] + 2;
+
+                executed++;
+                if ((op & 0xF800) == 0x4800) {          // LDR Rt, [PC, #imm]
+                    r[hi] = (int) s.getWord(((pc + 4) & ~3L) + imm8 * 4);
+                    flags = false;
+                } else if ((op & 0xF800) == 0x7800) {   // LDRB Rt, [Rn, #imm]
+                    r[lo] = s.getByte((r[mid] & 0xFFFFFFFFL) + ((op >> 6) & 31))
+                            & 0xFF;
+                    flags = false;
+                } else if ((op & 0xF800) == 0x2000) {   // MOVS Rd, #imm
+                    result = r[hi] = imm8;
+                } else if ((op & 0xF800) == 0x2800) {   // CMP Rn, #imm
+                    result = (r[hi] & 0xFFFFFFFFL) - imm8;
+                    c = (r[hi] & 0xFFFFFFFFL) >= imm8;
+                } else if ((op & 0xF800) == 0x3000) {   // ADDS Rdn, #imm
+                    result = (r[hi] & 0xFFFFFFFFL) + imm8;
+                    c = result > 0xFFFFFFFFL;
+                    r[hi] = (int) result;
+                } else if ((op & 0xF800) == 0x3800) {   // SUBS Rdn, #imm
+                    c = (r[hi] & 0xFFFFFFFFL) >= imm8;
+                    result = r[hi] = r[hi] - imm8;
+                } else if ((op & 0xF800) == 0x0800) {   // LSRS Rd, Rm, #imm
+                    int shift = (op >> 6) & 31;
+                    shift = shift == 0 ? 32 : shift;
+                    c = ((r[mid] >>> (shift - 1)) & 1) != 0;
+                    result = r[lo] = shift == 32 ? 0 : r[mid] >>> shift;
+                } else if ((op & 0xFFC0) == 0x4040) {   // EORS Rdn, Rm
+                    result = r[lo] ^= r[mid];
+                } else if ((op & 0xFFC0) == 0x43C0) {   // MVNS Rd, Rm
+                    result = r[lo] = ~r[mid];
+                } else if ((op & 0xF000) == 0xD000) {   // B<cond>
+                    boolean[] taken = { z, !z, c, !c };
+                    int cond = (op >> 8) & 0xF;
+                    if (cond >= taken.length) {
+                        throw new AssertionError(String.format(
+                                "Condition %x at 0x%08x", cond, pc));
+                    }
+                    if (taken[cond]) {
+                        next = r[15] + 4 + (byte) imm8 * 2;
+                    }
+                    flags = false;
+                } else if ((op & 0xF800) == 0xE000) {   // B
+                    next = r[15] + 4 + ((op << 21) >> 21) * 2;
+                    flags = false;
+                } else if ((op & 0xFF00) == 0xBE00) {   // BKPT
+                    for (int i = 0; i < r.length; i++) {
+                        s.setCoreReg(i, r[i]);
+                    }
+                    return 0;
+                } else {
+                    throw new AssertionError(String.format(
+                            "Opcode %04x at 0x%08x", op, pc));
+                }
+                if (flags) {
+                    z = (int) result == 0;
+                }
+                r[15] = next;
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        sim.setProgram(thumb);
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        crc = new TargetCrc(dap, CODE);
+        for (int i = 0; i < 0x10000; i++) {
+            sim.setByte(RAM + i, (byte) (i * 31 + (i >> 8)));
+        }
+    }
+
+    private long hostCrc(long addr, int len) {
+        CRC32 c = new CRC32();
+        for (int i = 0; i < len; i++) {
+            c.update(sim.getByte(addr + i));
+        }
+        return c.getValue();
+    }
+
+    private byte[] read(long addr, int len) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = sim.getByte(addr + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void routineMatchesCrc32() {
+        assertEquals(hostCrc(RAM + 1, 1003), crc.crc(RAM + 1, 1003));
+        assertEquals(hostCrc(RAM, 0x10000), crc.crc(RAM, 0x10000));
+        assertEquals(0, crc.crc(RAM, 0));
+        // About 33 instructions per byte
+        assertTrue(executed > 30 * 0x10000);
+    }
+
+    @Test
+    public void stopsOnBkptWithResultInR0() {
+        long want = hostCrc(RAM, 64);
+
+        assertEquals(want, crc.crc(RAM, 64));
+        assertTrue(sim.isHalted());
+        assertEquals(CODE + BKPT_OFFSET, sim.getCoreReg(15) & 0xFFFFFFFFL);
+        assertEquals((int) want, sim.getCoreReg(0));
+        // r1 was the length, counted down to zero
+        assertEquals(0, sim.getCoreReg(1));
+        // The literal pool holds the reflected polynomial
+        assertEquals(0xEDB88320L, sim.getWord(CODE + 0x20));
+    }
+
+    @Test
+    public void verifyFindsFirstDifference() {
+        byte[] image = read(RAM, 3 * 4096);
+
+        assertTrue(crc.verify(RAM, image, 0, image.length));
+
+        image[5000] ^= 1;
+        image[9000] ^= 1;
+        assertFalse(crc.verify(RAM, image, 0, image.length));
+        assertTrue(crc.getMsgLog(), crc.getMsgLog().contains(
+                String.format("Verify error at 0x%08x", RAM + 5000)));
+        assertTrue(crc.getMsgLog(), crc.getMsgLog().contains(
+                String.format("Verify error at 0x%08x", RAM + 9000)));
+    }
+
+    @Test
+    public void routineThatNeverHaltsTimesOut() {
+        int len = 25000;
+        sim.setProgram(new SimProbe.Program() {
+            public int run(SimProbe s) {
+                return -1;
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        assertEquals(-1, crc.crc(RAM, len));
+        long ms = System.currentTimeMillis() - start;
+
+        // 500 + len / 50 ms
+        assertTrue("after " + ms + " ms", ms >= 1000 && ms < 3000);
+        assertTrue(crc.getMsgLog().contains("CRC timeout"));
+    }
+}
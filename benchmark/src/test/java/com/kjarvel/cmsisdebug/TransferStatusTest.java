@@ -0,0 +1,117 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Transfer status, WAIT resume and FAULT recovery in Dap, with WAIT and
+ * FAULT responses injected by SimProbe.
+ *
+ */
+public class TransferStatusTest {
+
+    private static final long RAM = SimProbe.RAM;
+
+    private SimProbe sim;
+    private Dap dap;
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        dap.halt();
+    }
+
+    private void queueWrites(int n) {
+        for (int i = 0; i < n; i++) {
+            dap.queueWriteAddr(RAM + i * 4, 0x100 + i);
+        }
+    }
+
+    @Test
+    public void waitIsResumedFromFailedTransfer() {
+        long before = sim.getTransfers();
+        long retries = sim.getMetrics().snapshot().retries;
+
+        queueWrites(8);
+        sim.injectWait(5, 1);
+        assertTrue(dap.flushTransfers());
+
+        assertEquals(Dap.XFER_OK, dap.getTransferStatus());
+        assertEquals(retries + 1, sim.getMetrics().snapshot().retries);
+        // Each transfer was done once, none replayed
+        assertEquals(dap.getTransferCount(), sim.getTransfers() - before);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0x100 + i, sim.getWord(RAM + i * 4));
+        }
+    }
+
+    @Test
+    public void waitGivesUpAfterHostRetries() {
+        queueWrites(4);
+        sim.injectWait(2, 100);
+        assertFalse(dap.flushTransfers());
+
+        assertEquals(Dap.XFER_WAIT, dap.getTransferStatus());
+        assertEquals(2, dap.getTransferCount());
+    }
+
+    @Test
+    public void waitTimeoutAbortsTransaction() {
+        queueWrites(4);
+        sim.injectWait(2, 100);
+        assertFalse(dap.flushTransfers());
+        assertEquals(Dap.XFER_WAIT, dap.getTransferStatus());
+
+        // DAPABORT cancelled the stalled access, the AP answers again
+        assertTrue(dap.writeAddr(RAM + 8, 0x1234));
+        assertEquals(Dap.XFER_OK, dap.getTransferStatus());
+        assertEquals(0x1234, sim.getWord(RAM + 8));
+    }
+
+    @Test
+    public void faultClearsStickyErrors() {
+        sim.setWord(RAM, 0x5a5a5a5aL);
+
+        dap.queueReadAddr(RAM);
+        sim.injectFault(1);
+        assertFalse(dap.flushTransfers());
+
+        assertEquals(Dap.XFER_FAULT, dap.getTransferStatus());
+        assertFalse("ABORT not sent", sim.isSticky());
+        assertEquals(0x5a5a5a5aL, dap.readAddr(RAM));
+        assertEquals(Dap.XFER_OK, dap.getTransferStatus());
+    }
+
+    @Test
+    public void faultInBlockTransfer() {
+        byte[] buf = new byte[2048];
+
+        sim.injectFault(100);
+        assertFalse(dap.readMemory(RAM, buf, 0, buf.length));
+        assertFalse(sim.isSticky());
+        assertTrue(dap.readMemory(RAM, buf, 0, buf.length));
+    }
+}
@@ -0,0 +1,142 @@
+/* *************************************************************************
+ *   Copyright (C) 2018 Niklas Kallman <kjarvel@gmail.com>                 *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *                                                                         *
+ *   This program is distributed in the hope that it will be useful,       *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *   GNU General Public License for more details.                          *
+ *                                                                         *
+ *   You should have received a copy of the GNU General Public License     *
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>. *
+ ***************************************************************************/
+package com.kjarvel.cmsisdebug;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * WatchList polling on SimProbe: grouped block reads, and delta-only
+ * change reporting.
+ *
+ */
+public class WatchListTest {
+
+    private SimProbe sim;
+    private ProbeQueue queue;
+    private WatchList watch;
+    private int notified = 0;
+    private int[] idx = new int[8];
+    private int[] val = new int[8];
+    private final List<String> reads = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        sim = new SimProbe();
+        Dap dap = new Dap(SimProbe.PACKET_SIZE, sim);
+        dap.connect();
+        queue = new ProbeQueue("test");
+        watch = new WatchList(new DapTarget(dap) {
+            @Override
+            public boolean readMemory(long addr, byte[] dst, int off, int len) {
+                reads.add(String.format("%x+%d", addr, len));
+                return super.readMemory(addr, dst, off, len);
+            }
+        }, queue);
+        watch.setListener(new WatchList.Listener() {
+            public void onChanged() {
+                notified++;
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            sim.setWord(SimProbe.RAM + i * 8, 0x100 + i);
+            watch.add(SimProbe.RAM + i * 8);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test
+    public void firstPollReportsAll() {
+        watch.poll();
+        assertEquals(1, notified);
+        assertEquals(4, watch.takeChanges(idx, val));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, idx[i]);
+            assertEquals(0x100 + i, val[i]);
+        }
+    }
+
+    @Test
+    public void unchangedValuesAreNotReported() {
+        watch.poll();
+        watch.takeChanges(idx, val);
+
+        watch.poll();
+        watch.poll();
+        assertEquals(1, notified);
+        assertEquals(0, watch.takeChanges(idx, val));
+    }
+
+    @Test
+    public void onlyChangedValuesAreReported() {
+        watch.poll();
+        watch.takeChanges(idx, val);
+
+        sim.setWord(SimProbe.RAM + 16, 0xcafe);
+        watch.poll();
+        assertEquals(2, notified);
+        assertEquals(1, watch.takeChanges(idx, val));
+        assertEquals(2, idx[0]);
+        assertEquals(0xcafe, val[0]);
+        assertEquals(0xcafe, watch.getValue(2));
+    }
+
+    @Test
+    public void notifiedOnceUntilTaken() {
+        watch.poll();
+        sim.setWord(SimProbe.RAM, 1);
+        watch.poll();
+        sim.setWord(SimProbe.RAM + 8, 2);
+        watch.poll();
+        assertEquals(1, notified);
+
+        // Changes since the last take are merged, with the latest values
+        assertEquals(4, watch.takeChanges(idx, val));
+        assertEquals(1, val[0]);
+        assertEquals(2, val[1]);
+    }
+
+    @Test
+    public void closeEntriesShareABlockRead() {
+        long blocks = sim.getMetrics().snapshot().commands[0x06];
+        watch.poll();
+        assertEquals(1, sim.getMetrics().snapshot().commands[0x06] - blocks);
+    }
+
+    @Test
+    public void peripheralGapsAreNotRead() {
+        long dwt = 0xe0001000L;
+        watch.add(dwt + 4);
+        watch.add(dwt + 8);
+        watch.add(dwt + 16);
+
+        watch.poll();
+        assertEquals(Arrays.asList("20000000+28", "e0001004+8", "e0001010+4"),
+                reads);
+    }
+}